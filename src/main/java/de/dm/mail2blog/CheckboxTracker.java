@@ -25,6 +25,16 @@ public class CheckboxTracker {
     @Setter boolean spaceKeyInAddress = false;
     @Setter boolean spaceKeyInSubject = false;
     @Setter boolean doNotShowPop3Confirmation = false;
+    @Setter boolean imapIdle = false;
+    @Setter boolean deferredFlagging = false;
+    @Setter boolean incrementalFetch = false;
+    @Setter boolean poolConnections = false;
+    @Setter boolean partialFetch = false;
+    @Setter boolean statusCheck = false;
+    @Setter boolean rejectOversized = false;
+    @Setter boolean compress = false;
+    @Setter boolean leaveOnServer = false;
+    @Setter boolean retentionExpunge = false;
 
     /**
      * Reset all checkbox values to false.
@@ -42,6 +52,16 @@ public class CheckboxTracker {
         htmlmacro = false;
         spaceKeyInAddress = false;
         spaceKeyInSubject = false;
+        imapIdle = false;
+        deferredFlagging = false;
+        incrementalFetch = false;
+        poolConnections = false;
+        partialFetch = false;
+        statusCheck = false;
+        rejectOversized = false;
+        compress = false;
+        leaveOnServer = false;
+        retentionExpunge = false;
     }
 
     /**
@@ -61,5 +81,15 @@ public class CheckboxTracker {
         mailConfiguration.setSpaceKeyInAddress(spaceKeyInAddress);
         mailConfiguration.setSpaceKeyInSubject(spaceKeyInSubject);
         mailConfiguration.setDoNotShowPop3Confirmation(doNotShowPop3Confirmation);
+        mailConfiguration.setImapIdle(imapIdle);
+        mailConfiguration.setDeferredFlagging(deferredFlagging);
+        mailConfiguration.setIncrementalFetch(incrementalFetch);
+        mailConfiguration.setPoolConnections(poolConnections);
+        mailConfiguration.setPartialFetch(partialFetch);
+        mailConfiguration.setStatusCheck(statusCheck);
+        mailConfiguration.setRejectOversized(rejectOversized);
+        mailConfiguration.setCompress(compress);
+        mailConfiguration.setLeaveOnServer(leaveOnServer);
+        mailConfiguration.setRetentionExpunge(retentionExpunge);
     }
 }
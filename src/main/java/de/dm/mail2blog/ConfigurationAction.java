@@ -7,14 +7,17 @@ import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.user.EntityException;
 import com.atlassian.user.Group;
 import com.atlassian.user.GroupManager;
+import com.opensymphony.webwork.ServletActionContext;
 import de.dm.mail2blog.base.*;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocket;
+import javax.servlet.http.HttpServletRequest;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -54,7 +57,33 @@ public class ConfigurationAction extends ConfluenceActionSupport {
      * Get the mailConfiguration currently being edited.
      */
     public MailConfiguration getMailConfiguration() {
-        return configurationActionState.getMailConfigurationWrapper().getMailConfiguration();
+        return configurationActionState.getMailConfigurationWrapper(getProfile()).getMailConfiguration();
+    }
+
+    /**
+     * Get the name of the profile being edited.
+     * It's read from the request directly, because xwork sets parameters in no particular order
+     * and the profile must be known before the fields of the mailConfiguration get set.
+     */
+    public String getProfile() {
+        String profile = getRequestParameter("profile");
+        if (StringUtils.isBlank(profile)) {
+            return MailConfigurationManager.DEFAULT_PROFILE;
+        }
+
+        return profile.trim().toLowerCase();
+    }
+
+    /**
+     * Get the names of all profiles, starting with the default profile.
+     */
+    public List<String> getProfiles() {
+        List<String> profiles = new ArrayList<String>(globalState.getMailConfigurationWrappers().keySet());
+        if (!profiles.contains(getProfile())) {
+            profiles.add(getProfile());
+        }
+
+        return profiles;
     }
 
     /**
@@ -67,6 +96,12 @@ public class ConfigurationAction extends ConfluenceActionSupport {
 
         super.validate();
 
+        // Check that the profile name is valid.
+        if (!getProfile().matches(MailConfigurationManager.PROFILE_NAME_PATTERN)) {
+            addFieldError("profile", "please use up to 32 lower case letters, digits, - and _");
+            addActionError("please choose a valid profile name");
+        }
+
         // Check that the mail server is given and is a valid hostname.
         if (getMailConfiguration().getServer().isEmpty()) {
             addFieldError("mailConfiguration.server","Please enter a value");
@@ -122,6 +157,95 @@ public class ConfigurationAction extends ConfluenceActionSupport {
             addActionError("please choose a maximum attachment size between 0 and 2048MB");
         }
 
+        // Validate the chunk size used to fetch large message parts.
+        if (getMailConfiguration().getFetchSize() < 16 || getMailConfiguration().getFetchSize() > 16384) {
+            addFieldError("mailConfiguration.fetchSize", "please enter a value between 16 and 16384KB");
+            addActionError("please choose a fetch size between 16 and 16384KB");
+        }
+
+        // Validate connection settings.
+        if (getMailConfiguration().getTimeout() < 0 || getMailConfiguration().getTimeout() > 600) {
+            addFieldError("mailConfiguration.timeout", "please enter a value between 0 and 600");
+            addActionError("please choose a timeout between 0 and 600 seconds");
+        }
+
+        if (getMailConfiguration().getCircuitBreakerThreshold() < 0 || getMailConfiguration().getCircuitBreakerThreshold() > 100) {
+            addFieldError("mailConfiguration.circuitBreakerThreshold", "please enter a value between 0 and 100");
+            addActionError("please choose a number of failures between 0 and 100");
+        }
+
+        // IMAP moves messages into folders instead of deleting them.
+        if (getMailConfiguration().getLeaveOnServer() && !getMailConfiguration().getProtocol().endsWith("pop3")) {
+            addFieldError("mailConfiguration.leaveOnServer", "leaving messages on the server is only supported with POP3");
+            addActionError("please disable leaving messages on the server or use POP3");
+        }
+
+        // Compression is an IMAP extension.
+        if (getMailConfiguration().getCompress() && !getMailConfiguration().getProtocol().endsWith("imap")) {
+            addFieldError("mailConfiguration.compress", "compression is only supported with IMAP");
+            addActionError("please disable compression or use IMAP");
+        }
+
+        if (getMailConfiguration().getWindowSize() < 0 || getMailConfiguration().getWindowSize() > 10000) {
+            addFieldError("mailConfiguration.windowSize", "please enter a value between 0 and 10000");
+            addActionError("please choose a window size between 0 and 10000");
+        }
+
+        if (getMailConfiguration().getPipelineDepth() < 0 || getMailConfiguration().getPipelineDepth() > 64) {
+            addFieldError("mailConfiguration.pipelineDepth", "please enter a value between 0 and 64");
+            addActionError("please choose a pipeline depth between 0 and 64");
+        }
+
+        if (getMailConfiguration().getMaxPipelinedMessageSize() < 1 || getMailConfiguration().getMaxPipelinedMessageSize() > 100) {
+            addFieldError("mailConfiguration.maxPipelinedMessageSize", "please enter a value between 1 and 100MB");
+            addActionError("please choose a maximum size of messages downloaded in advance between 1 and 100MB");
+        }
+
+        if (getMailConfiguration().getCommitWorkers() < 1 || getMailConfiguration().getCommitWorkers() > 32) {
+            addFieldError("mailConfiguration.commitWorkers", "please enter a value between 1 and 32");
+            addActionError("please choose between 1 and 32 commit workers");
+        }
+
+        // Validate the run budget.
+        if (getMailConfiguration().getTimeBudget() < 0 || getMailConfiguration().getTimeBudget() > 86400) {
+            addFieldError("mailConfiguration.timeBudget", "please enter a value between 0 and 86400");
+            addActionError("please choose a time budget between 0 and 86400 seconds");
+        }
+
+        if (getMailConfiguration().getMessageBudget() < 0 || getMailConfiguration().getMessageBudget() > 100000) {
+            addFieldError("mailConfiguration.messageBudget", "please enter a value between 0 and 100000");
+            addActionError("please choose a message budget between 0 and 100000");
+        }
+
+        // Partitions are claimed by message UID, which only IMAP provides.
+        if (getMailConfiguration().getPartitions() < 0 || getMailConfiguration().getPartitions() > 64) {
+            addFieldError("mailConfiguration.partitions", "please enter a value between 0 and 64");
+            addActionError("please choose a number of partitions between 0 and 64");
+        } else if (getMailConfiguration().getPartitions() > 0 && !getMailConfiguration().getProtocol().endsWith("imap")) {
+            addFieldError("mailConfiguration.partitions", "partitioned processing is only supported with IMAP");
+            addActionError("please set the number of partitions to 0 or use IMAP");
+        }
+
+        // Validate the search criteria used to reject messages.
+        if (getMailConfiguration().getMaxMessageAge() < 0 || getMailConfiguration().getMaxMessageAge() > 3650) {
+            addFieldError("mailConfiguration.maxMessageAge", "please enter a value between 0 and 3650");
+            addActionError("please choose a maximum message age between 0 and 3650 days");
+        }
+
+        for (String domain : new MailConfigurationWrapper(getMailConfiguration()).getAllowedSenderDomains()) {
+            if (!domain.matches("[a-z0-9.-]+")) {
+                addFieldError("mailConfiguration.allowedSenderDomains", "'" + domain + "' is not a valid domain");
+                addActionError("please enter valid sender domains");
+                break;
+            }
+        }
+
+        // Validate retention settings.
+        if (getMailConfiguration().getRetentionDays() < 0 || getMailConfiguration().getRetentionDays() > 3650) {
+            addFieldError("mailConfiguration.retentionDays", "please enter a value between 0 and 3650");
+            addActionError("please choose a retention period between 0 and 3650 days");
+        }
+
         if (getMailConfiguration().getMaxAllowedNumberOfAttachments() < -1) {
             addFieldError("mailConfiguration.maxAllowedNumberOfAttachments", "please enter a value larger than -1");
             addActionError("please set the maximum number of attachments to at least -1");
@@ -219,8 +343,8 @@ public class ConfigurationAction extends ConfluenceActionSupport {
     public String execute() throws Exception {
         try {
             // Save the configuration and update the global state.
-            mailConfigurationManager.saveConfig(getMailConfiguration());
-            globalState.setMailConfigurationWrapper(configurationActionState.getMailConfigurationWrapper().duplicate());
+            mailConfigurationManager.saveConfig(getProfile(), getMailConfiguration());
+            globalState.setMailConfigurationWrapper(getProfile(), configurationActionState.getMailConfigurationWrapper(getProfile()).duplicate());
             addActionMessage("configuration successfully saved");
             return ConfluenceActionSupport.SUCCESS;
         } catch (MailConfigurationManagerException e) {
@@ -230,6 +354,29 @@ public class ConfigurationAction extends ConfluenceActionSupport {
         }
     }
 
+    /**
+     * Delete the profile given by the request parameter "profile".
+     */
+    public String doDeleteProfile() {
+        try {
+            mailConfigurationManager.deleteProfile(getProfile());
+            globalState.setMailConfigurationWrapper(getProfile(), null);
+            return ConfluenceActionSupport.SUCCESS;
+        } catch (MailConfigurationManagerException e) {
+            addActionError("failed to delete profile: " + e.getMessage());
+            log.error("Mail2Blog: failed to delete profile", e);
+            return ConfluenceActionSupport.ERROR;
+        }
+    }
+
+    /**
+     * Wrapper around the parameters of the current request.
+     */
+    String getRequestParameter(String name) {
+        HttpServletRequest request = ServletActionContext.getRequest();
+        return request == null ? null : request.getParameter(name);
+    }
+
     public String getPreferred() {
         if ("text/plain".equals(getMailConfiguration().getPreferredContentTypes()[0])) {
             return "text";
@@ -14,6 +14,11 @@ public class ConfigurationActionState {
 
     @Setter MailConfigurationWrapper mailConfigurationWrapper;
 
+    /**
+     * The profile of the mailConfiguration currently being edited.
+     */
+    private String profile = MailConfigurationManager.DEFAULT_PROFILE;
+
     /**
      * Get the mailConfiguration currently being edited or duplicate the actively used one.
      *
@@ -21,9 +26,24 @@ public class ConfigurationActionState {
      */
     public MailConfigurationWrapper getMailConfigurationWrapper() {
         if (mailConfigurationWrapper == null) {
-            mailConfigurationWrapper = globalState.getMailConfigurationWrapper().duplicate();
+            mailConfigurationWrapper = globalState.getMailConfigurationWrapper(profile).duplicate();
         }
 
         return mailConfigurationWrapper;
     }
+
+    /**
+     * Get the mailConfiguration of the given profile currently being edited.
+     * Switching to another profile discards the changes of the previously edited profile.
+     *
+     * @return the mail configuration currently being edited
+     */
+    public MailConfigurationWrapper getMailConfigurationWrapper(String profile) {
+        if (!this.profile.equals(profile)) {
+            this.profile = profile;
+            mailConfigurationWrapper = null;
+        }
+
+        return getMailConfigurationWrapper();
+    }
 }
@@ -5,6 +5,9 @@ import lombok.Setter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * Autowired bean that stores the plugin wide state.
  */
@@ -19,6 +22,11 @@ public class GlobalState {
      */
      @Setter MailConfigurationWrapper mailConfigurationWrapper = null;
 
+    /**
+     * The currently used configurations of the additional profiles by name, null if not loaded yet.
+     */
+    private Map<String, MailConfigurationWrapper> profiles = null;
+
     /**
      * Get the mail configuration or lazy load the current active configuration from storage.
      *
@@ -33,4 +41,59 @@ public class GlobalState {
 
         return mailConfigurationWrapper;
     }
+
+    /**
+     * Get the mail configuration of a profile.
+     *
+     * @return The mail configuration or a new default configuration if the profile doesn't exist
+     */
+    public synchronized MailConfigurationWrapper getMailConfigurationWrapper(String profile) {
+        if (MailConfigurationManager.DEFAULT_PROFILE.equals(profile)) {
+            return getMailConfigurationWrapper();
+        }
+
+        MailConfigurationWrapper wrapper = getProfiles().get(profile);
+        if (wrapper == null) {
+            wrapper = new MailConfigurationWrapper(mailConfigurationManager.loadConfig(profile));
+        }
+
+        return wrapper;
+    }
+
+    /**
+     * Get the mail configurations of all profiles by name, starting with the default profile.
+     */
+    public synchronized Map<String, MailConfigurationWrapper> getMailConfigurationWrappers() {
+        Map<String, MailConfigurationWrapper> wrappers = new LinkedHashMap<String, MailConfigurationWrapper>();
+        wrappers.put(MailConfigurationManager.DEFAULT_PROFILE, getMailConfigurationWrapper());
+        wrappers.putAll(getProfiles());
+        return wrappers;
+    }
+
+    /**
+     * Replace the configuration of a profile after it has been saved.
+     * Set the wrapper to null to remove the profile.
+     */
+    public synchronized void setMailConfigurationWrapper(String profile, MailConfigurationWrapper wrapper) {
+        if (MailConfigurationManager.DEFAULT_PROFILE.equals(profile)) {
+            mailConfigurationWrapper = wrapper;
+        } else if (wrapper == null) {
+            getProfiles().remove(profile);
+        } else {
+            getProfiles().put(profile, wrapper);
+        }
+    }
+
+    private Map<String, MailConfigurationWrapper> getProfiles() {
+        if (profiles == null) {
+            profiles = new LinkedHashMap<String, MailConfigurationWrapper>();
+            for (String name : mailConfigurationManager.loadProfileNames()) {
+                if (!MailConfigurationManager.DEFAULT_PROFILE.equals(name)) {
+                    profiles.put(name, new MailConfigurationWrapper(mailConfigurationManager.loadConfig(name)));
+                }
+            }
+        }
+
+        return profiles;
+    }
 }
@@ -5,4 +5,5 @@ import javax.mail.Message;
 public interface IMailboxFlagFeature {
     void flagAsProcessed(Message message) throws MailboxException;
     void flagAsInvalid(Message message) throws MailboxException;
+    void commitFlags() throws MailboxException;
 }
@@ -0,0 +1,219 @@
+package de.dm.mail2blog;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.sun.mail.imap.IMAPFolder;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.event.MessageCountAdapter;
+import javax.mail.event.MessageCountEvent;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Long-lived listener that keeps an IMAP IDLE connection on the INBOX open
+ * and triggers the Mail2BlogJob as soon as the server reports new messages.
+ * The cron triggered job keeps running as a safety-net sweep.
+ *
+ * Only the cluster node holding the IDLE cluster lock keeps a connection open.
+ * All other nodes retry periodically and take over if the lock gets released.
+ */
+@Slf4j
+@Component
+public class ImapIdleListener implements InitializingBean, DisposableBean, Runnable {
+    /**
+     * Name of the cluster lock held by the node with the open IDLE connection.
+     */
+    public static final String LOCK_NAME = MailConfigurationManager.PLUGIN_KEY + ".imapIdle";
+
+    /**
+     * Wait time before trying to (re)connect (1 minute).
+     */
+    static final long RETRY_DELAY = 60 * 1000;
+
+    /**
+     * Interval after which a running IDLE command gets refreshed (20 minutes).
+     * RFC 2177 recommends to reissue IDLE at least every 29 minutes.
+     */
+    static final long REFRESH_INTERVAL = 20 * 60 * 1000;
+
+    // Auto wired components.
+    @Setter @Autowired private GlobalState globalState;
+    @Setter @Autowired private Mail2BlogJob mail2BlogJob;
+
+    /**
+     * Set to false to stop the listener thread.
+     */
+    volatile boolean running = false;
+
+    /**
+     * The thread waiting for IDLE events.
+     */
+    private Thread thread;
+
+    /**
+     * Timer used to refresh the IDLE command.
+     */
+    private Timer refreshTimer;
+
+    /**
+     * The folder currently in IDLE state.
+     */
+    private volatile IMAPFolder idleFolder;
+
+    /**
+     * Start the listener thread, called by spring once the bean is wired.
+     */
+    public void afterPropertiesSet() {
+        running = true;
+
+        refreshTimer = new Timer("mail2blog-imap-idle-refresh", true);
+        refreshTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                wakeUp();
+            }
+        }, REFRESH_INTERVAL, REFRESH_INTERVAL);
+
+        thread = new Thread(this, "mail2blog-imap-idle");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the listener thread, called by spring when the plugin gets disabled.
+     */
+    public void destroy() {
+        running = false;
+
+        if (refreshTimer != null) {
+            refreshTimer.cancel();
+        }
+
+        wakeUp();
+
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Main loop of the listener thread.
+     * Reconnects automatically when the connection drops.
+     */
+    public void run() {
+        while (running) {
+            try {
+                if (isIdleEnabled(globalState.getMailConfigurationWrapper())) {
+                    listen();
+                }
+            } catch (Exception e) {
+                log.warn("Mail2Blog: IMAP IDLE connection failed, reconnecting: " + e.toString(), e);
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Acquire the cluster lock, open the INBOX and wait for new messages.
+     * Returns when the connection drops, the configuration changes or the listener is stopped.
+     */
+    void listen() throws MailboxException, MessagingException {
+        ClusterLock lock = getClusterLockService().getLockForName(LOCK_NAME);
+
+        // Another node already holds the IDLE connection.
+        if (!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            MailConfigurationWrapper mailConfigurationWrapper = globalState.getMailConfigurationWrapper();
+            Mailbox mailbox = mail2BlogJob.newMailbox(mailConfigurationWrapper);
+
+            try {
+                Folder inbox = mailbox.getInbox();
+                if (!(inbox instanceof IMAPFolder)) {
+                    throw new MailboxException("IMAP IDLE requires an IMAP mailbox");
+                }
+
+                final AtomicBoolean newMessages = new AtomicBoolean(false);
+                inbox.addMessageCountListener(new MessageCountAdapter() {
+                    @Override
+                    public void messagesAdded(MessageCountEvent e) {
+                        newMessages.set(true);
+                    }
+                });
+
+                idleFolder = (IMAPFolder) inbox;
+                log.info("Mail2Blog: IMAP IDLE connection established");
+
+                // Pick up messages that arrived while we were not connected.
+                // Only this INBOX is watched, the other profiles are left to the scheduled runs.
+                mail2BlogJob.runJob(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+
+                while (
+                    running
+                    && mailConfigurationWrapper == globalState.getMailConfigurationWrapper()
+                    && isIdleEnabled(mailConfigurationWrapper)
+                ) {
+                    int count = idleFolder.getMessageCount();
+                    idleFolder.idle(true);
+
+                    // MessageCountEvents are delivered by the event dispatch thread of javax.mail
+                    // and usually arrive after idle() returned, but the message count is already updated.
+                    // The event still catches new messages hidden by messages expunged at the same time.
+                    boolean added = idleFolder.getMessageCount() > count;
+                    if (newMessages.getAndSet(false) || added) {
+                        mail2BlogJob.runJob(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+                    }
+                }
+            } finally {
+                idleFolder = null;
+                mailbox.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Interrupt a running IDLE command.
+     * Using the folder from another thread makes javax.mail terminate the IDLE command.
+     */
+    void wakeUp() {
+        IMAPFolder folder = idleFolder;
+        if (folder != null) {
+            try {
+                folder.getMessageCount();
+            } catch (Exception e) {
+                log.debug("Mail2Blog: failed to interrupt IMAP IDLE", e);
+            }
+        }
+    }
+
+    /**
+     * Check if push mode is enabled and the mailbox uses IMAP.
+     */
+    boolean isIdleEnabled(MailConfigurationWrapper mailConfigurationWrapper) {
+        MailConfiguration mailConfiguration = mailConfigurationWrapper.getMailConfiguration();
+        return mailConfiguration.getImapIdle() && mailConfiguration.getProtocol().endsWith("imap");
+    }
+
+    public ClusterLockService getClusterLockService() {
+        return StaticAccessor.getClusterLockService();
+    }
+}
@@ -1,10 +1,25 @@
 package de.dm.mail2blog;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.time.DateUtils;
 
 import javax.mail.*;
+import javax.mail.search.AndTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.ReceivedDateTerm;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Strategy to mark messages as processed/invalid on IMAP mailboxes.
@@ -13,28 +28,80 @@ import javax.mail.*;
 @Slf4j
 public class ImapMailboxFlagStrategy implements IMailboxFlagFeature
 {
+    public static final String PROCESSED_FOLDER = "Processed";
+    public static final String INVALID_FOLDER = "Invalid";
+
+    /**
+     * Format of the names of the monthly archive folders below Processed and Invalid.
+     */
+    public static final String ARCHIVE_FOLDER_FORMAT = "yyyy-MM";
+
+    /**
+     * Maximum number of messages moved or deleted with one command.
+     */
+    static final int RETENTION_BATCH_SIZE = 1000;
+
+    /**
+     * Maximum number of months the retention walks back in time.
+     */
+    static final int RETENTION_MAX_MONTHS = 1200;
+
     @NonNull private Mailbox mailbox;
 
+    /**
+     * If set to true, messages are only collected when flagged
+     * and get moved in bulk when calling commitFlags().
+     */
+    @Setter private boolean deferred = false;
+
+    /**
+     * Messages collected in deferred mode, grouped by the name of the target folder.
+     */
+    private final Map<String, List<Message>> pending = new LinkedHashMap<String, List<Message>>();
+
+    /**
+     * Messages that have been copied to the target folder by a commit that failed afterwards,
+     * they only need to be deleted from their folder.
+     */
+    private final Map<String, List<Message>> copied = new LinkedHashMap<String, List<Message>>();
+
     /**
      * Get/create a folder below the inbox or the root folder.
+     * Opened folders are cached by the mailbox and stay open until the mailbox is closed.
      *
      * @param name The name of the folder to create.
      * @return The created folder
      * @throws MailboxException if communication with mailbox does not work as expected
      */
     private Folder getOrCreateFolder(@NonNull String name) throws MailboxException {
-        Folder folder;
-        try {
-            folder = getOrCreateSubfolder(mailbox.getInbox(), name);
-        } catch (MailboxException inboxError) {
+        Folder folder = mailbox.getFlagFolder(name);
+        if (folder != null && folder.isOpen()) {
+            return folder;
+        }
+
+        // Skip the INBOX, if we already had to fall back to the ROOT folder before.
+        if (Boolean.TRUE.equals(mailbox.getFlagFoldersBelowRoot())) {
             try {
-                log.info("failed to create folder '" + name + "' below INBOX, falling back to ROOT folder", inboxError);
                 folder = getOrCreateSubfolder(mailbox.getDefaultFolder(), name);
             } catch (MailboxException rootError) {
                 throw new MailboxException("failed to get or create folder '" + name + '"', rootError);
             }
+        } else {
+            try {
+                folder = getOrCreateSubfolder(mailbox.getInbox(), name);
+                mailbox.setFlagFoldersBelowRoot(false);
+            } catch (MailboxException inboxError) {
+                try {
+                    log.info("failed to create folder '" + name + "' below INBOX, falling back to ROOT folder", inboxError);
+                    folder = getOrCreateSubfolder(mailbox.getDefaultFolder(), name);
+                    mailbox.setFlagFoldersBelowRoot(true);
+                } catch (MailboxException rootError) {
+                    throw new MailboxException("failed to get or create folder '" + name + '"', rootError);
+                }
+            }
         }
 
+        mailbox.putFlagFolder(name, folder);
         return folder;
     }
 
@@ -80,20 +147,62 @@ public class ImapMailboxFlagStrategy implements IMailboxFlagFeature
     }
 
     /**
-     * Move a given message from one IMAP folder to another.
+     * Move messages from their IMAP folder to another folder.
+     * Uses UID MOVE (RFC 6851) if the server supports it,
+     * otherwise the messages are copied, flagged as deleted and the folder is expunged once.
+     *
+     * @param messages The messages to be moved, all messages must belong to the same folder.
+     * @param to The folder to where to move the messages.
+     */
+    private void moveMessages(Message[] messages, Folder to) throws MailboxException
+    {
+        if (!moveOrCopyMessages(messages, to)) {
+            deleteMessages(messages);
+        }
+    }
+
+    /**
+     * Move messages with UID MOVE if the server supports it, otherwise only copy them.
      *
-     * @param m The message to be moved.
-     * @param to The folder to where to move the message.
+     * @return true if the messages were moved, false if they still need to be deleted
      */
-    private void moveMessage(Message m, Folder to) throws MailboxException
+    private boolean moveOrCopyMessages(Message[] messages, Folder to) throws MailboxException
     {
+        if (messages.length == 0) {
+            return true;
+        }
+
         try {
-            // Copy the message to the destination folder.
-            m.getFolder().copyMessages(new Message[] {m}, to);
+            Folder from = messages[0].getFolder();
+
+            if (from instanceof IMAPFolder && supportsMove()) {
+                ((IMAPFolder) from).moveMessages(messages, to);
+                return true;
+            }
+
+            // Copy the messages to the destination folder.
+            from.copyMessages(messages, to);
+            return false;
+        }
+        catch (MessagingException e)
+        {
+            throw new MailboxException("failed to move message", e);
+        }
+    }
+
+    /**
+     * Mark messages as deleted and call expunge on their folder.
+     */
+    private void deleteMessages(Message[] messages) throws MailboxException
+    {
+        if (messages.length == 0) {
+            return;
+        }
 
-            // Mark message as deleted and call expunge on folder.
-            m.setFlag(Flags.Flag.DELETED, true);
-            m.getFolder().expunge();
+        try {
+            Folder from = messages[0].getFolder();
+            from.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+            from.expunge();
         }
         catch (MessagingException e)
         {
@@ -101,19 +210,42 @@ public class ImapMailboxFlagStrategy implements IMailboxFlagFeature
         }
     }
 
+    /**
+     * Check if the server advertises the MOVE extension.
+     */
+    private boolean supportsMove() throws MailboxException {
+        Store store = mailbox.getStore();
+        try {
+            return store instanceof IMAPStore && ((IMAPStore) store).hasCapability("MOVE");
+        } catch (MessagingException e) {
+            throw new MailboxException("failed to get capabilities of mail server", e);
+        }
+    }
+
+    /**
+     * Move a message into the folder with the given name
+     * or remember it for later, when running in deferred mode.
+     */
+    private void flag(Message message, String folderName) throws MailboxException {
+        if (deferred) {
+            if (!pending.containsKey(folderName)) {
+                pending.put(folderName, new ArrayList<Message>());
+            }
+            pending.get(folderName).add(message);
+            return;
+        }
+
+        Folder to = this.getOrCreateFolder(folderName);
+        this.moveMessages(new Message[]{message}, to);
+    }
+
     /**
      * Move message to processed folder.
      *
      * @param message the message to handle
      */
     public void flagAsProcessed(Message message) throws MailboxException {
-        Folder to = this.getOrCreateFolder("Processed");
-        this.moveMessage(message, to);
-        try {
-            to.close(true);
-        } catch (MessagingException me) {
-            throw new MailboxException("failed to close folder", me);
-        }
+        flag(message, PROCESSED_FOLDER);
     }
 
     /**
@@ -122,12 +254,137 @@ public class ImapMailboxFlagStrategy implements IMailboxFlagFeature
      * @param message the message to handle
      */
     public void flagAsInvalid(Message message) throws MailboxException {
-        Folder to = this.getOrCreateFolder("Invalid");
-        this.moveMessage(message, to);
+        flag(message, INVALID_FOLDER);
+    }
+
+    /**
+     * Move all messages collected in deferred mode with one bulk operation per target folder.
+     * A group of messages stays pending until it has been moved, so that a failed commit can be retried.
+     * If only deleting the copied messages failed, the retry doesn't copy them again.
+     */
+    public void commitFlags() throws MailboxException {
+        while (!copied.isEmpty()) {
+            String folderName = copied.keySet().iterator().next();
+            List<Message> messages = copied.get(folderName);
+
+            this.deleteMessages(messages.toArray(new Message[messages.size()]));
+            copied.remove(folderName);
+        }
+
+        while (!pending.isEmpty()) {
+            String folderName = pending.keySet().iterator().next();
+            List<Message> messages = pending.get(folderName);
+            Message[] array = messages.toArray(new Message[messages.size()]);
+
+            Folder to = this.getOrCreateFolder(folderName);
+            boolean moved = this.moveOrCopyMessages(array, to);
+            pending.remove(folderName);
+
+            if (!moved) {
+                copied.put(folderName, messages);
+                this.deleteMessages(array);
+                copied.remove(folderName);
+            }
+        }
+    }
+
+    /**
+     * Remove messages received before the given date from the Processed and Invalid folders.
+     * The messages are either moved into monthly archive folders (e.g. Processed/2026-10) or deleted.
+     *
+     * Old messages are searched for on the server and moved in batches.
+     * Search results are ordered, so javax.mail sends each batch as a few message ranges.
+     *
+     * @param before messages received before this date are removed
+     * @param expunge if true messages are deleted instead of being archived
+     * @return the number of archived or deleted messages
+     */
+    public int applyRetention(Date before, boolean expunge) throws MailboxException {
+        int count = 0;
+        for (String folderName : new String[]{PROCESSED_FOLDER, INVALID_FOLDER}) {
+            Folder folder = getOrCreateFolder(folderName);
+            count += expunge ? expungeOlder(folder, before) : archiveOlder(folder, before);
+        }
+
+        return count;
+    }
+
+    /**
+     * Move messages received before the given date into monthly archive subfolders.
+     * Walks back month by month until all old messages are archived.
+     */
+    private int archiveOlder(Folder folder, Date before) throws MailboxException {
         try {
-            to.close(true);
-        } catch (MessagingException me) {
-            throw new MailboxException("failed to close folder", me);
+            int remaining = folder.search(new ReceivedDateTerm(ComparisonTerm.LT, before)).length;
+            int count = 0;
+
+            Date end = before;
+            Date start = DateUtils.truncate(before, Calendar.MONTH);
+            if (!start.before(end)) {
+                start = DateUtils.addMonths(start, -1);
+            }
+
+            for (int i = 0; remaining > 0 && i < RETENTION_MAX_MONTHS; i++) {
+                Message[] messages = folder.search(new AndTerm(
+                    new ReceivedDateTerm(ComparisonTerm.GE, start),
+                    new ReceivedDateTerm(ComparisonTerm.LT, end)
+                ));
+
+                if (messages.length > 0) {
+                    Folder archive = getOrCreateArchiveFolder(folder, new SimpleDateFormat(ARCHIVE_FOLDER_FORMAT).format(start));
+                    for (int j = 0; j < messages.length; j += RETENTION_BATCH_SIZE) {
+                        moveMessages(Arrays.copyOfRange(messages, j, Math.min(j + RETENTION_BATCH_SIZE, messages.length)), archive);
+                    }
+                }
+
+                remaining -= messages.length;
+                count += messages.length;
+                end = start;
+                start = DateUtils.addMonths(start, -1);
+            }
+
+            return count;
+        } catch (MessagingException e) {
+            throw new MailboxException("failed to archive messages in '" + folder.getName() + "'", e);
         }
     }
+
+    /**
+     * Delete messages received before the given date.
+     */
+    private int expungeOlder(Folder folder, Date before) throws MailboxException {
+        try {
+            Message[] messages = folder.search(new ReceivedDateTerm(ComparisonTerm.LT, before));
+            if (messages.length == 0) {
+                return 0;
+            }
+
+            for (int i = 0; i < messages.length; i += RETENTION_BATCH_SIZE) {
+                Message[] batch = Arrays.copyOfRange(messages, i, Math.min(i + RETENTION_BATCH_SIZE, messages.length));
+                folder.setFlags(batch, new Flags(Flags.Flag.DELETED), true);
+            }
+
+            folder.expunge();
+            return messages.length;
+        } catch (MessagingException e) {
+            throw new MailboxException("failed to delete messages in '" + folder.getName() + "'", e);
+        }
+    }
+
+    /**
+     * Get/create an archive folder below Processed or Invalid.
+     * Like the flag folders it's cached by the mailbox and closed with it.
+     */
+    private Folder getOrCreateArchiveFolder(Folder parent, String name) throws MailboxException {
+        String key = parent.getName() + "/" + name;
+
+        Folder folder = mailbox.getFlagFolder(key);
+        if (folder != null && folder.isOpen()) {
+            return folder;
+        }
+
+        folder = getOrCreateSubfolder(parent, name);
+        mailbox.putFlagFolder(key, folder);
+        return folder;
+    }
 }
@@ -0,0 +1,43 @@
+package de.dm.mail2blog;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Bean that stores which node currently runs the job for a profile.
+ */
+@Builder(toBuilder=true)
+@JsonDeserialize(builder = JobLease.JobLeaseBuilder.class)
+@Data
+public class JobLease {
+    // The node holding the lease.
+    private String owner;
+
+    // Identifies the run holding the lease, a new id is generated for every run.
+    private String runId;
+
+    // When the run started and when the lease expires in milliseconds, 0 if the lease has been released.
+    private long acquired;
+    private long expires;
+
+    /**
+     * Check if the lease is held by a run at the given time.
+     */
+    public boolean isHeld(long now) {
+        return expires > now;
+    }
+
+    // Builder class with default values.
+    @JsonPOJOBuilder(buildMethodName = "build", withPrefix = "")
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class JobLeaseBuilder
+    {
+        private String owner = "";
+        private String runId = "";
+        private long acquired = 0;
+        private long expires = 0;
+    }
+}
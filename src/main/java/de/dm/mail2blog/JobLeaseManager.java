@@ -0,0 +1,240 @@
+package de.dm.mail2blog;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out leases that make sure only one job run per profile is active in the cluster,
+ * no matter if it was triggered by cron, REST or IMAP IDLE.
+ *
+ * A lease is stored in bandana storage together with the node holding it and an expiry.
+ * While the run is active a heartbeat extends the expiry. If a node dies, its lease expires
+ * and the next run on any node takes over. The cluster lock of the profile is only held
+ * while a lease is read or written.
+ */
+@Slf4j
+@Component
+public class JobLeaseManager implements DisposableBean {
+    /**
+     * Time after which a lease expires without a heartbeat (5 minutes).
+     */
+    static final long LEASE_DURATION = 5 * 60 * 1000;
+
+    /**
+     * Interval in which active leases are extended (1 minute).
+     */
+    static final long HEARTBEAT_INTERVAL = 60 * 1000;
+
+    /**
+     * Identifies this node in the leases it holds.
+     */
+    @Getter private final String nodeId = newNodeId();
+
+    private ScheduledExecutorService heartbeat;
+
+    /**
+     * Try to take the lease for a job run.
+     *
+     * @param name   the name of the lease, the cluster lock with the same name guards it
+     * @param onLost called if another node took over the lease, because the heartbeat failed
+     * @return the lease or null if another run holds the lease
+     */
+    public Lease tryAcquire(String name, Runnable onLost) throws MailConfigurationManagerException {
+        ClusterLock guard = getClusterLockService().getLockForName(name);
+        guard.lock();
+
+        JobLease jobLease;
+        try {
+            long now = currentTimeMillis();
+            if (getCheckpointManager().loadLease(name).isHeld(now)) {
+                return null;
+            }
+
+            jobLease = JobLease.builder()
+                .owner(nodeId)
+                .runId(UUID.randomUUID().toString())
+                .acquired(now)
+                .expires(now + LEASE_DURATION)
+                .build();
+            getCheckpointManager().saveLease(name, jobLease);
+        } finally {
+            guard.unlock();
+        }
+
+        final Lease lease = new Lease(name, jobLease, onLost);
+        lease.heartbeatTask = getHeartbeat().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                renew(lease);
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+
+        return lease;
+    }
+
+    /**
+     * Get the current lease, to tell who is running the job.
+     */
+    public JobLease getHolder(String name) {
+        return getCheckpointManager().loadLease(name);
+    }
+
+    /**
+     * Extend a lease, unless another node took it over in the meantime.
+     */
+    void renew(Lease lease) {
+        if (lease.lost) {
+            return;
+        }
+
+        ClusterLock guard = getClusterLockService().getLockForName(lease.name);
+        guard.lock();
+
+        try {
+            JobLease stored = getCheckpointManager().loadLease(lease.name);
+            if (!lease.jobLease.getRunId().equals(stored.getRunId())) {
+                log.error("Mail2Blog: lease " + lease.name + " has been taken over by " + stored.getOwner());
+                lease.lost = true;
+            } else {
+                lease.jobLease = stored.toBuilder().expires(currentTimeMillis() + LEASE_DURATION).build();
+                getCheckpointManager().saveLease(lease.name, lease.jobLease);
+            }
+        } catch (Exception e) {
+            // Try again with the next heartbeat, the lease is valid for a few more heartbeats.
+            log.warn("Mail2Blog: failed to renew lease " + lease.name, e);
+        } finally {
+            guard.unlock();
+        }
+
+        if (lease.lost) {
+            lease.cancelHeartbeat();
+            if (lease.onLost != null) {
+                lease.onLost.run();
+            }
+        }
+    }
+
+    /**
+     * Stop the heartbeat and give up a lease, so that the next run doesn't have to wait for it to expire.
+     */
+    void release(Lease lease) {
+        lease.cancelHeartbeat();
+        if (lease.lost) {
+            return;
+        }
+
+        ClusterLock guard = getClusterLockService().getLockForName(lease.name);
+        guard.lock();
+
+        try {
+            if (lease.jobLease.getRunId().equals(getCheckpointManager().loadLease(lease.name).getRunId())) {
+                getCheckpointManager().saveLease(lease.name, lease.jobLease.toBuilder().expires(0).build());
+            }
+        } catch (Exception e) {
+            log.error("Mail2Blog: failed to release lease " + lease.name + ", it expires on its own", e);
+        } finally {
+            guard.unlock();
+        }
+    }
+
+    /**
+     * Stop all heartbeats, called when the plugin gets disabled.
+     * The leases of runs still active expire on their own.
+     */
+    public synchronized void destroy() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getHeartbeat() {
+        if (heartbeat == null) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mail2blog-lease-heartbeat");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return heartbeat;
+    }
+
+    /**
+     * Create an id that is readable in log messages and unique, also for several nodes on the same host.
+     */
+    private static String newNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "unknown";
+        }
+
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    public ClusterLockService getClusterLockService() {
+        return StaticAccessor.getClusterLockService();
+    }
+
+    public MailboxCheckpointManager getCheckpointManager() {
+        return StaticAccessor.getMailboxCheckpointManager();
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * A lease held by a job run on this node, close it once the run is finished.
+     */
+    public class Lease implements AutoCloseable {
+        private final String name;
+        private final Runnable onLost;
+        private volatile JobLease jobLease;
+        private volatile boolean lost = false;
+        private volatile ScheduledFuture<?> heartbeatTask;
+
+        Lease(String name, JobLease jobLease, Runnable onLost) {
+            this.name = name;
+            this.jobLease = jobLease;
+            this.onLost = onLost;
+        }
+
+        /**
+         * Check if another node took over the lease while the run was active.
+         */
+        public boolean isLost() {
+            return lost;
+        }
+
+        public JobLease getJobLease() {
+            return jobLease;
+        }
+
+        public void close() {
+            release(this);
+        }
+
+        private void cancelHeartbeat() {
+            if (heartbeatTask != null) {
+                heartbeatTask.cancel(false);
+            }
+        }
+    }
+}
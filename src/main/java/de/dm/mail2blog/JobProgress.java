@@ -0,0 +1,143 @@
+package de.dm.mail2blog;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what a job run did so far, so that it can be reported while the run is active.
+ * Shared by all threads of a run.
+ *
+ * Other progresses can follow a progress, e.g. the progress of a caller that joined a run
+ * started by somebody else. Followers are updated together with the progress they follow.
+ */
+@Slf4j
+public class JobProgress {
+    private final long started;
+    private final AtomicInteger seen = new AtomicInteger();
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger invalid = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    // End of the run in milliseconds, 0 while the run is active.
+    private volatile long finished = 0;
+
+    // Progresses following this one, guarded by the list itself.
+    private final List<JobProgress> followers = new ArrayList<JobProgress>();
+
+    public JobProgress() {
+        this.started = currentTimeMillis();
+    }
+
+    /**
+     * Count messages fetched from the mailbox.
+     */
+    public void addSeen(int count) {
+        add(count, 0, 0, 0);
+    }
+
+    /**
+     * Count messages that have been flagged as invalid by a server-side search, without being fetched.
+     */
+    public void addRejected(int count) {
+        add(count, 0, count, 0);
+    }
+
+    /**
+     * Count a handled message.
+     *
+     * @param valid true if the message has been posted, false if it has been flagged as invalid
+     */
+    public void addMessage(boolean valid, Message message) {
+        int size = 0;
+        try {
+            // The size has been prefetched with the envelope.
+            size = Math.max(message.getSize(), 0);
+        } catch (MessagingException e) {
+            log.debug("Mail2Blog: failed to get message size", e);
+        }
+
+        add(0, valid ? 1 : 0, valid ? 0 : 1, size);
+    }
+
+    /**
+     * Take over what another progress counted so far and count everything it counts from now on.
+     */
+    public void follow(JobProgress source) {
+        if (source == this) {
+            return;
+        }
+
+        synchronized (source.followers) {
+            add(source.getSeen(), source.getProcessed(), source.getInvalid(), source.getBytes());
+            source.followers.add(this);
+        }
+    }
+
+    /**
+     * Update the counters of this progress and its followers.
+     */
+    private void add(int seenCount, int processedCount, int invalidCount, long size) {
+        synchronized (followers) {
+            seen.addAndGet(seenCount);
+            processed.addAndGet(processedCount);
+            invalid.addAndGet(invalidCount);
+            bytes.addAndGet(size);
+
+            for (JobProgress follower : followers) {
+                follower.add(seenCount, processedCount, invalidCount, size);
+            }
+        }
+    }
+
+    /**
+     * Stop the clock once the run is finished.
+     */
+    public void finish() {
+        finished = currentTimeMillis();
+    }
+
+    /**
+     * Get the number of messages fetched from the mailbox.
+     */
+    public int getSeen() {
+        return seen.get();
+    }
+
+    /**
+     * Get the number of messages posted.
+     */
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Get the number of messages flagged as invalid.
+     */
+    public int getInvalid() {
+        return invalid.get();
+    }
+
+    /**
+     * Get the total size of the handled messages in bytes.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Get the milliseconds since the run started or the duration of a finished run.
+     */
+    public long getElapsed() {
+        return (finished > 0 ? finished : currentTimeMillis()) - started;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
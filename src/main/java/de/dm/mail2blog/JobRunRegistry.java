@@ -0,0 +1,155 @@
+package de.dm.mail2blog;
+
+import com.atlassian.scheduler.JobRunnerResponse;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the job in the background for REST requests and keeps the recent runs,
+ * so that their progress and result can be looked up by id.
+ */
+@Slf4j
+@Component
+public class JobRunRegistry implements DisposableBean {
+    /**
+     * Number of finished runs kept for status requests.
+     */
+    static final int MAX_RUNS = 20;
+
+    // Autowired
+    @Setter @Autowired private Mail2BlogJob mail2BlogJob;
+
+    /**
+     * Runs by id, oldest first.
+     */
+    private final Map<String, JobRun> runs = new LinkedHashMap<String, JobRun>();
+
+    private ExecutorService executor;
+
+    /**
+     * Start a run in the background.
+     * If a run started through REST is still active, that run is returned instead of starting another one.
+     */
+    public synchronized JobRun start() {
+        for (JobRun run : runs.values()) {
+            if (!run.isFinished()) {
+                return run;
+            }
+        }
+
+        prune();
+
+        final JobRun run = new JobRun(UUID.randomUUID().toString());
+        runs.put(run.getId(), run);
+
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                JobRunnerResponse result;
+                try {
+                    result = mail2BlogJob.runJob(null, run.getProgress());
+                } catch (Throwable e) {
+                    log.error("Mail2Blog: " + e.toString(), e);
+                    result = JobRunnerResponse.failed(e);
+                }
+
+                run.finish(result);
+            }
+        });
+
+        return run;
+    }
+
+    /**
+     * Get a run by id.
+     *
+     * @return the run or null if there is no such run or it has been dropped
+     */
+    public synchronized JobRun get(String id) {
+        return runs.get(id);
+    }
+
+    /**
+     * Drop the oldest finished runs.
+     */
+    private void prune() {
+        Iterator<JobRun> iterator = runs.values().iterator();
+        while (runs.size() >= MAX_RUNS && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Stop the background runs, called when the plugin gets disabled.
+     */
+    public synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mail2blog-rest-run");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return executor;
+    }
+
+    /**
+     * A job run started through REST.
+     */
+    public static class JobRun {
+        @Getter private final String id;
+        @Getter private final JobProgress progress = new JobProgress();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // The result of the run, null while the run is active.
+        @Getter private volatile JobRunnerResponse result;
+
+        JobRun(String id) {
+            this.id = id;
+        }
+
+        void finish(JobRunnerResponse result) {
+            progress.finish();
+            this.result = result;
+            done.countDown();
+        }
+
+        public boolean isFinished() {
+            return result != null;
+        }
+
+        /**
+         * Wait until the run is finished.
+         *
+         * @return true if the run is finished
+         */
+        public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+            return done.await(timeout, unit);
+        }
+    }
+}
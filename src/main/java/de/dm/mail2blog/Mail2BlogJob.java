@@ -1,20 +1,41 @@
 package de.dm.mail2blog;
 
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
 import com.atlassian.confluence.spaces.SpaceManager;
 import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.atlassian.spring.container.ContainerManager;
 import com.atlassian.scheduler.JobRunner;
 import com.atlassian.scheduler.JobRunnerRequest;
 import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.status.RunOutcome;
 import de.dm.mail2blog.base.SpaceExtractor;
 import lombok.Cleanup;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.mail.Message;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The job triggered by confluence that polls for new messages and creates pages/blog posts.
@@ -24,18 +45,101 @@ import javax.mail.Message;
 @ExportAsService
 public class Mail2BlogJob implements JobRunner
 {
+    /**
+     * Name of the cluster lock and lease that serialize job runs triggered by cron, REST and IMAP IDLE.
+     */
+    public static final String JOB_LOCK_NAME = MailConfigurationManager.PLUGIN_KEY + ".job";
+
+    /**
+     * Message of the response returned if a run ended early, because no messages arrived since the last run.
+     */
+    public static final String IDLE_MESSAGE = "idle: no new messages since the last run";
+
+    /**
+     * Prefix of the message of the response returned if a run stopped at its budget, before all messages were processed.
+     */
+    public static final String PARTIAL_MESSAGE = "partial: ";
+
+    /**
+     * Prefix of the message of the response returned if another node is running the job for a profile.
+     */
+    public static final String ALREADY_RUNNING_MESSAGE = "already running on ";
+
+    /**
+     * Maximum number of profiles polled at the same time.
+     */
+    static final int MAX_CONCURRENT_PROFILES = 4;
+
     // Auto wired components.
     @Setter @Autowired private GlobalState globalState;
     @Setter @Autowired private SpaceKeyValidator spaceKeyValidator;
     @Setter @Autowired private SpaceManager spaceManager;
+    @Setter @Autowired private MailStorePool mailStorePool;
+    @Setter @Autowired private MailboxCircuitBreaker mailboxCircuitBreaker;
+    @Setter @Autowired private JobLeaseManager jobLeaseManager;
+
+    private final Random random = new Random();
+
+    /**
+     * Serializes the creation of content within a space, shared by all runs on this node.
+     */
+    private final StripedSpaceLocks spaceLocks = new StripedSpaceLocks();
+
+    /**
+     * Runs active on this node by profile, overlapping invocations join them.
+     */
+    private final ConcurrentMap<String, ActiveRun> activeRuns = new ConcurrentHashMap<String, ActiveRun>();
 
     /**
      * The main method of this job.
      * Called by confluence every time the mail2blog trigger fires.
      */
     public JobRunnerResponse runJob(JobRunnerRequest jobRunnerRequest) {
+        return runJob(jobRunnerRequest, new JobProgress());
+    }
+
+    /**
+     * Run the job and count the handled messages in progress while it's running.
+     * Called by the REST resource for asynchronous runs.
+     */
+    public JobRunnerResponse runJob(JobRunnerRequest jobRunnerRequest, JobProgress progress) {
         log.info("Mail2Blog: executing job");
 
+        JobRunnerResponse disabled = checkFetchDisabled();
+        if (disabled != null) {
+            return disabled;
+        }
+
+        // Without additional profiles the default profile is processed right away on this thread.
+        Map<String, MailConfigurationWrapper> profiles = globalState.getMailConfigurationWrappers();
+        if (profiles.size() <= 1) {
+            return runProfile(MailConfigurationManager.DEFAULT_PROFILE, globalState.getMailConfigurationWrapper(), progress);
+        }
+
+        return runProfiles(profiles, progress);
+    }
+
+    /**
+     * Run the job for a single profile, without polling the other profiles.
+     * Called by the IMAP IDLE listener, which only watches the INBOX of one profile.
+     */
+    public JobRunnerResponse runJob(String profile, MailConfigurationWrapper mailConfigurationWrapper) {
+        log.info("Mail2Blog: executing job for profile " + profile);
+
+        JobRunnerResponse disabled = checkFetchDisabled();
+        if (disabled != null) {
+            return disabled;
+        }
+
+        return runProfile(profile, mailConfigurationWrapper, new JobProgress());
+    }
+
+    /**
+     * Check if fetching mail has been disabled for the whole instance.
+     *
+     * @return the response to abort the run with or null if mail may be fetched
+     */
+    private JobRunnerResponse checkFetchDisabled() {
         if ("true".equals(systemGetProperty("atlassian.mail.fetchdisabled"))) {
             return JobRunnerResponse.aborted("Aborting because of atlassian.mail.fetchdisabled=true.");
         }
@@ -44,45 +148,718 @@ public class Mail2BlogJob implements JobRunner
             return JobRunnerResponse.aborted("Aborting because of atlassian.mail.popdisabled=true.");
         }
 
+        return null;
+    }
+
+    /**
+     * Poll all profiles concurrently on a bounded number of threads.
+     * A failing profile doesn't affect the others, the run only fails if at least one profile failed.
+     */
+    private JobRunnerResponse runProfiles(Map<String, MailConfigurationWrapper> profiles, final JobProgress progress) {
+        ExecutorService executor = newProfileExecutor(Math.min(profiles.size(), MAX_CONCURRENT_PROFILES));
+
+        try {
+            Map<String, Future<JobRunnerResponse>> futures = new LinkedHashMap<String, Future<JobRunnerResponse>>();
+            for (final Map.Entry<String, MailConfigurationWrapper> profile : profiles.entrySet()) {
+                futures.put(profile.getKey(), executor.submit(new Callable<JobRunnerResponse>() {
+                    public JobRunnerResponse call() {
+                        return runProfile(profile.getKey(), profile.getValue(), progress);
+                    }
+                }));
+            }
+
+            boolean failed = false;
+            boolean aborted = true;
+            List<String> messages = new ArrayList<String>();
+            for (Map.Entry<String, Future<JobRunnerResponse>> future : futures.entrySet()) {
+                JobRunnerResponse response;
+                try {
+                    response = future.getValue().get();
+                } catch (ExecutionException e) {
+                    response = JobRunnerResponse.failed(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    response = JobRunnerResponse.aborted("interrupted");
+                }
+
+                failed |= response.getRunOutcome() == RunOutcome.FAILED;
+                aborted &= response.getRunOutcome() == RunOutcome.ABORTED;
+
+                String message = future.getKey() + ": " + response.getRunOutcome().name().toLowerCase();
+                if (response.getMessage() != null && !response.getMessage().isEmpty()) {
+                    message += " (" + response.getMessage() + ")";
+                }
+                messages.add(message);
+            }
+
+            String message = StringUtils.join(messages, "; ");
+            if (failed) {
+                return JobRunnerResponse.failed(message);
+            } else if (aborted) {
+                return JobRunnerResponse.aborted(message);
+            } else {
+                return JobRunnerResponse.success(message);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Process the INBOX of one profile.
+     * Runs may be triggered by the scheduler, REST and the IMAP IDLE listener at the same time.
+     * If the profile is already being processed on this node, the invocation waits for that run and returns its result.
+     * The progress of the invocation follows the run it started or joined.
+     */
+    JobRunnerResponse runProfile(final String profile, final MailConfigurationWrapper mailConfigurationWrapper, JobProgress progress) {
+        final JobProgress runProgress = new JobProgress();
+        ActiveRun run = new ActiveRun(new Callable<JobRunnerResponse>() {
+            public JobRunnerResponse call() {
+                return runLeased(profile, mailConfigurationWrapper, runProgress);
+            }
+        }, runProgress);
+
+        ActiveRun activeRun = activeRuns.putIfAbsent(profile, run);
+        if (activeRun != null) {
+            log.info("Mail2Blog: joining the active run of profile " + profile);
+            progress.follow(activeRun.progress);
+            return getResult(activeRun);
+        }
+
+        progress.follow(runProgress);
+
+        try {
+            run.run();
+            return getResult(run);
+        } finally {
+            activeRuns.remove(profile, run);
+        }
+    }
+
+    /**
+     * Wait for a run and return its result.
+     */
+    private static JobRunnerResponse getResult(FutureTask<JobRunnerResponse> run) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return run.get();
+                } catch (InterruptedException e) {
+                    // A run that got interrupted has a result nevertheless, only stop waiting for a run that's still active.
+                    interrupted = true;
+                    if (!run.isDone()) {
+                        return JobRunnerResponse.aborted("interrupted");
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            return JobRunnerResponse.failed(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Process the INBOX of one profile while holding its lease.
+     * Returns right away if another node holds the lease.
+     */
+    private JobRunnerResponse runLeased(String profile, MailConfigurationWrapper mailConfigurationWrapper, JobProgress progress) {
+        String mailboxKey = mailConfigurationWrapper.getMailboxKey();
+        String leaseName = getLockName(profile);
+
+        final RunBudget budget = RunBudget.of(mailConfigurationWrapper.getMailConfiguration());
+        String message = null;
+
+        JobLeaseManager.Lease lease;
+        try {
+            // Stop before the next message if the heartbeat failed and another node took over.
+            lease = jobLeaseManager.tryAcquire(leaseName, new Runnable() {
+                public void run() {
+                    budget.stop();
+                }
+            });
+        } catch (MailConfigurationManagerException e) {
+            log.error("Mail2Blog: " + e.toString(), e);
+            return JobRunnerResponse.failed(e);
+        }
+
+        if (lease == null) {
+            String owner = jobLeaseManager.getHolder(leaseName).getOwner();
+            log.info("Mail2Blog: profile " + profile + " is already being processed by " + owner);
+            return JobRunnerResponse.aborted(ALREADY_RUNNING_MESSAGE + owner);
+        }
+
         try {
-            MailConfigurationWrapper mailConfigurationWrapper = globalState.getMailConfigurationWrapper();
+            // Don't connect to a mail server that failed repeatedly until the backoff expired,
+            // then only let one trial run through.
+            if (!mailboxCircuitBreaker.allowRequest(mailboxKey)) {
+                return JobRunnerResponse.aborted(mailboxCircuitBreaker.getStatus(mailboxKey));
+            }
+
             @Cleanup Mailbox mailbox = newMailbox(mailConfigurationWrapper);
 
+            // Ask for the STATUS of the INBOX, before selecting it.
+            if (mailConfigurationWrapper.getMailConfiguration().getStatusCheck() && !mailbox.hasNewMessages()) {
+                log.info("Mail2Blog: no new messages");
+                return JobRunnerResponse.success(withBreakerStatus(IDLE_MESSAGE, mailboxCircuitBreaker.recordSuccess(mailboxKey)));
+            }
+
+            // Reject messages matching the search criteria before they are fetched.
+            rejectMessages(mailbox, progress);
+
             // Go through all messages in the INBOX.
             // Processed messages get deleted or moved into different folders.
             // Go through messages in reverse order to prevent messing up the
             // index when deleting messages from the top and to post the newest Mail as newest blog post.
-            Message[] messages = mailbox.getMessages();
-            for (int i = messages.length -1; i >= 0; i--) {
-                Message message = messages[i];
-
-                // Process message.
-                MessageTransaction transaction = MessageTransaction.builder()
-                .spaceExtractor(new SpaceExtractor(spaceKeyValidator))
-                .spaceManager(spaceManager)
-                .mailConfigurationWrapper(mailConfigurationWrapper)
-                .mailbox(mailbox)
-                .message(message)
-                .build();
-                getTransactionTemplate().execute(transaction);
+            int windowSize = mailConfigurationWrapper.getMailConfiguration().getWindowSize();
+            int partitions = mailConfigurationWrapper.getMailConfiguration().getPartitions();
+            if (partitions > 0) {
+                // Other nodes may still work on the current plan, a new plan would hand its UIDs out again.
+                MailboxPartitionPlan plan = getCheckpointManager().loadPartitionPlan(mailboxKey);
+                if (plan.getPartitions() <= 0 || !hasPendingPartitions(mailboxKey, plan)) {
+                    // Publish the UIDs for all nodes, this node helps processing them like any other node.
+                    plan = mailbox.newPartitionPlan(partitions);
+                    getCheckpointManager().savePartitionPlan(mailboxKey, plan);
+                    log.info("Mail2Blog: spread " + plan.getUids().size() + " messages over " + partitions + " partitions");
+                } else {
+                    log.info("Mail2Blog: continuing the partition plan " + plan.getId() + ", it has pending partitions");
+                }
+                processPartitions(profile, mailbox, mailConfigurationWrapper, plan, budget, progress);
+            } else if (windowSize > 0) {
+                processWindowed(mailbox, mailConfigurationWrapper, windowSize, budget, progress);
+            } else {
+                processMessages(mailbox, mailConfigurationWrapper, mailbox.getMessages(), budget, progress);
             }
+
+            if (lease.isLost()) {
+                // The node that took over continues from the last checkpoint.
+                mailboxCircuitBreaker.endTrial(mailboxKey);
+                return JobRunnerResponse.failed("lease lost, another node took over the run");
+            } else if (budget.isStopped()) {
+                // Continue below the last handled message next time.
+                // Partitions are checkpointed by the node that completes the plan.
+                if (partitions <= 0) {
+                    mailbox.saveResumePoint();
+                }
+                message = getPartialMessage(budget);
+                log.info("Mail2Blog: " + message);
+            } else if (partitions <= 0) {
+                // All messages have been handled, only fetch newer ones next time.
+                mailbox.saveCheckpoint();
+            }
+        } catch (MailboxException e) {
+            log.error("Mail2Blog: " + e.toString(), e);
+            mailboxCircuitBreaker.recordFailure(mailboxKey, mailConfigurationWrapper.getMailConfiguration().getCircuitBreakerThreshold());
+            return JobRunnerResponse.failed(e.toString() + " (" + mailboxCircuitBreaker.getStatus(mailboxKey) + ")");
+        } catch (Throwable e) {
+            log.error("Mail2Blog: " + e.toString(), e);
+            mailboxCircuitBreaker.endTrial(mailboxKey);
+            return JobRunnerResponse.failed(e);
+        } finally {
+            lease.close();
+        }
+
+        message = withBreakerStatus(message, mailboxCircuitBreaker.recordSuccess(mailboxKey));
+        return message != null ? JobRunnerResponse.success(message) : JobRunnerResponse.success();
+    }
+
+    /**
+     * Add the state of the circuit breaker to the message of a successful run, if the run closed the breaker.
+     */
+    private static String withBreakerStatus(String message, String breakerStatus) {
+        if (breakerStatus == null) {
+            return message;
+        }
+
+        return message != null ? message + " (" + breakerStatus + ")" : breakerStatus;
+    }
+
+    /**
+     * Describe a run that stopped at its budget or got interrupted.
+     */
+    private static String getPartialMessage(RunBudget budget) {
+        return PARTIAL_MESSAGE + "stopped after " + budget.getProcessed() + " messages, the next run continues from here";
+    }
+
+    /**
+     * Check if a response belongs to a run that stopped at its budget.
+     */
+    public static boolean isPartial(JobRunnerResponse response) {
+        return response.getRunOutcome() == RunOutcome.SUCCESS
+            && response.getMessage() != null
+            && response.getMessage().startsWith(PARTIAL_MESSAGE);
+    }
+
+    /**
+     * Process the pending partitions of the plan published by the coordinating node.
+     * Called on every node of the cluster by the Mail2BlogPartitionJob.
+     */
+    JobRunnerResponse runPartitions(String profile, MailConfigurationWrapper mailConfigurationWrapper) {
+        String mailboxKey = mailConfigurationWrapper.getMailboxKey();
+
+        // Don't connect to the mail server, if all partitions of the plan have been processed.
+        MailboxPartitionPlan plan = getCheckpointManager().loadPartitionPlan(mailboxKey);
+        if (plan.getPartitions() <= 0 || !hasPendingPartitions(mailboxKey, plan)) {
+            return JobRunnerResponse.success("no pending partitions");
+        }
+
+        if (!mailboxCircuitBreaker.allowRequest(mailboxKey)) {
+            return JobRunnerResponse.aborted(mailboxCircuitBreaker.getStatus(mailboxKey));
+        }
+
+        RunBudget budget = RunBudget.of(mailConfigurationWrapper.getMailConfiguration());
+        int count;
+        try {
+            @Cleanup Mailbox mailbox = newMailbox(mailConfigurationWrapper);
+            count = processPartitions(profile, mailbox, mailConfigurationWrapper, plan, budget, new JobProgress());
+        } catch (MailboxException e) {
+            log.error("Mail2Blog: " + e.toString(), e);
+            mailboxCircuitBreaker.recordFailure(mailboxKey, mailConfigurationWrapper.getMailConfiguration().getCircuitBreakerThreshold());
+            return JobRunnerResponse.failed(e.toString() + " (" + mailboxCircuitBreaker.getStatus(mailboxKey) + ")");
         } catch (Throwable e) {
             log.error("Mail2Blog: " + e.toString(), e);
+            mailboxCircuitBreaker.endTrial(mailboxKey);
             return JobRunnerResponse.failed(e);
         }
 
-        return JobRunnerResponse.success();
+        String breakerStatus = mailboxCircuitBreaker.recordSuccess(mailboxKey);
+        if (budget.isStopped()) {
+            return JobRunnerResponse.success(withBreakerStatus(getPartialMessage(budget), breakerStatus));
+        }
+
+        return JobRunnerResponse.success(withBreakerStatus("processed " + count + " messages", breakerStatus));
+    }
+
+    /**
+     * Check if a partition of a plan hasn't been processed yet.
+     */
+    private boolean hasPendingPartitions(String mailboxKey, MailboxPartitionPlan plan) {
+        for (int partition = 0; partition < plan.getPartitions(); partition++) {
+            if (getCheckpointManager().loadPartitionDone(mailboxKey, partition) != plan.getId()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Process all partitions of a plan that aren't processed yet and aren't locked by another node.
+     * A partition is processed while holding its cluster lock and its messages are flagged
+     * (moved out of the INBOX) before the lock gets released, so that no message is processed twice.
+     *
+     * A partition that was cut short by the budget stays pending for the next run.
+     *
+     * @return the number of processed messages
+     */
+    int processPartitions(
+        String profile,
+        Mailbox mailbox,
+        MailConfigurationWrapper mailConfigurationWrapper,
+        MailboxPartitionPlan plan,
+        RunBudget budget,
+        JobProgress progress
+    ) throws MailboxException {
+        String mailboxKey = mailConfigurationWrapper.getMailboxKey();
+        int count = 0;
+
+        // Start at a random partition, so that nodes starting at the same time don't compete for the same locks.
+        int offset = random.nextInt(plan.getPartitions());
+        for (int i = 0; i < plan.getPartitions() && !budget.isStopped(); i++) {
+            int partition = (offset + i) % plan.getPartitions();
+            if (getCheckpointManager().loadPartitionDone(mailboxKey, partition) == plan.getId()) {
+                continue;
+            }
+
+            // Skip partitions that another node is working on.
+            ClusterLock lock = getClusterLockService().getLockForName(getPartitionLockName(profile, plan.getId(), partition));
+            if (!lock.tryLock()) {
+                continue;
+            }
+
+            try {
+                // Check again, another node might have finished the partition before we got the lock.
+                if (getCheckpointManager().loadPartitionDone(mailboxKey, partition) == plan.getId()) {
+                    continue;
+                }
+
+                // Messages handled by another node under an older plan are gone from the INBOX.
+                Message[] messages = mailbox.getMessagesByUid(plan.getUidValidity(), plan.getUids(partition));
+                int before = budget.getProcessed();
+                processMessages(mailbox, mailConfigurationWrapper, messages, budget, progress);
+                count += budget.getProcessed() - before;
+                mailbox.commitFlags();
+
+                if (budget.isStopped()) {
+                    break;
+                }
+
+                try {
+                    getCheckpointManager().savePartitionDone(mailboxKey, partition, plan.getId());
+                } catch (MailConfigurationManagerException e) {
+                    // Not fatal, the handled messages are out of the INBOX and get skipped by the next node.
+                    log.warn("Mail2Blog: " + e.toString(), e);
+                    continue;
+                }
+
+                // The next plan only lists messages above the plan, once all of its partitions are done.
+                if (!hasPendingPartitions(mailboxKey, plan)) {
+                    mailbox.savePartitionCheckpoint(plan);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Flag messages that the server found with the reject criteria as invalid,
+     * without fetching them. The flags are committed right away, so the messages are out
+     * of the INBOX before the remaining messages get fetched.
+     */
+    private void rejectMessages(Mailbox mailbox, JobProgress progress) throws MailboxException {
+        Message[] messages = mailbox.searchRejected();
+        if (messages.length == 0) {
+            return;
+        }
+
+        // Only counted, their size isn't known without fetching them.
+        progress.addRejected(messages.length);
+
+        log.info("Mail2Blog: rejecting " + messages.length + " messages matching the search criteria");
+        for (Message message : messages) {
+            mailbox.flagAsInvalid(message);
+        }
+        mailbox.commitFlags();
+    }
+
+    /**
+     * Work through the INBOX in windows of windowSize messages, starting at the top.
+     * Every window is flagged and released before the next one gets fetched,
+     * so memory use doesn't depend on the number of messages in the INBOX.
+     * Moving messages out of a window doesn't change the sequence numbers of the windows below it.
+     */
+    private void processWindowed(
+        Mailbox mailbox,
+        MailConfigurationWrapper mailConfigurationWrapper,
+        int windowSize,
+        RunBudget budget,
+        JobProgress progress
+    ) throws MailboxException {
+        for (int end = mailbox.getCount(); end >= 1; end -= windowSize) {
+            int start = Math.max(1, end - windowSize + 1);
+
+            processMessages(mailbox, mailConfigurationWrapper, mailbox.getMessages(start, end), budget, progress);
+            mailbox.commitFlags();
+
+            if (mailbox.checkpointReached() || budget.isStopped()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Process messages in reverse order.
+     * Handled messages are removed from the array, so that they can be garbage collected
+     * while the remaining messages are processed.
+     * Stops between two messages, once the budget is used up.
+     */
+    private void processMessages(
+        Mailbox mailbox,
+        MailConfigurationWrapper mailConfigurationWrapper,
+        Message[] messages,
+        RunBudget budget,
+        JobProgress progress
+    ) {
+        progress.addSeen(messages.length);
+
+        int depth = mailConfigurationWrapper.getMailConfiguration().getPipelineDepth();
+        int workers = mailConfigurationWrapper.getMailConfiguration().getCommitWorkers();
+        if ((depth > 0 || workers > 1) && messages.length > 1) {
+            processPipelined(mailbox, mailConfigurationWrapper, messages, depth, workers, budget, progress);
+            return;
+        }
+
+        for (int i = messages.length -1; i >= 0 && budget.tryAcquire(); i--) {
+            processMessage(mailbox, mailConfigurationWrapper, messages[i], null, progress);
+            messages[i] = null;
+        }
+    }
+
+    /**
+     * Process messages in reverse order, while a fetcher thread downloads the next messages.
+     * Only messages up to maxPipelinedMessageSize are downloaded in advance,
+     * larger messages are read by the transaction as usual.
+     *
+     * With more than one worker, the messages are committed by a pool of worker threads.
+     * Workers only wait for each other if their messages go to the same space,
+     * so the order of the messages is only kept within a space.
+     */
+    private void processPipelined(
+        final Mailbox mailbox,
+        final MailConfigurationWrapper mailConfigurationWrapper,
+        Message[] messages,
+        int depth,
+        int workers,
+        final RunBudget budget,
+        final JobProgress progress
+    ) {
+        // Without a pipeline depth the workers share a queue, but nothing is downloaded in advance.
+        long maxBufferedSize = depth > 0 ? 1024L * 1024 * mailConfigurationWrapper.getMailConfiguration().getMaxPipelinedMessageSize() : -1;
+        final MessagePipeline pipeline = newMessagePipeline(messages, Math.max(depth, workers), maxBufferedSize, mailConfigurationWrapper);
+        pipeline.start();
+
+        ExecutorService executor = null;
+        boolean interrupted = false;
+        try {
+            if (workers <= 1) {
+                drain(pipeline, mailbox, mailConfigurationWrapper, budget, progress);
+                return;
+            }
+
+            executor = newWorkerExecutor(workers);
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws InterruptedException {
+                        drain(pipeline, mailbox, mailConfigurationWrapper, budget, progress);
+                        return null;
+                    }
+                }));
+            }
+
+            // Wait for all workers, before failing like a sequential run would.
+            RuntimeException failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new IllegalStateException("commit worker failed", e.getCause());
+                    }
+                }
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            // The plugin is shutting down. Stop like at the end of the budget,
+            // so that the checkpoint doesn't move past the messages that haven't been processed.
+            log.warn("Mail2Blog: run interrupted, the next run continues from here");
+            budget.stop();
+            interrupted = true;
+        } finally {
+            // Let the workers commit the messages they already took, before the run saves its checkpoint.
+            pipeline.close();
+            if (executor != null) {
+                executor.shutdown();
+                interrupted |= awaitTermination(executor);
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            // Messages after the one that failed to download haven't been queued.
+            if (pipeline.isFailed()) {
+                budget.stop();
+            }
+        }
+    }
+
+    /**
+     * Wait until all tasks of an executor finished.
+     *
+     * @return true if the current thread got interrupted while waiting
+     */
+    private static boolean awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    return interrupted;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    /**
+     * Process the messages of a pipeline until it's empty or the budget is used up.
+     * A message taken after the budget ran out is skipped, so that the resume point stays below it.
+     */
+    private void drain(
+        MessagePipeline pipeline,
+        Mailbox mailbox,
+        MailConfigurationWrapper mailConfigurationWrapper,
+        RunBudget budget,
+        JobProgress progress
+    ) throws InterruptedException {
+        MessagePipeline.Entry entry;
+        while ((entry = pipeline.take()) != null) {
+            if (!budget.tryAcquire()) {
+                mailbox.skip(entry.getMessage());
+                return;
+            }
+
+            processMessage(mailbox, mailConfigurationWrapper, entry.getMessage(), entry.getContent(), progress);
+        }
+    }
+
+    /**
+     * Process a single message in its own transaction.
+     * The spaces locked by the transaction are released once it's committed.
+     *
+     * @param content copy of the message downloaded in advance or null
+     */
+    private void processMessage(
+        Mailbox mailbox,
+        MailConfigurationWrapper mailConfigurationWrapper,
+        Message message,
+        Message content,
+        JobProgress progress
+    ) {
+        MessageTransaction transaction = MessageTransaction.builder()
+        .spaceExtractor(new SpaceExtractor(spaceKeyValidator))
+        .spaceManager(spaceManager)
+        .spaceLocks(spaceLocks)
+        .mailConfigurationWrapper(mailConfigurationWrapper)
+        .mailbox(mailbox)
+        .message(message)
+        .content(content)
+        .progress(progress)
+        .build();
+
+        try {
+            getTransactionTemplate().execute(transaction);
+        } finally {
+            spaceLocks.unlockAll();
+        }
+    }
+
+    /**
+     * Get the name of the cluster lock and lease of a profile.
+     * The default profile keeps the lock name used before profiles existed.
+     */
+    static String getLockName(String profile) {
+        if (MailConfigurationManager.DEFAULT_PROFILE.equals(profile)) {
+            return JOB_LOCK_NAME;
+        }
+
+        return JOB_LOCK_NAME + "." + profile;
+    }
+
+    /**
+     * Get the name of the cluster lock of a partition of a plan.
+     * The partitions of a plan depend on its number of partitions, so the lock name includes the plan.
+     */
+    static String getPartitionLockName(String profile, long planId, int partition) {
+        return getLockName(profile) + ".partition." + planId + "." + partition;
+    }
+
+    /**
+     * Create the executor used to poll profiles concurrently.
+     */
+    ExecutorService newProfileExecutor(int threads) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mail2blog-profile-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Create the executor used to commit messages in parallel.
+     */
+    ExecutorService newWorkerExecutor(int threads) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mail2blog-worker-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    MessagePipeline newMessagePipeline(
+        Message[] messages,
+        int depth,
+        long maxBufferedSize,
+        final MailConfigurationWrapper mailConfigurationWrapper
+    ) {
+        return new MessagePipeline(messages, depth, maxBufferedSize) {
+            @Override
+            boolean admit(Message message) {
+                return isAdmitted(mailConfigurationWrapper, message);
+            }
+        };
+    }
+
+    /**
+     * Run the envelope check of the transaction in advance, so that rejected messages aren't downloaded.
+     * The transaction checks the message again and flags it as invalid.
+     */
+    boolean isAdmitted(MailConfigurationWrapper mailConfigurationWrapper, Message message) {
+        try {
+            MessageToContentProcessor processor = new MessageToContentProcessor(mailConfigurationWrapper);
+            ContainerManager.autowireComponent(processor);
+            processor.admit(message);
+            return true;
+        } catch (MessageToContentProcessorException e) {
+            return false;
+        } catch (Exception e) {
+            // Leave the decision to the transaction.
+            log.debug("Mail2Blog: failed to check message in advance", e);
+            return true;
+        }
     }
 
     public TransactionTemplate getTransactionTemplate() {
         return StaticAccessor.getTransactionTemplate();
     }
 
+    public ClusterLockService getClusterLockService() {
+        return StaticAccessor.getClusterLockService();
+    }
+
+    public MailboxCheckpointManager getCheckpointManager() {
+        return StaticAccessor.getMailboxCheckpointManager();
+    }
+
     public Mailbox newMailbox(MailConfigurationWrapper mailConfigurationWrapper) throws MailboxException{
+        if (mailConfigurationWrapper.getMailConfiguration().getPoolConnections()) {
+            return new Mailbox(mailConfigurationWrapper, mailStorePool);
+        }
+
         return new Mailbox(mailConfigurationWrapper);
     }
 
     public String systemGetProperty(String key) {
         return System.getProperty(key);
     }
+
+    /**
+     * A run of a profile on this node, together with its progress for the invocations joining it.
+     */
+    private static class ActiveRun extends FutureTask<JobRunnerResponse> {
+        private final JobProgress progress;
+
+        ActiveRun(Callable<JobRunnerResponse> callable, JobProgress progress) {
+            super(callable);
+            this.progress = progress;
+        }
+    }
 }
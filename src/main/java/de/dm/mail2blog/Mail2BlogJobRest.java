@@ -1,22 +1,42 @@
 package de.dm.mail2blog;
 
 import com.atlassian.scheduler.JobRunnerResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.Setter;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by d0265672 on 27/03/2017.
  */
 @Path("/runner")
 public class Mail2BlogJobRest {
+    /**
+     * Media type of the progress stream (Server-Sent Events).
+     */
+    public static final String EVENT_STREAM = "text/event-stream";
+
+    /**
+     * Seconds between two progress events.
+     */
+    static final int STREAM_INTERVAL = 1;
+
     // Autowired
     @Setter @Autowired private Mail2BlogJob mail2BlogJob;
+    @Setter @Autowired private JobRunRegistry jobRunRegistry;
 
     @GET
     @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML})
@@ -25,7 +45,107 @@ public class Mail2BlogJobRest {
         JobRunnerResponse result = mail2BlogJob.runJob(null);
         Mail2BlogJobRestResponse response = new Mail2BlogJobRestResponse();
         response.setMessage(result.getMessage());
-        response.setStatus(result.getRunOutcome().name());
+        response.setStatus(getStatus(result));
         return Response.ok(response).build();
     }
+
+    /**
+     * Start a run in the background and return its id right away.
+     */
+    @POST
+    @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML})
+    @Path("/start")
+    public Response start() {
+        JobRunRegistry.JobRun run = jobRunRegistry.start();
+        return Response.status(Response.Status.ACCEPTED).entity(newResponse(run)).build();
+    }
+
+    /**
+     * Report the progress of a run started in the background, or its result once it's finished.
+     */
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML})
+    @Path("/status/{id}")
+    public Response status(@PathParam("id") String id) {
+        JobRunRegistry.JobRun run = jobRunRegistry.get(id);
+        if (run == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        return Response.ok(newResponse(run)).build();
+    }
+
+    /**
+     * Stream the progress of a run started in the background as Server-Sent Events.
+     * An event with the current progress is sent every second, the last event contains the result.
+     */
+    @GET
+    @Produces(EVENT_STREAM)
+    @Path("/stream/{id}")
+    public Response stream(@PathParam("id") String id) {
+        final JobRunRegistry.JobRun run = jobRunRegistry.get(id);
+        if (run == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+        StreamingOutput output = new StreamingOutput() {
+            public void write(OutputStream outputStream) throws IOException {
+                writeEvents(run, new OutputStreamWriter(outputStream, "UTF-8"));
+            }
+        };
+
+        return Response.ok(output, EVENT_STREAM).header("Cache-Control", "no-cache").build();
+    }
+
+    /**
+     * Write progress events until the run is finished or the client went away.
+     */
+    void writeEvents(JobRunRegistry.JobRun run, Writer writer) throws IOException {
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        try {
+            while (true) {
+                boolean finished = run.isFinished();
+                writer.write("data: " + objectMapper.writeValueAsString(newResponse(run)) + "\n\n");
+                writer.flush();
+
+                if (finished) {
+                    return;
+                }
+
+                run.awaitFinished(STREAM_INTERVAL, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Describe a run started in the background.
+     */
+    static Mail2BlogJobRestResponse newResponse(JobRunRegistry.JobRun run) {
+        Mail2BlogJobRestResponse response = new Mail2BlogJobRestResponse();
+        response.setRunId(run.getId());
+
+        JobRunnerResponse result = run.getResult();
+        if (result != null) {
+            response.setStatus(getStatus(result));
+            response.setMessage(result.getMessage());
+        } else {
+            response.setStatus("RUNNING");
+        }
+
+        JobProgress progress = run.getProgress();
+        response.setMessagesSeen(progress.getSeen());
+        response.setMessagesProcessed(progress.getProcessed());
+        response.setMessagesInvalid(progress.getInvalid());
+        response.setBytes(progress.getBytes());
+        response.setElapsed(progress.getElapsed());
+
+        return response;
+    }
+
+    private static String getStatus(JobRunnerResponse result) {
+        return Mail2BlogJob.isPartial(result) ? "PARTIAL" : result.getRunOutcome().name();
+    }
 }
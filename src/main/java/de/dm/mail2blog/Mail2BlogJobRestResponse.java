@@ -13,4 +13,12 @@ import java.io.Serializable;
 public class Mail2BlogJobRestResponse implements Serializable {
     String status = "";
     String message = "";
+
+    // Progress of runs started asynchronously.
+    String runId = "";
+    int messagesSeen = 0;
+    int messagesProcessed = 0;
+    int messagesInvalid = 0;
+    long bytes = 0;
+    long elapsed = 0;
 }
@@ -0,0 +1,66 @@
+package de.dm.mail2blog;
+
+import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.status.RunOutcome;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The job triggered by confluence on every node of the cluster that helps processing
+ * the partitions published by the Mail2BlogJob, if partitioned processing is enabled.
+ *
+ * The Mail2BlogJob runs on a single node and acts as coordinator: it lists the UIDs of the INBOX
+ * and stores them as partition plan. Every node then claims the partitions of the plan through cluster locks.
+ */
+@Slf4j
+@Component
+@ExportAsService
+public class Mail2BlogPartitionJob implements JobRunner
+{
+    // Auto wired components.
+    @Setter @Autowired private GlobalState globalState;
+    @Setter @Autowired private Mail2BlogJob mail2BlogJob;
+
+    /**
+     * The main method of this job.
+     * Called by confluence on every node every time the partition trigger fires.
+     */
+    public JobRunnerResponse runJob(JobRunnerRequest jobRunnerRequest) {
+        if ("true".equals(mail2BlogJob.systemGetProperty("atlassian.mail.fetchdisabled"))) {
+            return JobRunnerResponse.aborted("Aborting because of atlassian.mail.fetchdisabled=true.");
+        }
+
+        if ("true".equals(mail2BlogJob.systemGetProperty("atlassian.mail.popdisabled"))) {
+            return JobRunnerResponse.aborted("Aborting because of atlassian.mail.popdisabled=true.");
+        }
+
+        boolean failed = false;
+        List<String> messages = new ArrayList<String>();
+        for (Map.Entry<String, MailConfigurationWrapper> profile : globalState.getMailConfigurationWrappers().entrySet()) {
+            if (profile.getValue().getMailConfiguration().getPartitions() <= 0) {
+                continue;
+            }
+
+            JobRunnerResponse response = mail2BlogJob.runPartitions(profile.getKey(), profile.getValue());
+            failed |= response.getRunOutcome() == RunOutcome.FAILED;
+            messages.add(profile.getKey() + ": " + response.getMessage());
+        }
+
+        if (messages.isEmpty()) {
+            return JobRunnerResponse.success("partitioned processing disabled");
+        }
+
+        String message = StringUtils.join(messages, "; ");
+        return failed ? JobRunnerResponse.failed(message) : JobRunnerResponse.success(message);
+    }
+}
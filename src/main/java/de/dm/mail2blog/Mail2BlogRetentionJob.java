@@ -0,0 +1,128 @@
+package de.dm.mail2blog;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.status.RunOutcome;
+import lombok.Cleanup;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The job triggered by confluence once a day that archives or deletes old messages
+ * in the Processed and Invalid folders, so that these folders don't grow forever.
+ *
+ * Runs separately from the Mail2BlogJob, so that the main job isn't slowed down by the bulk moves.
+ */
+@Slf4j
+@Component
+@ExportAsService
+public class Mail2BlogRetentionJob implements JobRunner
+{
+    /**
+     * Name of the cluster lock that prevents two retention runs at the same time.
+     */
+    public static final String LOCK_NAME = MailConfigurationManager.PLUGIN_KEY + ".retention";
+
+    // Auto wired components.
+    @Setter @Autowired private GlobalState globalState;
+    @Setter @Autowired private Mail2BlogJob mail2BlogJob;
+    @Setter @Autowired private MailboxCircuitBreaker mailboxCircuitBreaker;
+
+    /**
+     * The main method of this job.
+     * Called by confluence every time the retention trigger fires.
+     * Applies the retention of every profile that has it enabled, one after another.
+     */
+    public JobRunnerResponse runJob(JobRunnerRequest jobRunnerRequest) {
+        Map<String, MailConfigurationWrapper> profiles = new LinkedHashMap<String, MailConfigurationWrapper>();
+        for (Map.Entry<String, MailConfigurationWrapper> profile : globalState.getMailConfigurationWrappers().entrySet()) {
+            if (isRetentionEnabled(profile.getValue().getMailConfiguration())) {
+                profiles.put(profile.getKey(), profile.getValue());
+            }
+        }
+
+        if (profiles.isEmpty()) {
+            return JobRunnerResponse.success("retention disabled");
+        }
+
+        ClusterLock lock = getClusterLockService().getLockForName(LOCK_NAME);
+        if (!lock.tryLock()) {
+            return JobRunnerResponse.aborted("retention already running on another node");
+        }
+
+        try {
+            if (profiles.size() == 1) {
+                return applyRetention(profiles.values().iterator().next());
+            }
+
+            // A failing profile doesn't keep the other profiles from being cleaned up.
+            boolean failed = false;
+            boolean aborted = true;
+            List<String> messages = new ArrayList<String>();
+            for (Map.Entry<String, MailConfigurationWrapper> profile : profiles.entrySet()) {
+                JobRunnerResponse response = applyRetention(profile.getValue());
+                failed |= response.getRunOutcome() == RunOutcome.FAILED;
+                aborted &= response.getRunOutcome() == RunOutcome.ABORTED;
+                messages.add(profile.getKey() + ": " + response.getMessage());
+            }
+
+            String message = StringUtils.join(messages, "; ");
+            if (failed) {
+                return JobRunnerResponse.failed(message);
+            } else if (aborted) {
+                return JobRunnerResponse.aborted(message);
+            } else {
+                return JobRunnerResponse.success(message);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Archive or delete the old messages of one profile.
+     */
+    private JobRunnerResponse applyRetention(MailConfigurationWrapper mailConfigurationWrapper) {
+        MailConfiguration mailConfiguration = mailConfigurationWrapper.getMailConfiguration();
+
+        // Don't bother a mail server that the main job can't reach, leave the trial run to the main job.
+        if (mailboxCircuitBreaker.isOpen(mailConfigurationWrapper.getMailboxKey())) {
+            return JobRunnerResponse.aborted(mailboxCircuitBreaker.getStatus(mailConfigurationWrapper.getMailboxKey()));
+        }
+
+        try {
+            @Cleanup Mailbox mailbox = mail2BlogJob.newMailbox(mailConfigurationWrapper);
+            int count = mailbox.applyRetention();
+
+            String action = mailConfiguration.getRetentionExpunge() ? "deleted " : "archived ";
+            log.info("Mail2Blog: " + action + count + " messages older than " + mailConfiguration.getRetentionDays() + " days");
+            return JobRunnerResponse.success(action + count + " messages");
+        } catch (Throwable e) {
+            log.error("Mail2Blog: " + e.toString(), e);
+            return JobRunnerResponse.failed(e);
+        }
+    }
+
+    /**
+     * Check if old messages should be cleaned up, only possible with IMAP.
+     */
+    private static boolean isRetentionEnabled(MailConfiguration mailConfiguration) {
+        return mailConfiguration.getRetentionDays() > 0 && mailConfiguration.getProtocol().endsWith("imap");
+    }
+
+    public ClusterLockService getClusterLockService() {
+        return StaticAccessor.getClusterLockService();
+    }
+}
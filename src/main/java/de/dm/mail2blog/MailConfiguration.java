@@ -80,7 +80,91 @@ public class MailConfiguration {
     // with xstream/bandana storage and to edit it with a textfield on the administration page.
     @NonNull private String allowedFileTypes;
 
+    // If set to true, an IMAP IDLE connection is kept open on the INBOX
+    // and new messages are processed immediately instead of waiting for the next poll.
+    @NonNull private boolean imapIdle;
+
+    // If set to true, processed and invalid messages are moved in bulk at the end of a run
+    // instead of one by one (IMAP only).
+    @NonNull private boolean deferredFlagging;
+
+    // If set to true, only messages with a UID higher than the highest UID processed in
+    // a previous run are fetched (IMAP only).
+    @NonNull private boolean incrementalFetch;
+
+    // If set to true, the connection to the mail server is kept open between runs (IMAP only).
+    @NonNull private boolean poolConnections;
+
+    // If set to true, large message parts are fetched in chunks of fetchSize KB
+    // instead of downloading them with one command (IMAP only).
+    @NonNull private boolean partialFetch;
+    @NonNull private int fetchSize;
+
+    // Read and write timeout for the connection to the mail server in seconds.
+    // If set to 0 javax.mail waits forever, like before the timeout could be configured.
+    @NonNull private int timeout;
+
+    // Number of consecutive failed runs after which runs are skipped for a while.
+    // If set to 0 runs are never skipped.
+    @NonNull private int circuitBreakerThreshold;
+
+    // If set to true, handled messages are left on the server and their UIDLs are remembered
+    // instead of deleting them (POP3 only).
+    @NonNull private boolean leaveOnServer;
+
+    // If set to true, the IMAP COMPRESS=DEFLATE extension is used if the server supports it (IMAP only).
+    @NonNull private boolean compress;
+
+    // If set to true, a run ends right away if STATUS reports that no messages
+    // arrived since the last run, without selecting the INBOX (IMAP only).
+    @NonNull private boolean statusCheck;
+
+    // Messages matching the following criteria are searched for on the server
+    // and flagged as invalid without being downloaded (IMAP only).
+    // Reject messages older than maxMessageAge days, 0 -> no limit.
+    @NonNull private int maxMessageAge;
+
+    // Reject messages larger than maxAllowedAttachmentSize.
+    @NonNull private boolean rejectOversized;
+
+    // Comma separated list of sender domains to accept.
+    // Empty string -> accept all domains.
+    @NonNull private String allowedSenderDomains;
+
+    // Messages in the Processed and Invalid folders received more than retentionDays days ago
+    // are moved into monthly archive folders by the retention job, 0 -> keep messages forever (IMAP only).
+    @NonNull private int retentionDays;
+
+    // If set to true, messages older than retentionDays are deleted instead of being archived.
+    @NonNull private boolean retentionExpunge;
+
+    // Number of messages fetched and processed at once.
+    // If set to 0 all messages in the INBOX are fetched at once.
+    @NonNull private int windowSize;
+
+    // Number of messages downloaded in advance by a separate thread, while the current message is saved.
+    // If set to 0 messages are downloaded one at a time, when they are processed.
+    @NonNull private int pipelineDepth;
+
+    // Messages larger than maxPipelinedMessageSize MB aren't downloaded in advance, but when they are saved.
+    @NonNull private int maxPipelinedMessageSize;
+
+    // Number of threads saving messages at the same time, messages for the same space are saved one after another.
+    // If set to 1 messages are saved one at a time in the order they arrived.
+    @NonNull private int commitWorkers;
+
+    // Seconds and number of messages a single run may spend on the mailbox, 0 -> no limit.
+    // A run that reaches its budget stops between two messages and the next run continues from there.
+    @NonNull private int timeBudget;
+    @NonNull private int messageBudget;
+
+    // Number of hash partitions the messages of the INBOX are spread over, so that all cluster nodes
+    // can process the same mailbox. 0 -> only the node running the job processes messages (IMAP only).
+    @NonNull private int partitions;
+
     // Builder class with default values.
+    // Stored configurations are read with these defaults, so new features must be off by default,
+    // otherwise they get switched on silently when the plugin is upgraded.
     @JsonPOJOBuilder(buildMethodName = "build", withPrefix = "")
     @JsonIgnoreProperties(ignoreUnknown = true)
     public static class MailConfigurationBuilder
@@ -115,5 +199,28 @@ public class MailConfiguration {
             getClass().getClassLoader().getResourceAsStream("filetypes.txt"),
             "UTF-8"
         ).useDelimiter("\\A").next();
+        private boolean imapIdle = false;
+        private boolean deferredFlagging = false;
+        private boolean incrementalFetch = false;
+        private boolean poolConnections = false;
+        private boolean partialFetch = true; // Default of javax.mail
+        private int fetchSize = 16; // Default of javax.mail
+        private boolean compress = false;
+        private boolean leaveOnServer = false;
+        private int timeout = 0;
+        private int circuitBreakerThreshold = 0;
+        private boolean statusCheck = false;
+        private int windowSize = 0;
+        private int pipelineDepth = 0;
+        private int maxPipelinedMessageSize = 4;
+        private int commitWorkers = 1;
+        private int timeBudget = 0;
+        private int messageBudget = 0;
+        private int partitions = 0;
+        private int maxMessageAge = 0;
+        private boolean rejectOversized = false;
+        private String allowedSenderDomains = "";
+        private int retentionDays = 0;
+        private boolean retentionExpunge = false;
     }
 }
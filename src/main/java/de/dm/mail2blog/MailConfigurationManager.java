@@ -10,6 +10,9 @@ import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -22,6 +25,21 @@ import java.util.Map;
 public class MailConfigurationManager {
     public static final String PLUGIN_KEY = "de.dm.mail2blog";
 
+    /**
+     * Bandana key of the additional mailbox profiles, stored as map from profile name to configuration.
+     */
+    public static final String PROFILES_KEY = PLUGIN_KEY + ".profiles";
+
+    /**
+     * Name of the profile stored under PLUGIN_KEY, the configuration used before profiles existed.
+     */
+    public static final String DEFAULT_PROFILE = "default";
+
+    /**
+     * Pattern of valid profile names.
+     */
+    public static final String PROFILE_NAME_PATTERN = "[a-z0-9_-]{1,32}";
+
     public MailConfiguration loadConfig()
     {
         MailConfiguration mailConfiguration = null;
@@ -71,6 +89,112 @@ public class MailConfigurationManager {
 
     }
 
+    /**
+     * Get the names of all profiles, starting with the default profile.
+     */
+    public List<String> loadProfileNames() {
+        List<String> names = new ArrayList<String>();
+        names.add(DEFAULT_PROFILE);
+        names.addAll(loadProfileMaps().keySet());
+        return names;
+    }
+
+    /**
+     * Load the configuration of a profile.
+     *
+     * @return the configuration or a new default configuration if the profile doesn't exist yet
+     */
+    public MailConfiguration loadConfig(@NonNull String profile) {
+        if (DEFAULT_PROFILE.equals(profile)) {
+            return loadConfig();
+        }
+
+        MailConfiguration mailConfiguration = null;
+
+        try {
+            Map<String, Object> map = loadProfileMaps().get(profile);
+            if (map != null) {
+                mailConfiguration = new ObjectMapper().convertValue(map, MailConfiguration.class);
+            }
+        } catch (Exception e) {
+            log.error("Mail2Blog: failed to load config of profile " + profile, e);
+        }
+
+        if (mailConfiguration == null) {
+            mailConfiguration = MailConfiguration.builder().build();
+        }
+
+        return mailConfiguration;
+    }
+
+    /**
+     * Save the configuration of a profile.
+     */
+    public void saveConfig(@NonNull String profile, @NonNull MailConfiguration mailConfiguration)
+    throws MailConfigurationManagerException
+    {
+        if (DEFAULT_PROFILE.equals(profile)) {
+            saveConfig(mailConfiguration);
+            return;
+        }
+
+        if (!profile.matches(PROFILE_NAME_PATTERN)) {
+            throw new MailConfigurationManagerException("invalid profile name " + profile);
+        }
+
+        try {
+            Map<String, Map<String, Object>> profiles = loadProfileMaps();
+            profiles.put(profile, new ObjectMapper().convertValue(mailConfiguration, Map.class));
+            getBandanaManager().setValue(newGlobalConfluenceBandaContext(), PROFILES_KEY, profiles);
+        } catch (Exception e) {
+            throw new MailConfigurationManagerException("failed to save configuration", e);
+        }
+
+        // Read back the configuration from storage and make sure that it equals the given config.
+        if (!mailConfiguration.equals(loadConfig(profile))) {
+            throw new MailConfigurationManagerException("failed to save configuration");
+        }
+    }
+
+    /**
+     * Remove a profile, the default profile can't be removed.
+     */
+    public void deleteProfile(@NonNull String profile)
+    throws MailConfigurationManagerException
+    {
+        if (DEFAULT_PROFILE.equals(profile)) {
+            throw new MailConfigurationManagerException("the default profile can't be deleted");
+        }
+
+        try {
+            Map<String, Map<String, Object>> profiles = loadProfileMaps();
+            profiles.remove(profile);
+            getBandanaManager().setValue(newGlobalConfluenceBandaContext(), PROFILES_KEY, profiles);
+        } catch (Exception e) {
+            throw new MailConfigurationManagerException("failed to delete profile", e);
+        }
+    }
+
+    /**
+     * Get the stored profiles (except the default profile) as maps by name.
+     */
+    private Map<String, Map<String, Object>> loadProfileMaps() {
+        Map<String, Map<String, Object>> profiles = new LinkedHashMap<String, Map<String, Object>>();
+
+        Object object = getBandanaManager().getValue(newGlobalConfluenceBandaContext(), PROFILES_KEY);
+        if (object instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                if (entry.getKey() instanceof String && entry.getValue() instanceof Map) {
+                    profiles.put((String) entry.getKey(), (Map<String, Object>) entry.getValue());
+                }
+            }
+        } else if (object != null) {
+            log.error("Mail2Blog: failed to load profiles, invalid type returned");
+        }
+
+        return profiles;
+    }
+
     // PluginSettingsManager seems to be broken in newer confluence versions.
     // This is why bandana manager is used directly.
     // Couldn't get Autowiring to work for BandanaManager.
@@ -6,6 +6,10 @@ import de.dm.mail2blog.base.FileTypeBucketException;
 import de.dm.mail2blog.base.Mail2BlogBaseConfiguration;
 import lombok.Setter;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Wrapper around a mail configuration bean, that provides additional methods and
  * properties created at runtime.
@@ -85,6 +89,64 @@ public class MailConfigurationWrapper {
         .build();
     }
 
+    /**
+     * Get the sender domains from mailConfiguration.allowedSenderDomains in lower case.
+     *
+     * @return the domains or an empty list if all domains are accepted
+     */
+    public List<String> getAllowedSenderDomains() {
+        List<String> domains = new ArrayList<String>();
+        for (String domain : mailConfiguration.getAllowedSenderDomains().split("[,\\s]+")) {
+            if (!domain.isEmpty()) {
+                domains.add(domain.toLowerCase());
+            }
+        }
+
+        return domains;
+    }
+
+    /**
+     * Get a key that identifies the mailbox described by the configuration.
+     * Used to store state (like checkpoints) per mailbox.
+     */
+    public String getMailboxKey() {
+        return mailConfiguration.getProtocol()
+            + "://" + mailConfiguration.getUsername()
+            + "@" + mailConfiguration.getServer()
+            + ":" + mailConfiguration.getPort();
+    }
+
+    /**
+     * Get a key that changes whenever one of the settings used to connect to the mailbox changes.
+     * Used to discard pooled connections after the configuration got changed.
+     */
+    public String getConnectionKey() {
+        String settings = mailConfiguration.getProtocol()
+            + "\n" + mailConfiguration.getServer()
+            + "\n" + mailConfiguration.getPort()
+            + "\n" + mailConfiguration.getSecure()
+            + "\n" + mailConfiguration.getCheckCertificates()
+            + "\n" + mailConfiguration.getSslVersions()
+            + "\n" + mailConfiguration.getUsername()
+            + "\n" + mailConfiguration.getPassword()
+            + "\n" + mailConfiguration.getPartialFetch()
+            + "\n" + mailConfiguration.getFetchSize()
+            + "\n" + mailConfiguration.getCompress()
+            + "\n" + mailConfiguration.getTimeout();
+
+        // Don't keep the password around in plain text.
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(settings.getBytes("UTF-8"))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException("failed to hash connection settings", e);
+        }
+    }
+
     public SettingsManager getSettingsManager() {
         return StaticAccessor.getSettingsManager();
     }
@@ -0,0 +1,129 @@
+package de.dm.mail2blog;
+
+import com.sun.mail.util.MailSSLSocketFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps authenticated mail stores open between job runs for the lifetime of the plugin,
+ * so that polling an empty mailbox doesn't pay for TCP connect, TLS handshake and login every time.
+ *
+ * A store is handed out to one mailbox at a time. Stores are discarded when they no longer
+ * answer to a NOOP or when the server or credential settings of the mailbox changed.
+ */
+@Slf4j
+@Component
+public class MailStorePool implements DisposableBean {
+    /**
+     * Idle stores by mailbox key.
+     */
+    private final Map<String, PooledStore> idleStores = new HashMap<String, PooledStore>();
+
+    /**
+     * Socket factory shared by all connections that don't check certificates.
+     * Sharing the factory allows the JSSE session cache to resume TLS sessions on reconnect.
+     */
+    private MailSSLSocketFactory trustAllSocketFactory;
+
+    /**
+     * Take an idle store out of the pool.
+     *
+     * @param mailboxKey the key of the mailbox
+     * @param connectionKey the key of the connection settings used to create the store
+     * @return a connected store or null if there is no usable store in the pool
+     */
+    public Store borrow(String mailboxKey, String connectionKey) {
+        PooledStore pooledStore;
+        synchronized (this) {
+            pooledStore = idleStores.remove(mailboxKey);
+        }
+
+        if (pooledStore == null) {
+            return null;
+        }
+
+        // The server or credential settings changed.
+        if (!pooledStore.connectionKey.equals(connectionKey)) {
+            closeQuietly(pooledStore.store);
+            return null;
+        }
+
+        // isConnected() sends a NOOP to check that the connection is still alive.
+        if (!pooledStore.store.isConnected()) {
+            closeQuietly(pooledStore.store);
+            return null;
+        }
+
+        return pooledStore.store;
+    }
+
+    /**
+     * Put a store back into the pool.
+     * A store previously pooled for the same mailbox gets closed.
+     */
+    public void release(String mailboxKey, String connectionKey, Store store) {
+        PooledStore previous;
+        synchronized (this) {
+            previous = idleStores.put(mailboxKey, new PooledStore(connectionKey, store));
+        }
+
+        if (previous != null && previous.store != store) {
+            closeQuietly(previous.store);
+        }
+    }
+
+    /**
+     * Get the socket factory used for secure connections without certificate checks.
+     */
+    public synchronized MailSSLSocketFactory getTrustAllSocketFactory() throws GeneralSecurityException {
+        if (trustAllSocketFactory == null) {
+            trustAllSocketFactory = new MailSSLSocketFactory();
+            trustAllSocketFactory.setTrustAllHosts(true);
+        }
+
+        return trustAllSocketFactory;
+    }
+
+    /**
+     * Close all pooled stores, called by spring when the plugin gets disabled.
+     */
+    public void destroy() {
+        Map<String, PooledStore> stores;
+        synchronized (this) {
+            stores = new HashMap<String, PooledStore>(idleStores);
+            idleStores.clear();
+        }
+
+        for (PooledStore pooledStore : stores.values()) {
+            closeQuietly(pooledStore.store);
+        }
+    }
+
+    private void closeQuietly(Store store) {
+        try {
+            store.close();
+        } catch (MessagingException e) {
+            log.debug("Mail2Blog: failed to close pooled mail store", e);
+        }
+    }
+
+    /**
+     * A store together with the connection settings it was created with.
+     */
+    private static class PooledStore {
+        private final String connectionKey;
+        private final Store store;
+
+        PooledStore(String connectionKey, Store store) {
+            this.connectionKey = connectionKey;
+            this.store = store;
+        }
+    }
+}
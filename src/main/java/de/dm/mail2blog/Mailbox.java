@@ -1,18 +1,54 @@
 package de.dm.mail2blog;
 
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.Status;
+import com.sun.mail.pop3.POP3Folder;
+import com.sun.mail.pop3.POP3Message;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
 
 import javax.mail.*;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SizeTerm;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
  * Read messages from mailbox and move messages around in folders.
  */
+@Slf4j
 public class Mailbox implements IMailboxFlagFeature {
+    /**
+     * Headers evaluated by space rules, prefetched together with the envelope.
+     */
+    static final String[] PREFETCH_HEADERS = new String[]{"From", "To", "Cc", "Subject"};
+
+    /**
+     * Items requested by the STATUS pre-check.
+     */
+    static final String[] STATUS_ITEMS = new String[]{"MESSAGES", "UIDNEXT", "UIDVALIDITY"};
+
     /**
      * The configuration used to access the mailbox.
      */
-    private MailConfigurationWrapper mailConfigurationWrapper;
+    @Getter private MailConfigurationWrapper mailConfigurationWrapper;
 
     /**
      * The strategy to use to flag messages (depends on the protocol used).
@@ -29,11 +65,79 @@ public class Mailbox implements IMailboxFlagFeature {
      */
     private Folder defaultFolder;
 
+    /**
+     * Folders used to flag messages (Processed/Invalid).
+     * They are opened once per run and closed when the mailbox gets closed.
+     */
+    private final Map<String, Folder> flagFolders = new LinkedHashMap<String, Folder>();
+
+    /**
+     * True if the flag folders are located below the ROOT folder instead of the INBOX,
+     * null as long as this hasn't been determined.
+     */
+    @Getter @Setter private Boolean flagFoldersBelowRoot;
+
+    /**
+     * UIDVALIDITY of the INBOX when fetching incrementally, -1 otherwise.
+     */
+    private long uidValidity = -1;
+
+    /**
+     * Highest UID of the messages returned by getMessages().
+     */
+    private long highestUid = 0;
+
+    /**
+     * Highest UID handled by previous runs, messages up to this UID are skipped.
+     */
+    private long lastUid = 0;
+
+    /**
+     * UID below which this run continues the previous run that stopped early, 0 if the previous run finished.
+     * Only messages between lastUid and resumeUid are fetched, until the previous run has been completed.
+     */
+    private long resumeUid = 0;
+
+    /**
+     * Lowest UID of the messages flagged by this run, 0 if none have been flagged.
+     */
+    private long lowestFlaggedUid = 0;
+
+    /**
+     * Highest UID of the messages this run fetched but skipped, 0 if none have been skipped.
+     */
+    private long highestSkippedUid = 0;
+
+    /**
+     * UIDLs of the POP3 messages that have been handled and were left on the server, null if not loaded yet.
+     */
+    private Pop3UidlIndex uidlIndex;
+
+    /**
+     * True once the UIDLs of all POP3 messages have been read.
+     */
+    private boolean uidlsFetched = false;
+
+    /**
+     * The STATUS of the INBOX reported by hasNewMessages(), null if it hasn't been requested.
+     */
+    private Status status;
+
+    /**
+     * True once getMessages(start, end) returned a window reaching down to the checkpoint.
+     */
+    private boolean checkpointReached = false;
+
     /**
      * The Mailstore to use.
      */
     private Store store;
 
+    /**
+     * Pool to take the store from and to return it to on close, null if the store isn't pooled.
+     */
+    private MailStorePool storePool;
+
     /**
      * Create a new Mailbox
      */
@@ -41,13 +145,28 @@ public class Mailbox implements IMailboxFlagFeature {
         this.mailConfigurationWrapper = mailConfigurationWrapper;
     }
 
+    /**
+     * Create a new Mailbox, that keeps its store open in the given pool after being closed.
+     * Only IMAP stores are pooled.
+     */
+    public Mailbox(MailConfigurationWrapper mailConfigurationWrapper, MailStorePool storePool) {
+        this.mailConfigurationWrapper = mailConfigurationWrapper;
+        if (mailConfigurationWrapper.getMailConfiguration().getProtocol().endsWith("imap")) {
+            this.storePool = storePool;
+        }
+    }
+
     IMailboxFlagFeature getFlagStrategy() throws MailboxException {
         if (this.flagStrategy == null) {
             // Choose flag strategy based on protocol.
             if (mailConfigurationWrapper.getMailConfiguration().getProtocol().endsWith("pop3")) {
-                this.flagStrategy = new Pop3MailboxFlagStrategy(this);
+                Pop3MailboxFlagStrategy pop3MailboxFlagStrategy = new Pop3MailboxFlagStrategy(this);
+                pop3MailboxFlagStrategy.setLeaveOnServer(mailConfigurationWrapper.getMailConfiguration().getLeaveOnServer());
+                this.flagStrategy = pop3MailboxFlagStrategy;
             } else if (mailConfigurationWrapper.getMailConfiguration().getProtocol().endsWith("imap")) {
-                this.flagStrategy = new ImapMailboxFlagStrategy(this);
+                ImapMailboxFlagStrategy imapMailboxFlagStrategy = new ImapMailboxFlagStrategy(this);
+                imapMailboxFlagStrategy.setDeferred(mailConfigurationWrapper.getMailConfiguration().getDeferredFlagging());
+                this.flagStrategy = imapMailboxFlagStrategy;
             } else {
                 throw new MailboxException("unsupported protocol " + mailConfigurationWrapper.getMailConfiguration().getProtocol());
             }
@@ -69,6 +188,14 @@ public class Mailbox implements IMailboxFlagFeature {
                 throw new MailboxException("incomplete mail configuration settings, this message will go away once you successfully save the configuration on the configuration page");
             }
 
+            // Reuse an authenticated store from a previous run.
+            if (storePool != null) {
+                this.store = storePool.borrow(mailConfigurationWrapper.getMailboxKey(), mailConfigurationWrapper.getConnectionKey());
+                if (this.store != null) {
+                    return this.store;
+                }
+            }
+
             // Create the properties for the session.
             Properties prop = new Properties();
 
@@ -98,6 +225,15 @@ public class Mailbox implements IMailboxFlagFeature {
             } else {
                 prop.setProperty(propertyPrefix + ".ssl.trust", "*");
                 prop.setProperty(propertyPrefix + ".ssl.checkserveridentity", "false");
+
+                // Share the socket factory between connections, so that TLS sessions can be resumed.
+                if (storePool != null && mailConfigurationWrapper.getMailConfiguration().getSecure()) {
+                    try {
+                        prop.put(propertyPrefix + ".ssl.socketFactory", storePool.getTrustAllSocketFactory());
+                    } catch (GeneralSecurityException e) {
+                        throw new MailboxException("failed to create ssl socket factory", e);
+                    }
+                }
             }
 
             if (!StringUtils.isBlank(mailConfigurationWrapper.getMailConfiguration().getSslVersions())) {
@@ -107,6 +243,29 @@ public class Mailbox implements IMailboxFlagFeature {
             // Set connection timeout (10 seconds).
             prop.setProperty(propertyPrefix + ".connectiontimeout", "10000");
 
+            // Set read and write timeout, so that a stalled server can't block the job forever.
+            if (mailConfigurationWrapper.getMailConfiguration().getTimeout() > 0) {
+                String timeout = "" + (1000 * mailConfigurationWrapper.getMailConfiguration().getTimeout());
+                prop.setProperty(propertyPrefix + ".timeout", timeout);
+                prop.setProperty(propertyPrefix + ".writetimeout", timeout);
+            }
+
+            // Fetch large message parts in chunks of fetchSize KB instead of one FETCH per part.
+            // This only limits the size of a single FETCH response, the parser still reads whole parts into memory.
+            prop.setProperty(propertyPrefix + ".partialfetch", "" + mailConfigurationWrapper.getMailConfiguration().getPartialFetch());
+            prop.setProperty(propertyPrefix + ".fetchsize", "" + (1024 * mailConfigurationWrapper.getMailConfiguration().getFetchSize()));
+
+            // Spool retrieved POP3 messages to a temporary file instead of keeping them in memory.
+            // Headers are read with TOP n 0 by default, so the envelope checks don't retrieve whole messages.
+            if (mailConfigurationWrapper.getMailConfiguration().getProtocol().endsWith("pop3")) {
+                prop.setProperty(propertyPrefix + ".filecache.enable", "true");
+            }
+
+            // Negotiate COMPRESS=DEFLATE (RFC 4978), javax.mail only enables it if the server announces it.
+            if (mailConfigurationWrapper.getMailConfiguration().getProtocol().endsWith("imap")) {
+                prop.setProperty(propertyPrefix + ".compress.enable", "" + mailConfigurationWrapper.getMailConfiguration().getCompress());
+            }
+
             // Get the session for connecting to the mail server.
             Session session = getSessionInstance(prop, null);
 
@@ -145,6 +304,10 @@ public class Mailbox implements IMailboxFlagFeature {
         return Session.getInstance(props, null);
     }
 
+    public MailboxCheckpointManager getCheckpointManager() {
+        return StaticAccessor.getMailboxCheckpointManager();
+    }
+
     /**
      * Get the inbox directory.
      */
@@ -189,17 +352,636 @@ public class Mailbox implements IMailboxFlagFeature {
         return defaultFolder;
     }
 
+    /**
+     * Get a cached folder used to flag messages.
+     *
+     * @return the folder or null if the folder hasn't been opened yet
+     */
+    Folder getFlagFolder(String name) {
+        return flagFolders.get(name);
+    }
+
+    /**
+     * Cache a folder used to flag messages, the folder will be closed with the mailbox.
+     */
+    void putFlagFolder(String name, Folder folder) {
+        flagFolders.put(name, folder);
+    }
+
     /**
      * Get all messages in the INBOX folder.
+     * When fetching incrementally only messages newer than the last checkpoint are returned.
+     * The data needed to evaluate space rules and to generate titles gets prefetched.
      */
     public Message[] getMessages() throws MailboxException {
+        Folder folder = getInbox();
+
+        try {
+            if (leaveOnServer(folder)) {
+                return getUnseenMessages((POP3Folder) folder, folder.getMessages(), true);
+            }
+
+            if (mailConfigurationWrapper.getMailConfiguration().getIncrementalFetch() && folder instanceof UIDFolder) {
+                return getMessagesSinceCheckpoint((UIDFolder) folder);
+            }
+
+            Message[] messages = folder.getMessages();
+            prefetch(messages);
+            return messages;
+        } catch (MessagingException e) {
+            throw  new MailboxException("could not fetch messages from inbox", e);
+        }
+    }
+
+    /**
+     * Get all messages with a UID higher than the UID stored in the checkpoint.
+     * If the UIDVALIDITY of the INBOX changed, all messages are returned.
+     */
+    private Message[] getMessagesSinceCheckpoint(UIDFolder folder) throws MessagingException, MailboxException {
+        Message[] candidates;
+        if (!loadCheckpoint(folder)) {
+            candidates = ((Folder) folder).getMessages();
+        } else if (resumeUid > 0) {
+            // Continue where the previous run stopped, newer messages are fetched once it's completed.
+            candidates = resumeUid - 1 > lastUid ? folder.getMessagesByUID(lastUid + 1, resumeUid - 1) : new Message[0];
+        } else {
+            // CONDSTORE (RFC 7162) doesn't help here: new messages always have a higher MODSEQ
+            // than the last run saw, so CHANGEDSINCE would return the same messages as this UID range.
+            candidates = folder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+        }
+
+        prefetch(candidates);
+
+        // The range n:* always contains the last message, even if its UID is lower than n.
+        return filterSinceCheckpoint(folder, candidates);
+    }
+
+    /**
+     * Get the messages of the INBOX with a sequence number between start and end (inclusive).
+     * Used to work through large folders window by window, instead of holding all messages at once.
+     * The data needed to evaluate space rules and to generate titles gets prefetched.
+     *
+     * When fetching incrementally, messages at or below the checkpoint are left out
+     * and checkpointReached() returns true once a window contained such a message.
+     * Windows have to be requested from the top of the folder downwards.
+     */
+    public Message[] getMessages(int start, int end) throws MailboxException {
+        Folder folder = getInbox();
+
+        try {
+            if (leaveOnServer(folder)) {
+                return getUnseenMessages((POP3Folder) folder, folder.getMessages(start, end), false);
+            }
+
+            Message[] messages = folder.getMessages(start, end);
+            prefetch(messages);
+
+            if (mailConfigurationWrapper.getMailConfiguration().getIncrementalFetch() && folder instanceof UIDFolder) {
+                // Load the checkpoint once, when the first window is requested.
+                if (uidValidity < 0) {
+                    loadCheckpoint((UIDFolder) folder);
+                }
+
+                return filterSinceCheckpoint((UIDFolder) folder, messages);
+            }
+
+            return messages;
+        } catch (MessagingException e) {
+            throw  new MailboxException("could not fetch messages from inbox", e);
+        }
+    }
+
+    /**
+     * List the UIDs of all messages in the INBOX with a single UID FETCH, without fetching the messages (IMAP only).
+     * Handled messages leave the INBOX, so the plan contains exactly the messages still waiting to be processed.
+     * When fetching incrementally, only messages above the checkpoint are listed, so that messages that
+     * were handled but couldn't be moved out of the INBOX aren't processed again.
+     *
+     * @param partitions the number of partitions to spread the messages over
+     */
+    public MailboxPartitionPlan newPartitionPlan(int partitions) throws MailboxException {
+        Folder folder = getInbox();
+        if (!(folder instanceof UIDFolder)) {
+            throw new MailboxException("partitioned processing requires a mailbox with UIDs");
+        }
+
+        try {
+            UIDFolder uidFolder = (UIDFolder) folder;
+            boolean incremental = mailConfigurationWrapper.getMailConfiguration().getIncrementalFetch();
+
+            Message[] messages;
+            if (incremental && loadCheckpoint(uidFolder)) {
+                // A run that stopped early isn't continued, the plan covers all messages above the checkpoint.
+                messages = uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+            } else {
+                messages = folder.getMessages();
+            }
+
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(messages, fetchProfile);
+
+            // The range n:* always contains the last message, even if its UID is lower than n.
+            List<Long> uids = new ArrayList<Long>();
+            long highestPlannedUid = lastUid;
+            for (Message message : messages) {
+                long uid = uidFolder.getUID(message);
+                if (uid > lastUid) {
+                    uids.add(uid);
+                    highestPlannedUid = Math.max(highestPlannedUid, uid);
+                }
+            }
+
+            return MailboxPartitionPlan.builder()
+                .id(System.currentTimeMillis())
+                .uidValidity(uidFolder.getUIDValidity())
+                .partitions(partitions)
+                .uids(uids)
+                .lastUid(incremental ? highestPlannedUid : 0)
+                .build();
+        } catch (MessagingException e) {
+            throw new MailboxException("could not list messages in inbox", e);
+        }
+    }
+
+    /**
+     * Get the messages of a partition plan that are still in the INBOX.
+     * Messages that have been handled by another node in the meantime are left out,
+     * as are all messages if the UIDVALIDITY of the INBOX changed since the plan was created.
+     * The data needed to evaluate space rules and to generate titles gets prefetched.
+     */
+    public Message[] getMessagesByUid(long uidValidity, long[] uids) throws MailboxException {
+        Folder folder = getInbox();
+        if (!(folder instanceof UIDFolder) || uids.length == 0) {
+            return new Message[0];
+        }
+
         try {
-            return getInbox().getMessages();
+            if (((UIDFolder) folder).getUIDValidity() != uidValidity) {
+                log.info("Mail2Blog: UIDVALIDITY of INBOX changed, skipping outdated partition plan");
+                return new Message[0];
+            }
+
+            List<Message> messages = new ArrayList<Message>();
+            for (Message message : ((UIDFolder) folder).getMessagesByUID(uids)) {
+                if (message != null && !message.isExpunged()) {
+                    messages.add(message);
+                }
+            }
+
+            Message[] result = messages.toArray(new Message[messages.size()]);
+            prefetch(result);
+            return result;
         } catch (MessagingException e) {
             throw  new MailboxException("could not fetch messages from inbox", e);
         }
     }
 
+    /**
+     * Check if a window returned by getMessages(start, end) reached messages that were handled by previous runs.
+     */
+    public boolean checkpointReached() {
+        return checkpointReached;
+    }
+
+    /**
+     * Read the checkpoint of the INBOX.
+     *
+     * @return true if the checkpoint is valid for the current UIDVALIDITY of the INBOX
+     */
+    private boolean loadCheckpoint(UIDFolder folder) throws MessagingException {
+        MailboxCheckpoint checkpoint = getCheckpointManager().load(mailConfigurationWrapper.getMailboxKey());
+        uidValidity = folder.getUIDValidity();
+
+        boolean valid = checkpoint.getUidValidity() == uidValidity;
+        if (valid) {
+            lastUid = checkpoint.getLastUid();
+            resumeUid = checkpoint.getResumeUid();
+        } else {
+            log.info("Mail2Blog: UIDVALIDITY of INBOX changed, scanning all messages");
+            lastUid = 0;
+            resumeUid = 0;
+        }
+
+        highestUid = lastUid;
+        if (resumeUid > 0) {
+            log.info("Mail2Blog: continuing the previous run below UID " + resumeUid);
+            highestUid = Math.max(lastUid, checkpoint.getResumeTopUid());
+        }
+
+        return valid;
+    }
+
+    /**
+     * Remove all messages with a UID at or below the checkpoint and remember the highest UID seen.
+     * While continuing a previous run, messages at or above resumeUid are removed too.
+     * Sets checkpointReached, once a message at or below the checkpoint has been seen.
+     */
+    private Message[] filterSinceCheckpoint(UIDFolder folder, Message[] candidates) throws MessagingException {
+        List<Message> messages = new ArrayList<Message>();
+        for (Message message : candidates) {
+            if (message == null) {
+                continue;
+            }
+
+            long uid = folder.getUID(message);
+            if (uid <= lastUid) {
+                // UIDs are ascending with the sequence number, all following windows are older.
+                checkpointReached = true;
+            } else if (resumeUid <= 0 || uid < resumeUid) {
+                messages.add(message);
+                highestUid = Math.max(highestUid, uid);
+            }
+        }
+
+        return messages.toArray(new Message[messages.size()]);
+    }
+
+    /**
+     * Check if POP3 messages are left on the server.
+     */
+    private boolean leaveOnServer(Folder folder) {
+        return mailConfigurationWrapper.getMailConfiguration().getLeaveOnServer() && folder instanceof POP3Folder;
+    }
+
+    /**
+     * Get the POP3 messages whose UIDL isn't in the UIDL index.
+     * The UIDLs of all messages are read with one UIDL command, only unseen messages get prefetched.
+     *
+     * @param prune remove UIDLs of messages that are gone from the server from the index, only possible if all messages are given
+     */
+    private Message[] getUnseenMessages(POP3Folder folder, Message[] candidates, boolean prune) throws MessagingException, MailboxException {
+        // A single UIDL command returns the UIDLs of all messages in the folder.
+        if (!uidlsFetched) {
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(candidates, fetchProfile);
+            uidlsFetched = true;
+        }
+
+        Pop3UidlIndex index = getUidlIndex();
+        List<String> uidls = new ArrayList<String>();
+        List<Message> messages = new ArrayList<Message>();
+        for (Message message : candidates) {
+            String uidl = folder.getUID(message);
+            if (uidl == null) {
+                messages.add(message);
+                continue;
+            }
+
+            uidls.add(uidl);
+            if (!index.contains(uidl)) {
+                messages.add(message);
+            }
+        }
+
+        if (prune) {
+            index.retainAll(uidls);
+        }
+
+        Message[] unseen = messages.toArray(new Message[messages.size()]);
+        prefetch(unseen);
+        return unseen;
+    }
+
+    /**
+     * Get the UIDL index of the mailbox, loads it on first use.
+     */
+    Pop3UidlIndex getUidlIndex() {
+        if (uidlIndex == null) {
+            uidlIndex = getCheckpointManager().loadUidlIndex(mailConfigurationWrapper.getMailboxKey());
+        }
+
+        return uidlIndex;
+    }
+
+    /**
+     * Remember a POP3 message as handled, so that it isn't downloaded again.
+     */
+    void markSeen(Message message) throws MailboxException {
+        try {
+            String uidl = ((POP3Folder) getInbox()).getUID(message);
+            if (uidl == null) {
+                throw new MailboxException("server didn't return a UIDL for the message");
+            }
+
+            getUidlIndex().add(uidl);
+        } catch (MessagingException e) {
+            throw new MailboxException("failed to get UIDL of message", e);
+        }
+    }
+
+    /**
+     * Store the UIDL index of the mailbox.
+     */
+    void saveUidlIndex() throws MailboxException {
+        if (uidlIndex == null) {
+            return;
+        }
+
+        try {
+            getCheckpointManager().saveUidlIndex(mailConfigurationWrapper.getMailboxKey(), uidlIndex);
+        } catch (MailConfigurationManagerException e) {
+            throw new MailboxException("failed to save uidl index", e);
+        }
+    }
+
+    /**
+     * Drop the data cached for messages that have been handled,
+     * so that the folder's message cache doesn't keep them in memory until the end of the run.
+     */
+    public void release(Message[] messages) {
+        for (Message message : messages) {
+            if (message != null) {
+                release(message);
+            }
+        }
+    }
+
+    /**
+     * Drop the data cached for a message that has been handled.
+     * The folder keeps the message object itself, but only with its message number and UID.
+     */
+    public void release(Message message) {
+        if (message instanceof IMAPMessage) {
+            ((IMAPMessage) message).invalidateHeaders();
+        } else if (message instanceof POP3Message) {
+            // Also deletes the content spooled to the file cache.
+            ((POP3Message) message).invalidate(true);
+        }
+    }
+
+    /**
+     * Search the INBOX on the server for messages that would be rejected anyway
+     * (too old, too large or from a sender domain that isn't accepted).
+     * Only the message numbers are transferred, the messages themselves aren't fetched.
+     *
+     * @return the matching messages or an empty array if no criteria are configured or POP3 is used
+     */
+    public Message[] searchRejected() throws MailboxException {
+        SearchTerm term = getRejectTerm();
+
+        // POP3 has no SEARCH command, javax.mail would download every message to search locally.
+        if (term == null || !mailConfigurationWrapper.getMailConfiguration().getProtocol().endsWith("imap")) {
+            return new Message[0];
+        }
+
+        try {
+            return getInbox().search(term);
+        } catch (MessagingException e) {
+            throw new MailboxException("could not search inbox", e);
+        }
+    }
+
+    /**
+     * Create the search term matching all messages that should be rejected.
+     *
+     * @return the term or null if no criteria are configured
+     */
+    SearchTerm getRejectTerm() {
+        MailConfiguration mailConfiguration = mailConfigurationWrapper.getMailConfiguration();
+        List<SearchTerm> terms = new ArrayList<SearchTerm>();
+
+        if (mailConfiguration.getMaxMessageAge() > 0) {
+            Date since = new Date(System.currentTimeMillis() - mailConfiguration.getMaxMessageAge() * 24L * 60 * 60 * 1000);
+            terms.add(new ReceivedDateTerm(ComparisonTerm.LT, since));
+        }
+
+        if (mailConfiguration.getRejectOversized()) {
+            long maxSize = 1024L * 1024 * mailConfiguration.getMaxAllowedAttachmentSize();
+            terms.add(new SizeTerm(ComparisonTerm.GT, (int) Math.min(maxSize, Integer.MAX_VALUE)));
+        }
+
+        // FROM matches substrings, so "@example.org" also matches senders like "bob@example.org.evil.com".
+        // This is only a pre-filter for the obvious cases, MessageToContentProcessor.admit checks the exact domain.
+        List<String> domains = mailConfigurationWrapper.getAllowedSenderDomains();
+        if (!domains.isEmpty()) {
+            SearchTerm[] fromTerms = new SearchTerm[domains.size()];
+            for (int i = 0; i < domains.size(); i++) {
+                fromTerms[i] = new FromStringTerm("@" + domains.get(i));
+            }
+            terms.add(new NotTerm(fromTerms.length == 1 ? fromTerms[0] : new OrTerm(fromTerms)));
+        }
+
+        if (terms.isEmpty()) {
+            return null;
+        }
+
+        return terms.size() == 1 ? terms.get(0) : new OrTerm(terms.toArray(new SearchTerm[terms.size()]));
+    }
+
+    /**
+     * Archive or delete the messages in the Processed and Invalid folders
+     * that were received before the configured retention period (IMAP only).
+     *
+     * @return the number of archived or deleted messages
+     */
+    public int applyRetention() throws MailboxException {
+        MailConfiguration mailConfiguration = mailConfigurationWrapper.getMailConfiguration();
+        if (mailConfiguration.getRetentionDays() <= 0 || !(getFlagStrategy() instanceof ImapMailboxFlagStrategy)) {
+            return 0;
+        }
+
+        // Cut off at midnight, IMAP only compares the dates of messages.
+        Date before = DateUtils.truncate(DateUtils.addDays(new Date(), -mailConfiguration.getRetentionDays()), Calendar.DAY_OF_MONTH);
+        return ((ImapMailboxFlagStrategy) getFlagStrategy()).applyRetention(before, mailConfiguration.getRetentionExpunge());
+    }
+
+    /**
+     * Check if messages arrived since the last successful run.
+     * Uses a STATUS command, so the INBOX doesn't need to be selected.
+     * Always returns true for POP3 and if the server doesn't report the needed STATUS items.
+     */
+    public boolean hasNewMessages() throws MailboxException {
+        if (!mailConfigurationWrapper.getMailConfiguration().getProtocol().endsWith("imap")) {
+            return true;
+        }
+
+        try {
+            Folder folder = getStore().getFolder("INBOX");
+            if (!(folder instanceof IMAPFolder)) {
+                return true;
+            }
+
+            status = (Status) ((IMAPFolder) folder).doCommand(new IMAPFolder.ProtocolCommand() {
+                public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                    return protocol.status("INBOX", STATUS_ITEMS);
+                }
+            });
+        } catch (MessagingException e) {
+            throw new MailboxException("could not get status of inbox", e);
+        }
+
+        if (status == null || status.uidnext < 0 || status.uidvalidity < 0) {
+            return true;
+        }
+
+        // New messages always get a new UID, UIDNEXT only stays the same if no messages arrived.
+        MailboxCheckpoint checkpoint = getCheckpointManager().load(mailConfigurationWrapper.getMailboxKey());
+        return checkpoint.getResumeUid() > 0
+            || checkpoint.getUidValidity() != status.uidvalidity
+            || checkpoint.getUidNext() != status.uidnext
+            || checkpoint.getMessageCount() < status.total;
+    }
+
+    /**
+     * Store the highest UID returned by getMessages() as checkpoint,
+     * so that the next run only fetches messages that arrived later.
+     * Also stores the STATUS reported by hasNewMessages(), to skip the next run if nothing changes.
+     * Call after all messages have been handled.
+     */
+    public void saveCheckpoint() throws MailboxException {
+        long checkpointUidValidity = uidValidity;
+        if (checkpointUidValidity < 0 && status != null) {
+            checkpointUidValidity = status.uidvalidity;
+        }
+
+        if (checkpointUidValidity < 0) {
+            return;
+        }
+
+        MailboxCheckpoint.MailboxCheckpointBuilder builder = MailboxCheckpoint.builder()
+            .uidValidity(checkpointUidValidity)
+            .lastUid(highestUid);
+
+        if (status != null && status.uidvalidity == checkpointUidValidity) {
+            builder.uidNext(status.uidnext).messageCount(status.total);
+        }
+
+        MailboxCheckpoint checkpoint = builder.build();
+
+        try {
+            getCheckpointManager().save(mailConfigurationWrapper.getMailboxKey(), checkpoint);
+        } catch (MailConfigurationManagerException e) {
+            throw new MailboxException("failed to save checkpoint", e);
+        }
+    }
+
+    /**
+     * Store the highest UID of a partition plan as checkpoint, once all its partitions have been processed.
+     * Nodes only process the partitions they got the lock for, so the checkpoint of a single node
+     * doesn't tell how far the mailbox has been processed.
+     */
+    public void savePartitionCheckpoint(MailboxPartitionPlan plan) throws MailboxException {
+        if (plan.getUidValidity() < 0 || plan.getLastUid() <= 0) {
+            return;
+        }
+
+        MailboxCheckpoint.MailboxCheckpointBuilder builder = MailboxCheckpoint.builder()
+            .uidValidity(plan.getUidValidity())
+            .lastUid(plan.getLastUid());
+
+        if (status != null && status.uidvalidity == plan.getUidValidity()) {
+            builder.uidNext(status.uidnext).messageCount(status.total);
+        }
+
+        try {
+            getCheckpointManager().save(mailConfigurationWrapper.getMailboxKey(), builder.build());
+        } catch (MailConfigurationManagerException e) {
+            throw new MailboxException("failed to save checkpoint", e);
+        }
+    }
+
+    /**
+     * Store how far a run that stopped early at its budget got.
+     * Messages are processed from the newest to the oldest, so all messages from the lowest flagged UID
+     * up to the highest UID have been handled. The next run continues below the lowest flagged UID,
+     * or above the highest skipped UID if several workers handed out messages that weren't processed anymore.
+     * Only possible when fetching incrementally, otherwise handled messages are gone from the INBOX anyway.
+     */
+    public synchronized void saveResumePoint() throws MailboxException {
+        if (uidValidity < 0 || lowestFlaggedUid <= 0) {
+            return;
+        }
+
+        MailboxCheckpoint checkpoint = MailboxCheckpoint.builder()
+            .uidValidity(uidValidity)
+            .lastUid(lastUid)
+            .resumeUid(Math.max(lowestFlaggedUid, highestSkippedUid + 1))
+            .resumeTopUid(highestUid)
+            .build();
+
+        try {
+            getCheckpointManager().save(mailConfigurationWrapper.getMailboxKey(), checkpoint);
+        } catch (MailConfigurationManagerException e) {
+            throw new MailboxException("failed to save resume point", e);
+        }
+    }
+
+    /**
+     * Remember a message that was handed to the run, but not processed because the run stopped.
+     * Another commit worker may already have flagged a message with a lower UID,
+     * so saveResumePoint() has to continue above this message.
+     */
+    public synchronized void skip(Message message) {
+        long uid = getUid(message);
+        if (uid > highestSkippedUid) {
+            highestSkippedUid = uid;
+        }
+    }
+
+    /**
+     * Remember the lowest UID of the flagged messages for saveResumePoint().
+     */
+    private void trackFlagged(Message message) {
+        long uid = getUid(message);
+        if (uid > 0 && (lowestFlaggedUid <= 0 || uid < lowestFlaggedUid)) {
+            lowestFlaggedUid = uid;
+        }
+    }
+
+    /**
+     * Get the UID of a message in the INBOX, used to track how far a run got.
+     *
+     * @return the UID or 0 if it's unknown or not fetching incrementally
+     */
+    private long getUid(Message message) {
+        if (uidValidity < 0 || !(inbox instanceof UIDFolder)) {
+            return 0;
+        }
+
+        try {
+            return ((UIDFolder) inbox).getUID(message);
+        } catch (MessagingException e) {
+            log.debug("Mail2Blog: failed to get UID of message", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Fetch envelope, flags, size, structure and the headers used by space rules
+     * for a set of messages with one command, instead of one round-trip per item and message.
+     */
+    void prefetch(Message[] messages) throws MailboxException {
+        if (messages.length == 0) {
+            return;
+        }
+
+        try {
+            getInbox().fetch(messages, newFetchProfile());
+        } catch (MessagingException e) {
+            throw new MailboxException("could not prefetch messages from inbox", e);
+        }
+    }
+
+    /**
+     * Create the profile used to prefetch messages.
+     */
+    static FetchProfile newFetchProfile() {
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(FetchProfile.Item.FLAGS);
+        fetchProfile.add(FetchProfile.Item.SIZE);
+        fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+
+        for (String header : PREFETCH_HEADERS) {
+            fetchProfile.add(header);
+        }
+
+        return fetchProfile;
+    }
+
     public int getCount() throws MailboxException {
         try {
             return getInbox().getMessageCount();
@@ -210,8 +992,30 @@ public class Mailbox implements IMailboxFlagFeature {
 
     /**
      * Close the mailbox.
+     * Messages still waiting to be flagged get flagged first, also if the run got aborted.
      */
     public void close() throws MailboxException {
+        try {
+            if (flagStrategy != null) {
+                flagStrategy.commitFlags();
+            }
+        } finally {
+            closeConnection();
+        }
+    }
+
+    private void closeConnection() throws MailboxException {
+        for (Map.Entry<String, Folder> entry : flagFolders.entrySet()) {
+            if (entry.getValue().isOpen()) {
+                try {
+                    entry.getValue().close(false);
+                } catch (MessagingException e) {
+                    throw new MailboxException("failed to close folder '" + entry.getKey() + "'", e);
+                }
+            }
+        }
+        flagFolders.clear();
+
         if (inbox != null && inbox.isOpen()) {
             try {
                 inbox.close(true);
@@ -228,7 +1032,10 @@ public class Mailbox implements IMailboxFlagFeature {
             }
         }
 
-        if (store != null) {
+        if (store != null && storePool != null && store.isConnected()) {
+            // Keep the connection open for the next run.
+            storePool.release(mailConfigurationWrapper.getMailboxKey(), mailConfigurationWrapper.getConnectionKey(), store);
+        } else if (store != null) {
             try {
                 store.close();
             } catch (MessagingException e) {
@@ -239,15 +1046,25 @@ public class Mailbox implements IMailboxFlagFeature {
 
     /**
      * Mark message as processed.
+     * Flagging is synchronized, because messages may be processed by several commit workers at once.
      */
-    public void flagAsProcessed(Message message) throws MailboxException {
+    public synchronized void flagAsProcessed(Message message) throws MailboxException {
+        trackFlagged(message);
         getFlagStrategy().flagAsProcessed(message);
     }
 
     /**
      * Mark message as invalid.
      */
-    public void flagAsInvalid(Message message) throws MailboxException {
+    public synchronized void flagAsInvalid(Message message) throws MailboxException {
+        trackFlagged(message);
         getFlagStrategy().flagAsInvalid(message);
     }
+
+    /**
+     * Flag all messages collected in deferred mode.
+     */
+    public synchronized void commitFlags() throws MailboxException {
+        getFlagStrategy().commitFlags();
+    }
 }
@@ -0,0 +1,43 @@
+package de.dm.mail2blog;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import lombok.Builder;
+import lombok.Data;
+
+/**
+ * Bean that stores how far the messages of a mailbox have been processed.
+ */
+@Builder(toBuilder=true)
+@JsonDeserialize(builder = MailboxCheckpoint.MailboxCheckpointBuilder.class)
+@Data
+public class MailboxCheckpoint {
+    // The UIDVALIDITY of the INBOX the UIDs below belong to, -1 if unknown.
+    private long uidValidity;
+
+    // The highest UID that has been processed.
+    private long lastUid;
+
+    // The UIDNEXT and the number of messages reported by STATUS at the start of the last successful run, -1 if unknown.
+    private long uidNext;
+    private int messageCount;
+
+    // Set if the last run stopped early at its budget: messages from resumeUid up to resumeTopUid have been processed,
+    // messages between lastUid and resumeUid are processed by the next run. 0 if the last run finished.
+    private long resumeUid;
+    private long resumeTopUid;
+
+    // Builder class with default values.
+    @JsonPOJOBuilder(buildMethodName = "build", withPrefix = "")
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class MailboxCheckpointBuilder
+    {
+        private long uidValidity = -1;
+        private long lastUid = 0;
+        private long uidNext = -1;
+        private int messageCount = -1;
+        private long resumeUid = 0;
+        private long resumeTopUid = 0;
+    }
+}
@@ -0,0 +1,227 @@
+package de.dm.mail2blog;
+
+import com.atlassian.bandana.BandanaManager;
+import com.atlassian.confluence.setup.bandana.ConfluenceBandanaContext;
+import com.atlassian.confluence.spaces.Space;
+import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
+import com.atlassian.spring.container.ContainerManager;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Autowired object that loads/stores the checkpoints of mailboxes in bandana storage
+ * next to the plugin configuration.
+ */
+@Slf4j
+@Component
+@ExportAsService
+public class MailboxCheckpointManager {
+    public static final String KEY_PREFIX = MailConfigurationManager.PLUGIN_KEY + ".checkpoint.";
+    public static final String UIDL_KEY_PREFIX = MailConfigurationManager.PLUGIN_KEY + ".uidl.";
+    public static final String PLAN_KEY_PREFIX = MailConfigurationManager.PLUGIN_KEY + ".plan.";
+    public static final String PARTITION_KEY_PREFIX = MailConfigurationManager.PLUGIN_KEY + ".partition.";
+    public static final String LEASE_KEY_PREFIX = MailConfigurationManager.PLUGIN_KEY + ".lease.";
+
+    /**
+     * Load the checkpoint of a mailbox.
+     *
+     * @param mailboxKey the key identifying the mailbox
+     * @return the stored checkpoint or an empty checkpoint if none has been stored yet
+     */
+    public MailboxCheckpoint load(@NonNull String mailboxKey)
+    {
+        MailboxCheckpoint checkpoint = null;
+
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            Object object = getBandanaManager().getValue(newGlobalConfluenceBandaContext(), KEY_PREFIX + mailboxKey);
+            if (object instanceof Map) {
+                checkpoint = objectMapper.convertValue(object, MailboxCheckpoint.class);
+            } else if (object != null) {
+                log.error("Mail2Blog: failed to load checkpoint, invalid type returned");
+            }
+        } catch (Exception e) {
+            checkpoint = null;
+            log.error("Mail2Blog: failed to load checkpoint", e);
+        }
+
+        if (checkpoint == null) {
+            checkpoint = MailboxCheckpoint.builder().build();
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Save the checkpoint of a mailbox as map in bandana storage.
+     */
+    public void save(@NonNull String mailboxKey, @NonNull MailboxCheckpoint checkpoint)
+    throws MailConfigurationManagerException
+    {
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            Map<String, Object> map = objectMapper.convertValue(checkpoint, Map.class);
+            getBandanaManager().setValue(newGlobalConfluenceBandaContext(), KEY_PREFIX + mailboxKey, map);
+        } catch (Exception e) {
+            throw new MailConfigurationManagerException("failed to save checkpoint", e);
+        }
+    }
+
+    /**
+     * Load the index of POP3 messages that have been handled and were left on the server.
+     *
+     * @param mailboxKey the key identifying the mailbox
+     * @return the stored index or an empty index if none has been stored yet
+     */
+    public Pop3UidlIndex loadUidlIndex(@NonNull String mailboxKey)
+    {
+        try {
+            Object object = getBandanaManager().getValue(newGlobalConfluenceBandaContext(), UIDL_KEY_PREFIX + mailboxKey);
+            if (object instanceof String) {
+                return Pop3UidlIndex.fromString((String) object);
+            } else if (object != null) {
+                log.error("Mail2Blog: failed to load uidl index, invalid type returned");
+            }
+        } catch (Exception e) {
+            log.error("Mail2Blog: failed to load uidl index", e);
+        }
+
+        return new Pop3UidlIndex();
+    }
+
+    /**
+     * Save the index of POP3 messages as string in bandana storage.
+     */
+    public void saveUidlIndex(@NonNull String mailboxKey, @NonNull Pop3UidlIndex index)
+    throws MailConfigurationManagerException
+    {
+        try {
+            getBandanaManager().setValue(newGlobalConfluenceBandaContext(), UIDL_KEY_PREFIX + mailboxKey, index.toString());
+        } catch (Exception e) {
+            throw new MailConfigurationManagerException("failed to save uidl index", e);
+        }
+    }
+
+    /**
+     * Load the partition plan of a mailbox published by the coordinating node.
+     *
+     * @param mailboxKey the key identifying the mailbox
+     * @return the stored plan or an empty plan if none has been published yet
+     */
+    public MailboxPartitionPlan loadPartitionPlan(@NonNull String mailboxKey)
+    {
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            Object object = getBandanaManager().getValue(newGlobalConfluenceBandaContext(), PLAN_KEY_PREFIX + mailboxKey);
+            if (object instanceof Map) {
+                return objectMapper.convertValue(object, MailboxPartitionPlan.class);
+            } else if (object != null) {
+                log.error("Mail2Blog: failed to load partition plan, invalid type returned");
+            }
+        } catch (Exception e) {
+            log.error("Mail2Blog: failed to load partition plan", e);
+        }
+
+        return MailboxPartitionPlan.builder().build();
+    }
+
+    /**
+     * Save the partition plan of a mailbox as map in bandana storage.
+     */
+    public void savePartitionPlan(@NonNull String mailboxKey, @NonNull MailboxPartitionPlan plan)
+    throws MailConfigurationManagerException
+    {
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            Map<String, Object> map = objectMapper.convertValue(plan, Map.class);
+            getBandanaManager().setValue(newGlobalConfluenceBandaContext(), PLAN_KEY_PREFIX + mailboxKey, map);
+        } catch (Exception e) {
+            throw new MailConfigurationManagerException("failed to save partition plan", e);
+        }
+    }
+
+    /**
+     * Load the id of the last plan for which a partition has been processed completely.
+     *
+     * @return the id of the plan or 0 if the partition hasn't been processed yet
+     */
+    public long loadPartitionDone(@NonNull String mailboxKey, int partition)
+    {
+        try {
+            Object object = getBandanaManager().getValue(newGlobalConfluenceBandaContext(), PARTITION_KEY_PREFIX + mailboxKey + "." + partition);
+            if (object instanceof String) {
+                return Long.parseLong((String) object);
+            } else if (object != null) {
+                log.error("Mail2Blog: failed to load partition state, invalid type returned");
+            }
+        } catch (Exception e) {
+            log.error("Mail2Blog: failed to load partition state", e);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Mark a partition as processed for a plan.
+     * Every partition has its own key, so that nodes processing different partitions don't overwrite each other.
+     */
+    public void savePartitionDone(@NonNull String mailboxKey, int partition, long planId)
+    throws MailConfigurationManagerException
+    {
+        try {
+            getBandanaManager().setValue(newGlobalConfluenceBandaContext(), PARTITION_KEY_PREFIX + mailboxKey + "." + partition, Long.toString(planId));
+        } catch (Exception e) {
+            throw new MailConfigurationManagerException("failed to save partition state", e);
+        }
+    }
+
+    /**
+     * Load the lease of a job run.
+     *
+     * @param name the name of the lease
+     * @return the stored lease or a released lease if none has been stored yet
+     */
+    public JobLease loadLease(@NonNull String name)
+    {
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            Object object = getBandanaManager().getValue(newGlobalConfluenceBandaContext(), LEASE_KEY_PREFIX + name);
+            if (object instanceof Map) {
+                return objectMapper.convertValue(object, JobLease.class);
+            } else if (object != null) {
+                log.error("Mail2Blog: failed to load lease, invalid type returned");
+            }
+        } catch (Exception e) {
+            log.error("Mail2Blog: failed to load lease", e);
+        }
+
+        return JobLease.builder().build();
+    }
+
+    /**
+     * Save the lease of a job run as map in bandana storage.
+     */
+    public void saveLease(@NonNull String name, @NonNull JobLease lease)
+    throws MailConfigurationManagerException
+    {
+        try {
+            ObjectMapper objectMapper = new ObjectMapper();
+            Map<String, Object> map = objectMapper.convertValue(lease, Map.class);
+            getBandanaManager().setValue(newGlobalConfluenceBandaContext(), LEASE_KEY_PREFIX + name, map);
+        } catch (Exception e) {
+            throw new MailConfigurationManagerException("failed to save lease", e);
+        }
+    }
+
+    public BandanaManager getBandanaManager() {
+        return (BandanaManager) ContainerManager.getComponent("bandanaManager");
+    }
+
+    public ConfluenceBandanaContext newGlobalConfluenceBandaContext() {
+        return new ConfluenceBandanaContext((Space) null);
+    }
+}
@@ -0,0 +1,154 @@
+package de.dm.mail2blog;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops job runs from connecting to a mail server that failed repeatedly.
+ *
+ * After threshold consecutive failures of a mailbox the breaker opens and runs are skipped
+ * until a backoff expires. The backoff starts at one minute and doubles with every further failure
+ * up to one hour. Once the backoff expired the breaker is half-open: exactly one trial run is let through
+ * while the other runs keep being skipped. A success of the trial closes the breaker, a failure opens it again.
+ */
+@Slf4j
+@Component
+public class MailboxCircuitBreaker {
+    /**
+     * Backoff after the breaker opened (1 minute).
+     */
+    static final long INITIAL_BACKOFF = 60 * 1000;
+
+    /**
+     * Maximum backoff (1 hour).
+     */
+    static final long MAX_BACKOFF = 60 * 60 * 1000;
+
+    /**
+     * State by mailbox key.
+     */
+    private final Map<String, State> states = new HashMap<String, State>();
+
+    /**
+     * Check if a run may connect to the mailbox.
+     * If the backoff expired, the caller becomes the trial run and has to report its outcome
+     * with recordSuccess, recordFailure or endTrial.
+     *
+     * @param mailboxKey the key of the mailbox
+     * @return true if the breaker is closed or the caller is the trial run
+     */
+    public synchronized boolean allowRequest(String mailboxKey) {
+        State state = states.get(mailboxKey);
+        if (state == null || state.openUntil == 0) {
+            return true;
+        }
+
+        if (state.trial || currentTimeMillis() < state.openUntil) {
+            return false;
+        }
+
+        log.info("Mail2Blog: backoff expired, letting a trial run through the circuit breaker");
+        state.trial = true;
+        return true;
+    }
+
+    /**
+     * Check if the breaker of a mailbox opened and no run succeeded since.
+     * Unlike allowRequest this never starts a trial run, for jobs that don't report their outcome.
+     */
+    public synchronized boolean isOpen(String mailboxKey) {
+        State state = states.get(mailboxKey);
+        return state != null && state.openUntil > 0;
+    }
+
+    /**
+     * Reset the failure count of a mailbox after a successful run.
+     *
+     * @return the state of the breaker before the success, null if no failures were recorded
+     */
+    public synchronized String recordSuccess(String mailboxKey) {
+        State state = states.remove(mailboxKey);
+        if (state == null) {
+            return null;
+        }
+
+        log.info("Mail2Blog: mailbox reachable again, closing circuit breaker");
+        return "circuit breaker closed after " + state.failures + " consecutive failures";
+    }
+
+    /**
+     * End a trial run that neither succeeded nor failed to reach the mailbox,
+     * so that the next run is let through as trial.
+     */
+    public synchronized void endTrial(String mailboxKey) {
+        State state = states.get(mailboxKey);
+        if (state != null) {
+            state.trial = false;
+        }
+    }
+
+    /**
+     * Count a failed run and open the breaker once the threshold is reached.
+     *
+     * @param mailboxKey the key of the mailbox
+     * @param threshold number of consecutive failures after which the breaker opens, 0 to never open
+     */
+    public synchronized void recordFailure(String mailboxKey, int threshold) {
+        State state = states.get(mailboxKey);
+        if (state == null) {
+            state = new State();
+            states.put(mailboxKey, state);
+        }
+
+        state.failures++;
+        state.trial = false;
+        if (threshold > 0 && state.failures >= threshold) {
+            // Double the backoff for every failure above the threshold.
+            int exponent = Math.min(state.failures - threshold, 30);
+            long backoff = Math.min(INITIAL_BACKOFF << exponent, MAX_BACKOFF);
+            state.openUntil = currentTimeMillis() + backoff;
+            log.warn("Mail2Blog: mailbox failed " + state.failures + " times in a row, skipping runs for " + (backoff / 1000) + "s");
+        }
+    }
+
+    /**
+     * Describe the state of the breaker of a mailbox, used in job responses.
+     */
+    public synchronized String getStatus(String mailboxKey) {
+        State state = states.get(mailboxKey);
+        if (state == null) {
+            return "circuit breaker closed";
+        }
+
+        if (state.openUntil == 0) {
+            return "circuit breaker closed, " + state.failures + " consecutive failures";
+        }
+
+        if (state.trial) {
+            return "circuit breaker half-open after " + state.failures + " consecutive failures, trial run in progress";
+        }
+
+        long remaining = state.openUntil - currentTimeMillis();
+        if (remaining > 0) {
+            return "circuit breaker open after " + state.failures + " consecutive failures, retrying in " + (remaining / 1000) + "s";
+        }
+
+        return "circuit breaker half-open after " + state.failures + " consecutive failures, the next run is a trial";
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Consecutive failures of a mailbox, the end of its backoff and whether a trial run is active.
+     */
+    private static class State {
+        private int failures = 0;
+        private long openUntil = 0;
+        private boolean trial = false;
+    }
+}
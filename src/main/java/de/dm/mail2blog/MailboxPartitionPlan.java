@@ -0,0 +1,75 @@
+package de.dm.mail2blog;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder;
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bean that stores the UIDs of the messages in an INBOX as listed by the coordinating node,
+ * so that all nodes of a cluster can process the messages of one partition each.
+ */
+@Builder(toBuilder=true)
+@JsonDeserialize(builder = MailboxPartitionPlan.MailboxPartitionPlanBuilder.class)
+@Data
+public class MailboxPartitionPlan {
+    // Identifies the plan, the time the plan was created at in milliseconds.
+    private long id;
+
+    // The UIDVALIDITY of the INBOX the UIDs below belong to, -1 if unknown.
+    private long uidValidity;
+
+    // The number of partitions the UIDs are spread over.
+    private int partitions;
+
+    // The UIDs of the messages in the INBOX.
+    private List<Long> uids;
+
+    // The highest UID covered by the plan, stored as checkpoint once all partitions have been processed.
+    // 0 if the INBOX isn't fetched incrementally.
+    private long lastUid;
+
+    /**
+     * Get the partition of a message.
+     * The partition only depends on the UID and the number of partitions of the plan,
+     * so that all nodes agree on it while they process the plan.
+     */
+    public static int getPartition(long uid, int partitions) {
+        return (int) (uid % partitions);
+    }
+
+    /**
+     * Get the UIDs of the messages in a partition.
+     */
+    public long[] getUids(int partition) {
+        List<Long> selected = new ArrayList<Long>();
+        for (Long uid : uids) {
+            if (getPartition(uid, partitions) == partition) {
+                selected.add(uid);
+            }
+        }
+
+        long[] result = new long[selected.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = selected.get(i);
+        }
+
+        return result;
+    }
+
+    // Builder class with default values.
+    @JsonPOJOBuilder(buildMethodName = "build", withPrefix = "")
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class MailboxPartitionPlanBuilder
+    {
+        private long id = 0;
+        private long uidValidity = -1;
+        private int partitions = 0;
+        private List<Long> uids = new ArrayList<Long>();
+        private long lastUid = 0;
+    }
+}
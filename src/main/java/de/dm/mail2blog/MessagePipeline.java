@@ -0,0 +1,188 @@
+package de.dm.mail2blog;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pipeline between the mailbox and the transactions that create pages/blog posts.
+ *
+ * A fetcher thread downloads and parses the upcoming messages, while the job thread commits the current one,
+ * so that waiting for the mail server and writing to the database overlap.
+ * At most depth messages are held in the queue, the fetcher blocks until the job thread caught up.
+ * Messages are handed out in reverse order, the order in which the job processes them.
+ */
+@Slf4j
+public class MessagePipeline implements AutoCloseable {
+    /**
+     * Marks the end of the queue.
+     */
+    private static final Entry END = new Entry(null, null);
+
+    private final Message[] messages;
+    private final long maxBufferedSize;
+    private final BlockingQueue<Entry> queue;
+    private ExecutorService executor;
+    private volatile boolean finished = false;
+    private volatile boolean failed = false;
+
+    /**
+     * @param messages        the messages to process, entries are removed from the array once they are queued
+     * @param depth           the maximum number of messages downloaded in advance
+     * @param maxBufferedSize messages larger than this number of bytes aren't buffered and are read when processed
+     */
+    public MessagePipeline(Message[] messages, int depth, long maxBufferedSize) {
+        this.messages = messages;
+        this.maxBufferedSize = maxBufferedSize;
+        this.queue = new ArrayBlockingQueue<Entry>(depth);
+    }
+
+    /**
+     * Start the fetcher thread.
+     */
+    public void start() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "mail2blog-fetcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.execute(new Runnable() {
+            public void run() {
+                fetch();
+            }
+        });
+    }
+
+    /**
+     * Get the next message, blocks until the fetcher downloaded it.
+     *
+     * @return the next message or null if all messages have been handed out
+     */
+    public Entry take() throws InterruptedException {
+        while (true) {
+            Entry entry = queue.poll(1, TimeUnit.SECONDS);
+            if (entry == END || (entry == null && finished && queue.isEmpty())) {
+                return null;
+            } else if (entry != null) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Check if the fetcher stopped with an error before all messages were queued.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Stop the fetcher thread, also if not all messages have been taken.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Download the messages one after another into the queue.
+     */
+    private void fetch() {
+        try {
+            for (int i = messages.length - 1; i >= 0; i--) {
+                // Only the queue and the job thread keep a reference, so that handled messages can be garbage collected.
+                Message message = messages[i];
+                messages[i] = null;
+                // Messages that fail the envelope check get rejected by the transaction, don't download them.
+                queue.put(new Entry(message, admit(message) ? download(message) : null));
+            }
+
+            queue.put(END);
+        } catch (InterruptedException e) {
+            // The job thread stopped taking messages.
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            // The remaining messages stay in the INBOX, the job mustn't move its checkpoint past them.
+            log.error("Mail2Blog: failed to fetch messages", e);
+            failed = true;
+        } finally {
+            finished = true;
+        }
+    }
+
+    /**
+     * Check the envelope of a message before it's downloaded in advance.
+     *
+     * @return false if the transaction is going to reject the message
+     */
+    boolean admit(Message message) {
+        return true;
+    }
+
+    /**
+     * Copy a message into memory and parse its MIME structure.
+     *
+     * @return the copy or null if the message should be read when it's processed
+     */
+    MimeMessage download(Message message) {
+        try {
+            if (!(message instanceof MimeMessage) || message.getSize() < 0 || message.getSize() > maxBufferedSize) {
+                return null;
+            }
+
+            MimeMessage copy = new MimeMessage((MimeMessage) message);
+            parse(copy);
+            return copy;
+        } catch (Exception e) {
+            // The transaction reads the message itself and reports the error.
+            log.debug("Mail2Blog: failed to download message in advance", e);
+            return null;
+        }
+    }
+
+    /**
+     * Parse all multiparts of a part, javax.mail parses them lazily otherwise.
+     */
+    private static void parse(Part part) throws MessagingException, IOException {
+        if (!part.isMimeType("multipart/*")) {
+            return;
+        }
+
+        Multipart multipart = (Multipart) part.getContent();
+        for (int i = 0; i < multipart.getCount(); i++) {
+            parse(multipart.getBodyPart(i));
+        }
+    }
+
+    /**
+     * A message together with its downloaded copy.
+     */
+    public static class Entry {
+        // The message in the mailbox, used to flag it.
+        @Getter private final Message message;
+
+        // The copy in memory or null if the message wasn't downloaded in advance.
+        @Getter private final MimeMessage content;
+
+        Entry(Message message, MimeMessage content) {
+            this.message = message;
+            this.content = content;
+        }
+    }
+}
@@ -18,8 +18,11 @@ import lombok.NonNull;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import javax.mail.Address;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -119,7 +122,14 @@ public class MessageToContentProcessor {
                         attachment.setContainer(page);
                         attachment.setCreator((sender instanceof ConfluenceUser) ? (ConfluenceUser) sender : null);
 
-                        getAttachmentManager().saveAttachment(attachment, null, data.getStream());
+                        // The parser of the base library reads every part into memory to determine its size,
+                        // so attachments aren't streamed from the mail server. Close the stream once it has been read.
+                        InputStream stream = data.getStream();
+                        try {
+                            getAttachmentManager().saveAttachment(attachment, null, stream);
+                        } finally {
+                            stream.close();
+                        }
                         attachments.put(data, attachment);
                     }
                 }
@@ -191,6 +201,72 @@ public class MessageToContentProcessor {
         }
     }
 
+    /**
+     * Check if a message may be processed at all, before its content is downloaded.
+     * Only uses the envelope and the size of the message, which are prefetched with the message list.
+     *
+     * @param message The Email to check.
+     * @throws MessageToContentProcessorException If the message is too large or the sender lacks permission to post.
+     */
+    public void admit(Message message) throws MessageToContentProcessorException {
+        MailConfiguration mailConfiguration = mailConfigurationWrapper.getMailConfiguration();
+
+        try {
+            // getSize() returns -1 if the size is unknown.
+            if (
+                mailConfiguration.getRejectOversized()
+                && message.getSize() > 1024L * 1024 * mailConfiguration.getMaxAllowedAttachmentSize()
+            ) {
+                throw new MessageToContentProcessorException("message exceeds the maximum size");
+            }
+
+            // The server-side search only pre-filters sender domains by substring, the exact domain is checked here.
+            List<String> domains = mailConfigurationWrapper.getAllowedSenderDomains();
+            if (!domains.isEmpty()) {
+                checkSenderDomain(getSenderEmail(message), domains);
+            }
+
+            // Only look up the sender if senders are restricted.
+            if (mailConfiguration.getSecurityGroup() != null && !mailConfiguration.getSecurityGroup().isEmpty()) {
+                checkSender(getSender(getSenderEmail(message)));
+            }
+        } catch (MessagingException e) {
+            throw new MessageToContentProcessorException("failed to read the envelope of the message", e);
+        }
+    }
+
+    /**
+     * Check that the sender's domain is one of the accepted domains, subdomains aren't accepted.
+     *
+     * @param email the mail address of the sender or null
+     * @param domains the accepted domains in lower case
+     * @throws MessageToContentProcessorException If the domain isn't accepted.
+     */
+    private void checkSenderDomain(String email, List<String> domains) throws MessageToContentProcessorException {
+        if (email == null) {
+            throw new MessageToContentProcessorException("message has no sender");
+        }
+
+        String domain = email.substring(email.lastIndexOf('@') + 1).toLowerCase();
+        if (!domains.contains(domain)) {
+            throw new MessageToContentProcessorException("sender domain " + domain + " is not accepted");
+        }
+    }
+
+    /**
+     * Get the mail address of the sender from the envelope of a message.
+     *
+     * @return the address or null if the message has no sender
+     */
+    private String getSenderEmail(Message message) throws MessagingException {
+        Address[] from = message.getFrom();
+        if (from == null || from.length < 1 || !(from[0] instanceof InternetAddress)) {
+            return null;
+        }
+
+        return ((InternetAddress) from[0]).getAddress();
+    }
+
     /**
      * Check that the sender has permission to post.
      *
@@ -12,6 +12,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.mail.Message;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -22,22 +23,90 @@ import java.util.List;
 @Builder
 public class MessageTransaction implements TransactionCallback<Void> {
     @Getter private Message message;
+
+    // Copy of the message downloaded in advance by the MessagePipeline, null to read the message itself.
+    @Getter private Message content;
     @Getter private MailConfigurationWrapper mailConfigurationWrapper;
     @Getter private Mailbox mailbox;
     @Getter private SpaceExtractor spaceExtractor;
     @Getter private SpaceManager spaceManager;
 
+    // Locks the spaces the message is posted to, released by the caller once the transaction is committed.
+    // Null if the transaction is the only one writing to its spaces.
+    @Getter private StripedSpaceLocks spaceLocks;
+
+    // Counts the handled messages of the run, null if nobody follows the run.
+    @Getter private JobProgress progress;
+
     public Void doInTransaction() {
+        boolean status = admit();
+        if (status) {
+            status = process();
+        }
+
+        try {
+            if (status) {
+                mailbox.flagAsProcessed(message);
+            } else {
+                mailbox.flagAsInvalid(message);
+            }
+        } catch (Exception e) {
+            log.error("Mail2Blog: failed to flag message", e);
+        }
+
+        if (progress != null) {
+            progress.addMessage(status, message);
+        }
+
+        // The message is done, don't keep its headers and content in memory until the end of the run.
+        mailbox.release(message);
+
+        return null;
+    }
+
+    /**
+     * Check the envelope of the message, before anything else gets downloaded.
+     *
+     * @return false if the message got rejected
+     */
+    private boolean admit() {
+        try {
+            newMessageToBlogProcessor(mailConfigurationWrapper).admit(message);
+            return true;
+        } catch (MessageToContentProcessorException e) {
+            log.warn("Mail2Blog: rejected message: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Mail2Blog: failed to check message", e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Create pages/blog posts from the message in all matching spaces.
+     *
+     * @return false if the message couldn't be processed
+     */
+    private boolean process() {
         boolean status = true;
 
         try {
             // Get space
-            List<SpaceInfo> spaceInfos = spaceExtractor.getSpaces(mailConfigurationWrapper.getMail2BlogBaseConfiguration(), message);
+            List<SpaceInfo> spaceInfos = spaceExtractor.getSpaces(mailConfigurationWrapper.getMail2BlogBaseConfiguration(), getContentMessage());
 
             if (spaceInfos.isEmpty()) {
                 log.error("Mail2Blog: failed to process message. Failed to get a valid space.");
                 status = false;
             } else {
+                // Other threads might generate titles for the same spaces.
+                if (spaceLocks != null) {
+                    List<String> spaceKeys = new ArrayList<String>();
+                    for (SpaceInfo spaceInfo : spaceInfos) {
+                        spaceKeys.add(spaceInfo.getSpaceKey());
+                    }
+                    spaceLocks.lock(spaceKeys);
+                }
+
                 for (SpaceInfo spaceInfo : spaceInfos) {
                     // Process message.
                     MessageToContentProcessor processor = newMessageToBlogProcessor(mailConfigurationWrapper);
@@ -45,7 +114,7 @@ public class MessageTransaction implements TransactionCallback<Void> {
                     if (space == null) {
                         log.error("Mail2Blog: invalid space in SpaceInfo");
                     }
-                    processor.process(space, message, spaceInfo.getContentType());
+                    processor.process(space, getContentMessage(), spaceInfo.getContentType());
                 }
             }
         } catch (Exception e) {
@@ -53,17 +122,15 @@ public class MessageTransaction implements TransactionCallback<Void> {
             log.error("Mail2Blog: failed to process message", e);
         }
 
-        try {
-            if (status) {
-                mailbox.flagAsProcessed(message);
-            } else {
-                mailbox.flagAsInvalid(message);
-            }
-        } catch (Exception e) {
-            log.error("Mail2Blog: failed to flag message", e);
-        }
+        return status;
+    }
 
-        return null;
+    /**
+     * Get the message to read the envelope and the content from.
+     * The message in the mailbox is only used for flagging.
+     */
+    private Message getContentMessage() {
+        return content != null ? content : message;
     }
 
     public MessageToContentProcessor newMessageToBlogProcessor(MailConfigurationWrapper mailConfigurationWrapper)
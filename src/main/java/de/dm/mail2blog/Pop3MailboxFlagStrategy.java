@@ -2,6 +2,7 @@ package de.dm.mail2blog;
 
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 import javax.mail.Flags;
 import javax.mail.Message;
@@ -14,10 +15,20 @@ import javax.mail.MessagingException;
 public class Pop3MailboxFlagStrategy implements IMailboxFlagFeature {
     @NonNull private Mailbox mailbox;
 
+    /**
+     * If set to true, messages are left on the server and remembered in the UIDL index instead of being deleted.
+     */
+    @Setter private boolean leaveOnServer = false;
+
     /**
      * Flag message to be deleted.
      */
     private void deleteMessage(Message message) throws MailboxException {
+        if (leaveOnServer) {
+            mailbox.markSeen(message);
+            return;
+        }
+
         try {
             message.setFlag(Flags.Flag.DELETED, true);
         } catch (MessagingException e) {
@@ -40,4 +51,14 @@ public class Pop3MailboxFlagStrategy implements IMailboxFlagFeature {
     public void flagAsInvalid(Message message) throws MailboxException {
         this.deleteMessage(message);
     }
+
+    /**
+     * Messages flagged as deleted get removed when the mailbox is closed.
+     * When leaving messages on the server, the UIDL index gets stored.
+     */
+    public void commitFlags() throws MailboxException {
+        if (leaveOnServer) {
+            mailbox.saveUidlIndex();
+        }
+    }
 }
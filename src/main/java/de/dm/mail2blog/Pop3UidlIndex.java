@@ -0,0 +1,129 @@
+package de.dm.mail2blog;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compact set of the UIDLs of POP3 messages that have already been handled.
+ * Used to leave messages on the server and only download unseen messages.
+ *
+ * UIDLs are stored as sorted 64 bit hashes, so that the index stays small
+ * even for mailboxes with many thousand messages.
+ */
+public class Pop3UidlIndex {
+    /**
+     * The sorted hashes of all UIDLs in the index.
+     */
+    private long[] hashes;
+
+    /**
+     * Number of used entries in hashes.
+     */
+    private int size;
+
+    /**
+     * Create an empty index.
+     */
+    public Pop3UidlIndex() {
+        this(new long[0]);
+    }
+
+    private Pop3UidlIndex(long[] hashes) {
+        this.hashes = hashes;
+        this.size = hashes.length;
+    }
+
+    /**
+     * Check if a UIDL is part of the index.
+     */
+    public boolean contains(String uidl) {
+        return Arrays.binarySearch(hashes, 0, size, hash(uidl)) >= 0;
+    }
+
+    /**
+     * Add a UIDL to the index.
+     */
+    public void add(String uidl) {
+        long hash = hash(uidl);
+        int pos = Arrays.binarySearch(hashes, 0, size, hash);
+        if (pos >= 0) {
+            return;
+        }
+
+        pos = -pos - 1;
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, Math.max(16, size * 2));
+        }
+
+        System.arraycopy(hashes, pos, hashes, pos + 1, size - pos);
+        hashes[pos] = hash;
+        size++;
+    }
+
+    /**
+     * Remove all UIDLs that aren't in the given collection,
+     * used to drop messages that have been deleted on the server.
+     */
+    public void retainAll(Collection<String> uidls) {
+        Pop3UidlIndex retained = new Pop3UidlIndex();
+        for (String uidl : uidls) {
+            if (contains(uidl)) {
+                retained.add(uidl);
+            }
+        }
+
+        hashes = retained.hashes;
+        size = retained.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Serialize the index to a string to store it in bandana.
+     */
+    @Override
+    public String toString() {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * size);
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(hashes[i]);
+        }
+
+        return DatatypeConverter.printBase64Binary(buffer.array());
+    }
+
+    /**
+     * Create an index from a string created with toString().
+     *
+     * @throws IllegalArgumentException if the string isn't a valid index
+     */
+    public static Pop3UidlIndex fromString(String string) {
+        byte[] bytes = DatatypeConverter.parseBase64Binary(string);
+        if (bytes.length % 8 != 0) {
+            throw new IllegalArgumentException("invalid uidl index");
+        }
+
+        long[] hashes = new long[bytes.length / 8];
+        ByteBuffer.wrap(bytes).asLongBuffer().get(hashes);
+
+        // Don't trust the stored order, binary search depends on it.
+        Arrays.sort(hashes);
+        return new Pop3UidlIndex(hashes);
+    }
+
+    /**
+     * Hash a UIDL to 64 bits (the first 8 bytes of its SHA-256 digest).
+     */
+    static long hash(String uidl) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return ByteBuffer.wrap(digest.digest(uidl.getBytes("UTF-8"))).getLong();
+        } catch (Exception e) {
+            throw new IllegalStateException("failed to hash uidl", e);
+        }
+    }
+}
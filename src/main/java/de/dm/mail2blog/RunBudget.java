@@ -0,0 +1,85 @@
+package de.dm.mail2blog;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the time and the number of messages a single job run may spend on a mailbox.
+ *
+ * The budget is checked before each message, so a run always stops between two messages.
+ * Safe to use from several commit workers at once.
+ */
+public class RunBudget {
+    /**
+     * End of the run in milliseconds, 0 for no time limit.
+     */
+    private final long deadline;
+
+    /**
+     * Maximum number of messages, 0 for no limit.
+     */
+    private final int maxMessages;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param timeBudget  seconds the run may take, 0 for no limit
+     * @param maxMessages number of messages the run may process, 0 for no limit
+     */
+    public RunBudget(int timeBudget, int maxMessages) {
+        this.deadline = timeBudget > 0 ? currentTimeMillis() + 1000L * timeBudget : 0;
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Create a budget from the settings of a mailbox.
+     */
+    public static RunBudget of(MailConfiguration mailConfiguration) {
+        return new RunBudget(mailConfiguration.getTimeBudget(), mailConfiguration.getMessageBudget());
+    }
+
+    /**
+     * Ask if another message may be processed.
+     * Once the budget is used up, the run is marked as stopped and all further calls return false.
+     */
+    public boolean tryAcquire() {
+        if (stopped || (deadline > 0 && currentTimeMillis() >= deadline)) {
+            stopped = true;
+            return false;
+        }
+
+        int count = processed.incrementAndGet();
+        if (maxMessages > 0 && count > maxMessages) {
+            processed.decrementAndGet();
+            stopped = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop the run before the next message, regardless of the remaining budget.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Check if the run stopped before all messages were processed.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Get the number of messages that were allowed to be processed.
+     */
+    public int getProcessed() {
+        return processed.get();
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
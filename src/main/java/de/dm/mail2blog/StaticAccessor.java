@@ -1,5 +1,6 @@
 package de.dm.mail2blog;
 
+import com.atlassian.beehive.ClusterLockService;
 import com.atlassian.confluence.pages.AttachmentManager;
 import com.atlassian.confluence.pages.PageManager;
 import com.atlassian.confluence.setup.settings.SettingsManager;
@@ -24,7 +25,9 @@ public class StaticAccessor {
     private static @Getter @Setter GroupManager groupManager;
     private static @Getter @Setter SettingsManager settingsManager;
     private static @Getter @Setter UserAccessor userAccessor;
+    private static @Getter @Setter ClusterLockService clusterLockService;
     private static @Getter @Setter MailConfigurationManager mailConfigurationManager;
+    private static @Getter @Setter MailboxCheckpointManager mailboxCheckpointManager;
     private static @Getter @Setter Mail2BlogJob mail2BlogJob;
     private static @Getter @Setter GlobalState globalState;
 
@@ -37,7 +40,9 @@ public class StaticAccessor {
         @ComponentImport GroupManager groupManager,
         @ComponentImport SettingsManager settingsManager,
         @ComponentImport UserAccessor userAccessor,
+        @ComponentImport ClusterLockService clusterLockService,
         MailConfigurationManager mailConfigurationManager,
+        MailboxCheckpointManager mailboxCheckpointManager,
         Mail2BlogJob mail2BlogJob,
         GlobalState globalState
     ) {
@@ -48,7 +53,9 @@ public class StaticAccessor {
         setGroupManager(groupManager);
         setSettingsManager(settingsManager);
         setUserAccessor(userAccessor);
+        setClusterLockService(clusterLockService);
         setMailConfigurationManager(mailConfigurationManager);
+        setMailboxCheckpointManager(mailboxCheckpointManager);
         setMail2BlogJob(mail2BlogJob);
         setGlobalState(globalState);
     }
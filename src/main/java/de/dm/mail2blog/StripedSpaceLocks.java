@@ -0,0 +1,75 @@
+package de.dm.mail2blog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks that serialize the creation of pages/blog posts within a space,
+ * while messages for different spaces are processed in parallel.
+ *
+ * Space keys are mapped onto a fixed number of locks. A thread locks all spaces of a message at once
+ * and keeps them until its transaction is committed, so that generated titles are checked against
+ * the pages saved by the other threads.
+ */
+public class StripedSpaceLocks {
+    /**
+     * Number of locks the space keys are spread over.
+     */
+    static final int STRIPES = 64;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    /**
+     * Locks held by the current thread.
+     */
+    private final ThreadLocal<List<ReentrantLock>> held = new ThreadLocal<List<ReentrantLock>>() {
+        @Override
+        protected List<ReentrantLock> initialValue() {
+            return new ArrayList<ReentrantLock>();
+        }
+    };
+
+    public StripedSpaceLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Lock the given spaces for the current thread.
+     * Locks are always taken in the same order, so that threads locking overlapping spaces can't deadlock.
+     */
+    public void lock(Collection<String> spaceKeys) {
+        TreeSet<Integer> stripes = new TreeSet<Integer>();
+        for (String spaceKey : spaceKeys) {
+            stripes.add(getStripe(spaceKey));
+        }
+
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+            held.get().add(locks[stripe]);
+        }
+    }
+
+    /**
+     * Release all spaces locked by the current thread.
+     */
+    public void unlockAll() {
+        List<ReentrantLock> locked = held.get();
+        for (int i = locked.size() - 1; i >= 0; i--) {
+            locked.get(i).unlock();
+        }
+
+        locked.clear();
+    }
+
+    /**
+     * Get the lock of a space, space keys are case insensitive.
+     */
+    static int getStripe(String spaceKey) {
+        return (spaceKey.toLowerCase().hashCode() & 0x7fffffff) % STRIPES;
+    }
+}
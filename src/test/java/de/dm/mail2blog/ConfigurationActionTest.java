@@ -50,11 +50,17 @@ public class ConfigurationActionTest
     @Mock GlobalState globalState;
 
     ConfigurationAction configurationAction;
+    String profile = null;
     MailConfiguration mailConfiguration;
     CheckboxTracker checkboxTracker;
 
     private void setUpConfigurationAction() throws Exception {
-        configurationAction = new ConfigurationAction();
+        configurationAction = new ConfigurationAction() {
+            @Override
+            String getRequestParameter(String name) {
+                return "profile".equals(name) ? profile : null;
+            }
+        };
         configurationAction.setGroupManager(groupManager);
         configurationAction.setSpaceManager(spaceManager);
         configurationAction.setCheckboxTracker(checkboxTracker);
@@ -65,7 +71,7 @@ public class ConfigurationActionTest
         mailConfiguration = MailConfiguration.builder().build();
         MailConfigurationWrapper wrapper = new MailConfigurationWrapper(mailConfiguration);
 
-        when(globalState.getMailConfigurationWrapper()).thenReturn(wrapper);
+        when(globalState.getMailConfigurationWrapper(MailConfigurationManager.DEFAULT_PROFILE)).thenReturn(wrapper);
 
         ConfigurationActionState actionState = new ConfigurationActionState();
         actionState.setGlobalState(globalState);
@@ -214,6 +220,61 @@ public class ConfigurationActionTest
         assertValidate("mailConfiguration.maxAllowedAttachmentSize", 123, true);
         assertValidate("mailConfiguration.maxAllowedAttachmentSize", -1, false);
         assertValidate("mailConfiguration.maxAllowedAttachmentSize", 3000, false);
+        assertValidate("mailConfiguration.fetchSize", 1024, true);
+        assertValidate("mailConfiguration.fetchSize", 8, false);
+        assertValidate("mailConfiguration.fetchSize", 20000, false);
+        assertValidate("mailConfiguration.windowSize", 0, true);
+        assertValidate("mailConfiguration.windowSize", 500, true);
+        assertValidate("mailConfiguration.windowSize", -1, false);
+        assertValidate("mailConfiguration.windowSize", 20000, false);
+        assertValidate("mailConfiguration.pipelineDepth", 0, true);
+        assertValidate("mailConfiguration.pipelineDepth", 8, true);
+        assertValidate("mailConfiguration.pipelineDepth", -1, false);
+        assertValidate("mailConfiguration.pipelineDepth", 100, false);
+        assertValidate("mailConfiguration.maxPipelinedMessageSize", 4, true);
+        assertValidate("mailConfiguration.maxPipelinedMessageSize", 0, false);
+        assertValidate("mailConfiguration.maxPipelinedMessageSize", 1000, false);
+        assertValidate("mailConfiguration.commitWorkers", 1, true);
+        assertValidate("mailConfiguration.commitWorkers", 8, true);
+        assertValidate("mailConfiguration.commitWorkers", 0, false);
+        assertValidate("mailConfiguration.commitWorkers", 100, false);
+        assertValidate("mailConfiguration.timeBudget", 0, true);
+        assertValidate("mailConfiguration.timeBudget", 600, true);
+        assertValidate("mailConfiguration.timeBudget", -1, false);
+        assertValidate("mailConfiguration.timeBudget", 100000, false);
+        assertValidate("mailConfiguration.messageBudget", 0, true);
+        assertValidate("mailConfiguration.messageBudget", 500, true);
+        assertValidate("mailConfiguration.messageBudget", -1, false);
+        assertValidate("mailConfiguration.messageBudget", 1000000, false);
+        assertValidate("mailConfiguration.partitions", 0, true);
+        assertValidate("mailConfiguration.partitions", 16, true);
+        assertValidate("mailConfiguration.partitions", -1, false);
+        assertValidate("mailConfiguration.partitions", 100, false);
+        assertValidate("mailConfiguration.timeout", 30, true);
+        assertValidate("mailConfiguration.timeout", 0, true);
+        assertValidate("mailConfiguration.timeout", -1, false);
+        assertValidate("mailConfiguration.timeout", 1000, false);
+        assertValidate("mailConfiguration.circuitBreakerThreshold", 0, true);
+        assertValidate("mailConfiguration.circuitBreakerThreshold", 5, true);
+        assertValidate("mailConfiguration.circuitBreakerThreshold", -1, false);
+        assertValidate("mailConfiguration.retentionDays", 0, true);
+        assertValidate("mailConfiguration.retentionDays", 365, true);
+        assertValidate("mailConfiguration.retentionDays", -1, false);
+        assertValidate("mailConfiguration.maxMessageAge", 0, true);
+        assertValidate("mailConfiguration.maxMessageAge", 30, true);
+        assertValidate("mailConfiguration.maxMessageAge", -1, false);
+        assertValidate("mailConfiguration.allowedSenderDomains", "", true);
+        assertValidate("mailConfiguration.allowedSenderDomains", "example.org, Sub.Example.com", true);
+        assertValidate("mailConfiguration.allowedSenderDomains", "alice@example.org", false);
+        assertValidate("mailConfiguration.protocol", "imap", true);
+        assertValidate("mailConfiguration.compress", true, true);
+        assertValidate("mailConfiguration.protocol", "pop3", true);
+        assertValidate("mailConfiguration.compress", true, false);
+        assertValidate("mailConfiguration.compress", false, true);
+        assertValidate("mailConfiguration.leaveOnServer", true, true);
+        assertValidate("mailConfiguration.protocol", "imap", true);
+        assertValidate("mailConfiguration.leaveOnServer", true, false);
+        assertValidate("mailConfiguration.leaveOnServer", false, true);
         assertValidate("mailConfiguration.maxAllowedNumberOfAttachments", -1, true);
         assertValidate("mailConfiguration.maxAllowedNumberOfAttachments", 0, true);
         assertValidate("mailConfiguration.maxAllowedNumberOfAttachments", 10, true);
@@ -226,6 +287,27 @@ public class ConfigurationActionTest
         assertValidate("mailConfiguration.securityGroup", "bogus", false);
     }
 
+    /**
+     * Make sure the profile given in the request is edited.
+     */
+    @Test
+    public void testProfile() throws Exception {
+        assertEquals(MailConfigurationManager.DEFAULT_PROFILE, configurationAction.getProfile());
+        assertEquals(mailConfiguration, configurationAction.getMailConfiguration());
+
+        MailConfiguration salesConfiguration = MailConfiguration.builder().username("sales").build();
+        when(globalState.getMailConfigurationWrapper("sales")).thenReturn(new MailConfigurationWrapper(salesConfiguration));
+
+        profile = " Sales ";
+        assertEquals("sales", configurationAction.getProfile());
+        assertEquals(salesConfiguration, configurationAction.getMailConfiguration());
+
+        when(globalState.getMailConfigurationWrapper("../sales")).thenReturn(new MailConfigurationWrapper(MailConfiguration.builder().build()));
+        profile = "../sales";
+        configurationAction.validate();
+        assertTrue(configurationAction.getFieldErrors().containsKey("profile"));
+    }
+
     /**
      * Test the validation process for space rules.
      */
@@ -6,7 +6,11 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -30,6 +34,8 @@ public class GlobalStateTest
             .build();
 
         when(configurationManager.loadConfig()).thenReturn(mailConfiguration);
+        when(configurationManager.loadProfileNames()).thenReturn(Arrays.asList(MailConfigurationManager.DEFAULT_PROFILE, "sales"));
+        when(configurationManager.loadConfig("sales")).thenReturn(MailConfiguration.builder().username("sales").build());
 
         globalState.setMailConfigurationManager(configurationManager);
     }
@@ -52,4 +58,25 @@ public class GlobalStateTest
         assertEquals("Failed to get config", mailConfiguration, mailConfigurationThirdTime);
         verify(configurationManager, times(2)).loadConfig();
     }
+
+    @Test
+    public void testProfiles() throws Exception {
+        Map<String, MailConfigurationWrapper> wrappers = globalState.getMailConfigurationWrappers();
+        assertEquals(Arrays.asList(MailConfigurationManager.DEFAULT_PROFILE, "sales"), Arrays.asList(wrappers.keySet().toArray()));
+        assertEquals(mailConfiguration, wrappers.get(MailConfigurationManager.DEFAULT_PROFILE).getMailConfiguration());
+        assertEquals("sales", wrappers.get("sales").getMailConfiguration().getUsername());
+        assertSame(wrappers.get("sales"), globalState.getMailConfigurationWrapper("sales"));
+
+        // Profiles are loaded once.
+        globalState.getMailConfigurationWrappers();
+        verify(configurationManager, times(1)).loadProfileNames();
+
+        // Replace and remove profiles after they have been saved.
+        MailConfigurationWrapper saved = new MailConfigurationWrapper(MailConfiguration.builder().username("sales2").build());
+        globalState.setMailConfigurationWrapper("sales", saved);
+        assertSame(saved, globalState.getMailConfigurationWrapper("sales"));
+
+        globalState.setMailConfigurationWrapper("sales", null);
+        assertEquals(1, globalState.getMailConfigurationWrappers().size());
+    }
 }
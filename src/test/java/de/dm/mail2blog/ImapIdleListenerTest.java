@@ -0,0 +1,158 @@
+package de.dm.mail2blog;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.sun.mail.imap.IMAPFolder;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import javax.mail.Message;
+import javax.mail.event.MessageCountEvent;
+import javax.mail.event.MessageCountListener;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class ImapIdleListenerTest
+{
+    @Mock private GlobalState globalState;
+    @Mock private Mail2BlogJob mail2BlogJob;
+    @Mock private ClusterLockService clusterLockService;
+    @Mock private ClusterLock clusterLock;
+    @Mock private Mailbox mailbox;
+    @Mock private IMAPFolder inbox;
+
+    private ImapIdleListener listener;
+    private MailConfigurationWrapper mailConfigurationWrapper;
+
+    @Before
+    public void setUp() throws Exception {
+        mailConfigurationWrapper = new MailConfigurationWrapper(
+            MailConfiguration.builder().protocol("imap").imapIdle(true).build()
+        );
+
+        when(globalState.getMailConfigurationWrapper()).thenReturn(mailConfigurationWrapper);
+        when(clusterLockService.getLockForName(ImapIdleListener.LOCK_NAME)).thenReturn(clusterLock);
+        when(mail2BlogJob.newMailbox(mailConfigurationWrapper)).thenReturn(mailbox);
+        when(mailbox.getInbox()).thenReturn(inbox);
+
+        listener = spy(new ImapIdleListener());
+        listener.setGlobalState(globalState);
+        listener.setMail2BlogJob(mail2BlogJob);
+        listener.running = true;
+        doReturn(clusterLockService).when(listener).getClusterLockService();
+    }
+
+    /**
+     * Make sure only the node holding the cluster lock connects.
+     */
+    @Test
+    public void testLockHeldByOtherNode() throws Exception {
+        when(clusterLock.tryLock()).thenReturn(false);
+
+        listener.listen();
+
+        verify(mail2BlogJob, never()).newMailbox(any(MailConfigurationWrapper.class));
+        verify(clusterLock, never()).unlock();
+    }
+
+    /**
+     * Make sure new messages trigger the job and the connection gets closed on configuration changes.
+     */
+    @Test
+    public void testNewMessagesTriggerJob() throws Exception {
+        when(clusterLock.tryLock()).thenReturn(true);
+
+        // Remember the listener registered on the INBOX.
+        final MessageCountListener[] registered = new MessageCountListener[1];
+        doAnswer(new Answer() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                registered[0] = invocationOnMock.getArgument(0);
+                return null;
+            }
+        }).when(inbox).addMessageCountListener(any(MessageCountListener.class));
+
+        doAnswer(new Answer() {
+            private int calls = 0;
+
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                calls++;
+                if (calls == 1) {
+                    // The server reports a new message.
+                    registered[0].messagesAdded(new MessageCountEvent(inbox, MessageCountEvent.ADDED, false, new Message[]{}));
+                } else {
+                    // The configuration changes.
+                    when(globalState.getMailConfigurationWrapper()).thenReturn(mailConfigurationWrapper.duplicate());
+                }
+                return null;
+            }
+        }).when(inbox).idle(true);
+
+        listener.listen();
+
+        verify(inbox, times(2)).idle(true);
+        verify(mail2BlogJob, times(2)).runJob(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+        verify(mailbox).close();
+        verify(clusterLock).unlock();
+    }
+
+    /**
+     * Make sure new messages trigger the job, before javax.mail delivered the MessageCountEvent.
+     */
+    @Test
+    public void testMessageCountTriggersJob() throws Exception {
+        when(clusterLock.tryLock()).thenReturn(true);
+        when(inbox.getMessageCount()).thenReturn(3);
+
+        doAnswer(new Answer() {
+            private int calls = 0;
+
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                calls++;
+                if (calls == 1) {
+                    // The server reports a new message, the event is still queued.
+                    when(inbox.getMessageCount()).thenReturn(4);
+                } else {
+                    // The configuration changes.
+                    when(globalState.getMailConfigurationWrapper()).thenReturn(mailConfigurationWrapper.duplicate());
+                }
+                return null;
+            }
+        }).when(inbox).idle(true);
+
+        listener.listen();
+
+        verify(inbox, times(2)).idle(true);
+        verify(mail2BlogJob, times(2)).runJob(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+    }
+
+    /**
+     * Make sure IDLE is only used with IMAP.
+     */
+    @Test
+    public void testIdleDisabledForPop3() throws Exception {
+        MailConfigurationWrapper pop3 = new MailConfigurationWrapper(
+            MailConfiguration.builder().protocol("pop3").imapIdle(true).build()
+        );
+
+        assertFalse(listener.isIdleEnabled(pop3));
+        assertTrue(listener.isIdleEnabled(mailConfigurationWrapper));
+    }
+}
@@ -7,13 +7,25 @@ import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.search.SearchTerm;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -106,4 +118,189 @@ public class ImapMailboxFlagStrategyTest {
 
         verifyMsgsProcessed(defaultProcessed, defaultInvalid);
     }
+
+    @Test
+    public void testDeferredFlagging() throws Exception {
+        Folder processed = mock(Folder.class);
+        Folder invalid = mock(Folder.class);
+
+        when(mockData.getInbox().getFolder("Processed")).thenReturn(processed);
+        when(mockData.getInbox().getFolder("Invalid")).thenReturn(invalid);
+
+        when(processed.exists()).thenReturn(true);
+        when(invalid.exists()).thenReturn(true);
+
+        strategy.setDeferred(true);
+
+        // Flag messages, nothing should be moved yet.
+        strategy.flagAsProcessed(mockData.getExampleMail1());
+        strategy.flagAsProcessed(mockData.getExampleMail2());
+        verify(mockData.getInbox(), times(0)).copyMessages(any(Message[].class), any(Folder.class));
+
+        // Commit, all messages should be moved with one operation.
+        strategy.commitFlags();
+
+        Message[] messages = new Message[]{mockData.getExampleMail1(), mockData.getExampleMail2()};
+        verify(mockData.getInbox(), times(1)).copyMessages(messages, processed);
+        verify(mockData.getInbox(), times(1)).setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+        verify(mockData.getInbox(), times(1)).expunge();
+        verify(invalid, times(0)).open(anyInt());
+
+        // A second commit must not move messages again.
+        strategy.commitFlags();
+        verify(mockData.getInbox(), times(1)).copyMessages(messages, processed);
+    }
+
+    @Test
+    public void testDeferredFlaggingRetry() throws Exception {
+        Folder processed = mock(Folder.class);
+        when(mockData.getInbox().getFolder("Processed")).thenReturn(processed);
+        when(processed.exists()).thenReturn(true);
+
+        Message[] messages = new Message[]{mockData.getExampleMail1()};
+        doThrow(new MessagingException("connection lost")).doNothing().when(mockData.getInbox()).copyMessages(messages, processed);
+
+        strategy.setDeferred(true);
+        strategy.flagAsProcessed(mockData.getExampleMail1());
+
+        try {
+            strategy.commitFlags();
+            fail("No exception thrown");
+        } catch (MailboxException e) {}
+
+        // The messages are still pending and get moved with the next commit.
+        strategy.commitFlags();
+        verify(mockData.getInbox(), times(2)).copyMessages(messages, processed);
+        verify(mockData.getInbox(), times(1)).setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+
+        strategy.commitFlags();
+        verify(mockData.getInbox(), times(2)).copyMessages(messages, processed);
+    }
+
+    @Test
+    public void testDeferredFlaggingRetryDelete() throws Exception {
+        Folder processed = mock(Folder.class);
+        when(mockData.getInbox().getFolder("Processed")).thenReturn(processed);
+        when(processed.exists()).thenReturn(true);
+
+        Message[] messages = new Message[]{mockData.getExampleMail1()};
+        doThrow(new MessagingException("connection lost")).doNothing().when(mockData.getInbox()).expunge();
+
+        strategy.setDeferred(true);
+        strategy.flagAsProcessed(mockData.getExampleMail1());
+
+        try {
+            strategy.commitFlags();
+            fail("No exception thrown");
+        } catch (MailboxException e) {}
+
+        // The copy succeeded, the retry only deletes the messages from the INBOX.
+        strategy.commitFlags();
+        verify(mockData.getInbox(), times(1)).copyMessages(messages, processed);
+        verify(mockData.getInbox(), times(2)).setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+        verify(mockData.getInbox(), times(2)).expunge();
+    }
+
+    @Test
+    public void testFolderCache() throws Exception {
+        Mailbox realMailbox = spy(new Mailbox(new MailConfigurationWrapper(MailConfiguration.builder().build())));
+        doReturn(mockData.getStore()).when(realMailbox).getStore();
+        strategy = new ImapMailboxFlagStrategy(realMailbox);
+
+        Folder inboxProcessed = mock(Folder.class);
+        Folder defaultProcessed = mock(Folder.class);
+        Folder defaultInvalid = mock(Folder.class);
+
+        when(mockData.getInbox().getFolder("Processed")).thenReturn(inboxProcessed);
+        when(mockData.getDefaultFolder().getFolder("Processed")).thenReturn(defaultProcessed);
+        when(mockData.getDefaultFolder().getFolder("Invalid")).thenReturn(defaultInvalid);
+
+        when(inboxProcessed.exists()).thenReturn(false);
+        when(inboxProcessed.create(Folder.HOLDS_MESSAGES)).thenReturn(false);
+        when(defaultProcessed.exists()).thenReturn(true);
+        when(defaultProcessed.isOpen()).thenReturn(true);
+        when(defaultInvalid.exists()).thenReturn(true);
+        when(defaultInvalid.isOpen()).thenReturn(true);
+
+        strategy.flagAsProcessed(mockData.getExampleMail1());
+        strategy.flagAsProcessed(mockData.getExampleMail2());
+        strategy.flagAsInvalid(mockData.getExampleMail1());
+
+        // Processed is opened once, Invalid is created below ROOT right away.
+        verify(defaultProcessed, times(1)).open(Folder.READ_WRITE);
+        verify(mockData.getInbox(), times(1)).getFolder("Processed");
+        verify(mockData.getInbox(), times(0)).getFolder("Invalid");
+        verify(defaultInvalid, times(1)).open(Folder.READ_WRITE);
+        verify(defaultProcessed, times(0)).close(anyBoolean());
+
+        // Folders get closed together with the mailbox.
+        realMailbox.close();
+        verify(defaultProcessed, times(1)).close(false);
+        verify(defaultInvalid, times(1)).close(false);
+    }
+
+    @Test
+    public void testRetentionArchive() throws Exception {
+        Folder processed = mock(Folder.class);
+        Folder invalid = mock(Folder.class);
+        Folder archiveOctober = mock(Folder.class);
+        Folder archiveSeptember = mock(Folder.class);
+
+        when(mockData.getInbox().getFolder("Processed")).thenReturn(processed);
+        when(mockData.getInbox().getFolder("Invalid")).thenReturn(invalid);
+        when(processed.exists()).thenReturn(true);
+        when(invalid.exists()).thenReturn(true);
+        when(processed.getFolder("2026-10")).thenReturn(archiveOctober);
+        when(processed.getFolder("2026-09")).thenReturn(archiveSeptember);
+        when(archiveOctober.exists()).thenReturn(false);
+        when(archiveOctober.create(Folder.HOLDS_MESSAGES)).thenReturn(true);
+        when(archiveSeptember.exists()).thenReturn(true);
+
+        Message message1 = mock(Message.class);
+        Message message2 = mock(Message.class);
+        Message message3 = mock(Message.class);
+        when(message1.getFolder()).thenReturn(processed);
+        when(message3.getFolder()).thenReturn(processed);
+
+        // All old messages, then the messages of October and September.
+        when(processed.search(any(SearchTerm.class))).thenReturn(
+            new Message[]{message1, message2, message3},
+            new Message[]{message1, message2},
+            new Message[]{message3}
+        );
+        when(invalid.search(any(SearchTerm.class))).thenReturn(new Message[0]);
+
+        Date before = new GregorianCalendar(2026, Calendar.OCTOBER, 15).getTime();
+        assertEquals(3, strategy.applyRetention(before, false));
+
+        verify(archiveOctober, times(1)).create(Folder.HOLDS_MESSAGES);
+        verify(processed, times(1)).copyMessages(new Message[]{message1, message2}, archiveOctober);
+        verify(processed, times(1)).copyMessages(new Message[]{message3}, archiveSeptember);
+        verify(processed, times(3)).search(any(SearchTerm.class));
+        verify(invalid, times(1)).search(any(SearchTerm.class));
+        verify(invalid, times(0)).copyMessages(any(Message[].class), any(Folder.class));
+    }
+
+    @Test
+    public void testRetentionExpunge() throws Exception {
+        Folder processed = mock(Folder.class);
+        Folder invalid = mock(Folder.class);
+
+        when(mockData.getInbox().getFolder("Processed")).thenReturn(processed);
+        when(mockData.getInbox().getFolder("Invalid")).thenReturn(invalid);
+        when(processed.exists()).thenReturn(true);
+        when(invalid.exists()).thenReturn(true);
+
+        Message[] oldProcessed = new Message[]{mock(Message.class), mock(Message.class)};
+        when(processed.search(any(SearchTerm.class))).thenReturn(oldProcessed);
+        when(invalid.search(any(SearchTerm.class))).thenReturn(new Message[0]);
+
+        Date before = new GregorianCalendar(2026, Calendar.OCTOBER, 15).getTime();
+        assertEquals(2, strategy.applyRetention(before, true));
+
+        verify(processed, times(1)).setFlags(oldProcessed, new Flags(Flags.Flag.DELETED), true);
+        verify(processed, times(1)).expunge();
+        verify(processed, times(0)).getFolder(any(String.class));
+        verify(invalid, times(0)).expunge();
+    }
 }
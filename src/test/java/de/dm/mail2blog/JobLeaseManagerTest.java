@@ -0,0 +1,134 @@
+package de.dm.mail2blog;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Two lease managers stand in for two nodes sharing the bandana storage.
+ */
+public class JobLeaseManagerTest
+{
+    private static final String NAME = Mail2BlogJob.JOB_LOCK_NAME;
+
+    private final Map<String, JobLease> storage = new HashMap<String, JobLease>();
+    private long now = 1000000;
+
+    private JobLeaseManager node1;
+    private JobLeaseManager node2;
+
+    @Before
+    public void setUp() throws Exception {
+        ClusterLockService clusterLockService = mock(ClusterLockService.class);
+        when(clusterLockService.getLockForName(any(String.class))).thenReturn(mock(ClusterLock.class));
+
+        MailboxCheckpointManager checkpointManager = new MailboxCheckpointManager() {
+            @Override
+            public JobLease loadLease(String name) {
+                JobLease lease = storage.get(name);
+                return lease != null ? lease : JobLease.builder().build();
+            }
+
+            @Override
+            public void saveLease(String name, JobLease lease) {
+                storage.put(name, lease);
+            }
+        };
+
+        node1 = newNode(clusterLockService, checkpointManager);
+        node2 = newNode(clusterLockService, checkpointManager);
+    }
+
+    @After
+    public void tearDown() {
+        node1.destroy();
+        node2.destroy();
+    }
+
+    /**
+     * Make sure only one node holds the lease and the other node can take it once it's released.
+     */
+    @Test
+    public void testAcquireAndRelease() throws Exception {
+        JobLeaseManager.Lease lease = node1.tryAcquire(NAME, null);
+        assertNotNull(lease);
+        assertEquals(node1.getNodeId(), node2.getHolder(NAME).getOwner());
+
+        assertNull(node2.tryAcquire(NAME, null));
+
+        lease.close();
+        JobLeaseManager.Lease lease2 = node2.tryAcquire(NAME, null);
+        assertNotNull(lease2);
+        assertEquals(node2.getNodeId(), node1.getHolder(NAME).getOwner());
+        lease2.close();
+    }
+
+    /**
+     * Make sure the heartbeat keeps the lease and an expired lease is taken over.
+     */
+    @Test
+    public void testHeartbeatAndExpiry() throws Exception {
+        final AtomicBoolean lost = new AtomicBoolean(false);
+        JobLeaseManager.Lease lease = node1.tryAcquire(NAME, new Runnable() {
+            public void run() {
+                lost.set(true);
+            }
+        });
+
+        // The heartbeat extends the lease.
+        now += JobLeaseManager.LEASE_DURATION - 1000;
+        node1.renew(lease);
+        now += 2000;
+        assertNull(node2.tryAcquire(NAME, null));
+
+        // Without heartbeat the lease expires, as if node1 died.
+        now += JobLeaseManager.LEASE_DURATION;
+        JobLeaseManager.Lease lease2 = node2.tryAcquire(NAME, null);
+        assertNotNull(lease2);
+
+        // Node1 notices that it lost the lease and mustn't release the lease of node2.
+        node1.renew(lease);
+        assertTrue(lease.isLost());
+        assertTrue(lost.get());
+        lease.close();
+        assertEquals(node2.getNodeId(), node1.getHolder(NAME).getOwner());
+        assertTrue(node1.getHolder(NAME).isHeld(now));
+
+        lease2.close();
+        assertFalse(node1.getHolder(NAME).isHeld(now));
+    }
+
+    private JobLeaseManager newNode(final ClusterLockService clusterLockService, final MailboxCheckpointManager checkpointManager) {
+        return new JobLeaseManager() {
+            @Override
+            public ClusterLockService getClusterLockService() {
+                return clusterLockService;
+            }
+
+            @Override
+            public MailboxCheckpointManager getCheckpointManager() {
+                return checkpointManager;
+            }
+
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package de.dm.mail2blog;
+
+import org.junit.Test;
+
+import javax.mail.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class JobProgressTest
+{
+    /**
+     * Current time seen by the progress in this test.
+     */
+    private long now = 1000000;
+
+    /**
+     * Make sure messages and bytes are counted and the clock stops once the run is finished.
+     */
+    @Test
+    public void testProgress() throws Exception {
+        JobProgress progress = new JobProgress() {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+
+        Message message = mock(Message.class);
+        when(message.getSize()).thenReturn(1000);
+
+        progress.addSeen(3);
+        progress.addMessage(true, message);
+        progress.addMessage(false, message);
+        progress.addMessage(true, mock(Message.class));
+
+        assertEquals(3, progress.getSeen());
+        assertEquals(2, progress.getProcessed());
+        assertEquals(1, progress.getInvalid());
+        assertEquals(2000, progress.getBytes());
+
+        now += 5000;
+        assertEquals(5000, progress.getElapsed());
+        progress.finish();
+        now += 5000;
+        assertEquals(5000, progress.getElapsed());
+    }
+
+    /**
+     * Make sure rejected messages are counted as invalid without asking for their size.
+     */
+    @Test
+    public void testRejected() throws Exception {
+        JobProgress progress = new JobProgress();
+
+        progress.addRejected(2);
+
+        assertEquals(2, progress.getSeen());
+        assertEquals(2, progress.getInvalid());
+        assertEquals(0, progress.getBytes());
+    }
+
+    /**
+     * Make sure a follower takes over the counts so far and receives all later counts.
+     */
+    @Test
+    public void testFollow() throws Exception {
+        Message message = mock(Message.class);
+        when(message.getSize()).thenReturn(1000);
+
+        JobProgress run = new JobProgress();
+        run.addSeen(2);
+        run.addMessage(true, message);
+
+        JobProgress caller = new JobProgress();
+        JobProgress joined = new JobProgress();
+        caller.follow(run);
+        joined.follow(run);
+        run.addMessage(false, message);
+
+        for (JobProgress progress : new JobProgress[]{run, caller, joined}) {
+            assertEquals(2, progress.getSeen());
+            assertEquals(1, progress.getProcessed());
+            assertEquals(1, progress.getInvalid());
+            assertEquals(2000, progress.getBytes());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package de.dm.mail2blog;
+
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.status.RunOutcome;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JobRunRegistryTest
+{
+    private Mail2BlogJob mail2BlogJob;
+    private JobRunRegistry jobRunRegistry;
+
+    @Before
+    public void setUp() throws Exception {
+        mail2BlogJob = mock(Mail2BlogJob.class);
+        jobRunRegistry = new JobRunRegistry();
+        jobRunRegistry.setMail2BlogJob(mail2BlogJob);
+    }
+
+    @After
+    public void tearDown() {
+        jobRunRegistry.destroy();
+    }
+
+    /**
+     * Make sure a run is started in the background and its progress and result can be looked up.
+     */
+    @Test
+    public void testStart() throws Exception {
+        final CountDownLatch proceed = new CountDownLatch(1);
+        when(mail2BlogJob.runJob(isNull(), any(JobProgress.class))).thenAnswer(new Answer<JobRunnerResponse>() {
+            public JobRunnerResponse answer(InvocationOnMock invocation) throws Exception {
+                ((JobProgress) invocation.getArgument(1)).addSeen(5);
+                proceed.await(10, TimeUnit.SECONDS);
+                return JobRunnerResponse.success("done");
+            }
+        });
+
+        JobRunRegistry.JobRun run = jobRunRegistry.start();
+        assertSame(run, jobRunRegistry.get(run.getId()));
+        assertFalse(run.isFinished());
+
+        // A second request joins the active run.
+        assertSame(run, jobRunRegistry.start());
+
+        proceed.countDown();
+        assertTrue(run.awaitFinished(10, TimeUnit.SECONDS));
+        assertEquals(RunOutcome.SUCCESS, run.getResult().getRunOutcome());
+        assertEquals(5, run.getProgress().getSeen());
+        verify(mail2BlogJob, times(1)).runJob(isNull(), any(JobProgress.class));
+
+        assertNull(jobRunRegistry.get("unknown"));
+    }
+
+    /**
+     * Make sure only the most recent runs are kept.
+     */
+    @Test
+    public void testPrune() throws Exception {
+        when(mail2BlogJob.runJob(isNull(), any(JobProgress.class))).thenReturn(JobRunnerResponse.success());
+
+        JobRunRegistry.JobRun first = jobRunRegistry.start();
+        assertTrue(first.awaitFinished(10, TimeUnit.SECONDS));
+
+        JobRunRegistry.JobRun last = null;
+        for (int i = 0; i < JobRunRegistry.MAX_RUNS; i++) {
+            last = jobRunRegistry.start();
+            assertTrue(last.awaitFinished(10, TimeUnit.SECONDS));
+        }
+
+        assertNull(jobRunRegistry.get(first.getId()));
+        assertSame(last, jobRunRegistry.get(last.getId()));
+    }
+}
@@ -9,6 +9,7 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import javax.ws.rs.core.Response;
+import java.io.StringWriter;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -22,6 +23,7 @@ public class Mail2BlogJobRestTest
     @Mock private Mail2BlogJobRest restAction;
     @Mock private JobRunnerResponse response;
     @Mock private RunOutcome runOutcome;
+    @Mock private JobRunRegistry jobRunRegistry;
 
     private final static String MESSAGE = "Hello World";
     private final static String STATUS = "SUCCESS";
@@ -38,6 +40,7 @@ public class Mail2BlogJobRestTest
 
         restAction = new Mail2BlogJobRest();
         restAction.setMail2BlogJob(mail2BlogJob);
+        restAction.setJobRunRegistry(jobRunRegistry);
     }
 
     @Test
@@ -49,4 +52,79 @@ public class Mail2BlogJobRestTest
         assertEquals(MESSAGE, ((Mail2BlogJobRestResponse)result.getEntity()).getMessage());
         assertEquals(STATUS, ((Mail2BlogJobRestResponse)result.getEntity()).getStatus());
     }
-}
\ No newline at end of file
+
+    /**
+     * Make sure runs that stopped at their budget are reported as partial.
+     */
+    @Test
+    public void testPartial() throws Exception {
+        when(mail2BlogJob.runJob(null)).thenReturn(JobRunnerResponse.success(Mail2BlogJob.PARTIAL_MESSAGE + "stopped"));
+
+        Response result = restAction.run();
+
+        assertEquals("PARTIAL", ((Mail2BlogJobRestResponse)result.getEntity()).getStatus());
+    }
+
+    /**
+     * Make sure an asynchronous run returns its id right away.
+     */
+    @Test
+    public void testStart() throws Exception {
+        when(jobRunRegistry.start()).thenReturn(new JobRunRegistry.JobRun("run1"));
+
+        Response result = restAction.start();
+
+        assertEquals("Expected HTTP-Status-Code 202", 202, result.getStatus());
+        assertEquals("run1", ((Mail2BlogJobRestResponse)result.getEntity()).getRunId());
+        assertEquals("RUNNING", ((Mail2BlogJobRestResponse)result.getEntity()).getStatus());
+    }
+
+    /**
+     * Make sure the status reports the progress and the result of a run.
+     */
+    @Test
+    public void testStatus() throws Exception {
+        JobRunRegistry.JobRun run = new JobRunRegistry.JobRun("run1");
+        run.getProgress().addSeen(3);
+        run.finish(JobRunnerResponse.success("done"));
+        when(jobRunRegistry.get("run1")).thenReturn(run);
+
+        Response result = restAction.status("run1");
+
+        Mail2BlogJobRestResponse response = (Mail2BlogJobRestResponse)result.getEntity();
+        assertEquals("Expected HTTP-Status-Code 200", 200, result.getStatus());
+        assertEquals("SUCCESS", response.getStatus());
+        assertEquals("done", response.getMessage());
+        assertEquals(3, response.getMessagesSeen());
+
+        assertEquals("Expected HTTP-Status-Code 404", 404, restAction.status("unknown").getStatus());
+    }
+
+    /**
+     * Make sure the stream sends progress events until the run is finished.
+     */
+    @Test
+    public void testStream() throws Exception {
+        final JobRunRegistry.JobRun run = new JobRunRegistry.JobRun("run1");
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                run.finish(JobRunnerResponse.success("done"));
+            }
+        }).start();
+
+        StringWriter writer = new StringWriter();
+        restAction.writeEvents(run, writer);
+
+        String[] events = writer.toString().split("\n\n");
+        assertTrue("Expected progress events before the result", events.length >= 2);
+        assertTrue(events[0].startsWith("data: {"));
+        assertTrue(events[0].contains("\"status\":\"RUNNING\""));
+        assertTrue(events[events.length - 1].contains("\"status\":\"SUCCESS\""));
+        assertTrue(events[events.length - 1].contains("\"runId\":\"run1\""));
+    }
+}
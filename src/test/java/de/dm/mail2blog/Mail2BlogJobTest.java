@@ -1,6 +1,7 @@
 package de.dm.mail2blog;
 
 import com.atlassian.confluence.spaces.SpaceManager;
+import com.atlassian.sal.api.transaction.TransactionCallback;
 import com.atlassian.sal.api.transaction.TransactionTemplate;
 import com.atlassian.scheduler.JobRunnerResponse;
 import com.atlassian.scheduler.status.RunOutcome;
@@ -9,19 +10,46 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import javax.mail.Message;
 import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -39,6 +67,9 @@ public class Mail2BlogJobTest
     private SpaceManager spaceManager;
     private TransactionTemplate transactionTemplate;
     private Mailbox mailbox;
+    private MailboxCircuitBreaker mailboxCircuitBreaker;
+    private JobLeaseManager jobLeaseManager;
+    private JobLeaseManager.Lease lease;
 
     @BeforeClass
     public static void setUpBeforeClass() throws Exception {
@@ -55,6 +86,11 @@ public class Mail2BlogJobTest
         transactionTemplate = mock(TransactionTemplate.class);
         doReturn(transactionTemplate).when(mail2BlogJob).getTransactionTemplate();
 
+        jobLeaseManager = mock(JobLeaseManager.class);
+        lease = mock(JobLeaseManager.Lease.class);
+        when(jobLeaseManager.tryAcquire(any(String.class), any(Runnable.class))).thenReturn(lease);
+        mail2BlogJob.setJobLeaseManager(jobLeaseManager);
+
         spaceManager = mock(SpaceManager.class);
         mail2BlogJob.setSpaceManager(spaceManager);
 
@@ -64,12 +100,16 @@ public class Mail2BlogJobTest
         globalState = mock(GlobalState.class);
         mail2BlogJob.setGlobalState(globalState);
 
+        mailboxCircuitBreaker = new MailboxCircuitBreaker();
+        mail2BlogJob.setMailboxCircuitBreaker(mailboxCircuitBreaker);
+
         mailConfiguration = MailConfiguration.builder().username("alice").emailaddress("alice@example.org").build();
         when(globalState.getMailConfigurationWrapper()).thenReturn(new MailConfigurationWrapper(mailConfiguration));
 
         // Mock mailbox.
         mailbox = mock(Mailbox.class);
         when(mailbox.getMessages()).thenReturn(new Message[]{exampleMessage});
+        when(mailbox.searchRejected()).thenReturn(new Message[0]);
         mock(Mailbox.class);
 
         doReturn(mailbox).when(mail2BlogJob).newMailbox(any(MailConfigurationWrapper.class));
@@ -120,6 +160,534 @@ public class Mail2BlogJobTest
         assertEquals("alice@example.org", captor.getValue().getMailConfigurationWrapper().getMailConfiguration().getEmailaddress());
     }
 
+    /**
+     * Make sure the progress of a run is passed on to the transactions.
+     */
+    @Test
+    public void testRunJobProgress() throws Exception {
+        JobProgress progress = new JobProgress();
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null, progress);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+        assertEquals(1, progress.getSeen());
+
+        // Messages counted by the transaction show up in the progress of the caller.
+        ArgumentCaptor<MessageTransaction> captor = ArgumentCaptor.forClass(MessageTransaction.class);
+        verify(transactionTemplate).execute(captor.capture());
+        captor.getValue().getProgress().addMessage(false, exampleMessage);
+        assertEquals(1, progress.getInvalid());
+    }
+
+    /**
+     * Make sure messages downloaded in advance are passed on in the usual order.
+     */
+    @Test
+    public void testRunJobPipelined() throws Exception {
+        mailConfiguration.setPipelineDepth(4);
+
+        Message message1 = new MimeMessage((MimeMessage) exampleMessage);
+        Message message2 = new MimeMessage((MimeMessage) exampleMessage);
+        Message message3 = new MimeMessage((MimeMessage) exampleMessage);
+        when(mailbox.getMessages()).thenReturn(new Message[]{message1, message2, message3});
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+
+        ArgumentCaptor<MessageTransaction> captor = ArgumentCaptor.forClass(MessageTransaction.class);
+        verify(transactionTemplate, times(3)).execute(captor.capture());
+
+        List<MessageTransaction> transactions = captor.getAllValues();
+        assertSame(message3, transactions.get(0).getMessage());
+        assertSame(message2, transactions.get(1).getMessage());
+        assertSame(message1, transactions.get(2).getMessage());
+        for (MessageTransaction transaction : transactions) {
+            assertEquals(exampleMessage.getSubject(), transaction.getContent().getSubject());
+        }
+    }
+
+    /**
+     * Make sure the size of the messages downloaded in advance doesn't depend on the partial fetch size.
+     */
+    @Test
+    public void testRunJobPipelinedSize() throws Exception {
+        mailConfiguration.setPipelineDepth(4);
+        mailConfiguration.setMaxPipelinedMessageSize(1);
+
+        // Larger than a partial fetch, but smaller than the limit.
+        Message small = newMessage(100 * 1024);
+        Message large = newMessage(2 * 1024 * 1024);
+        when(mailbox.getMessages()).thenReturn(new Message[]{large, small});
+
+        mail2BlogJob.runJob(null);
+
+        ArgumentCaptor<MessageTransaction> captor = ArgumentCaptor.forClass(MessageTransaction.class);
+        verify(transactionTemplate, times(2)).execute(captor.capture());
+        assertSame(small, captor.getAllValues().get(0).getMessage());
+        assertNotNull(captor.getAllValues().get(0).getContent());
+        assertSame(large, captor.getAllValues().get(1).getMessage());
+        assertNull(captor.getAllValues().get(1).getContent());
+    }
+
+    /**
+     * Create a plain text message with a body of the given size.
+     */
+    private static Message newMessage(int size) throws Exception {
+        StringBuilder source = new StringBuilder("Subject: Hello World\r\n\r\n");
+        for (int i = 0; i < size; i++) {
+            source.append(i % 80 == 79 ? '\n' : 'x');
+        }
+
+        return new MimeMessage(null, new ByteArrayInputStream(source.toString().getBytes("US-ASCII")));
+    }
+
+    /**
+     * Make sure messages that fail the envelope check aren't downloaded in advance.
+     */
+    @Test
+    public void testRunJobPipelinedRejected() throws Exception {
+        mailConfiguration.setPipelineDepth(4);
+
+        Message message1 = new MimeMessage((MimeMessage) exampleMessage);
+        Message message2 = new MimeMessage((MimeMessage) exampleMessage);
+        when(mailbox.getMessages()).thenReturn(new Message[]{message1, message2});
+        doReturn(false).when(mail2BlogJob).isAdmitted(any(MailConfigurationWrapper.class), eq(message1));
+
+        mail2BlogJob.runJob(null);
+
+        ArgumentCaptor<MessageTransaction> captor = ArgumentCaptor.forClass(MessageTransaction.class);
+        verify(transactionTemplate, times(2)).execute(captor.capture());
+
+        // The transaction still rejects the message, but reads it from the mailbox.
+        assertSame(message2, captor.getAllValues().get(0).getMessage());
+        assertEquals(exampleMessage.getSubject(), captor.getAllValues().get(0).getContent().getSubject());
+        assertSame(message1, captor.getAllValues().get(1).getMessage());
+        assertNull(captor.getAllValues().get(1).getContent());
+    }
+
+    /**
+     * Make sure an interrupted pipelined run doesn't move the checkpoint past the messages it didn't process.
+     */
+    @Test
+    public void testRunJobInterrupted() throws Exception {
+        mailConfiguration.setPipelineDepth(4);
+
+        Message[] messages = new Message[5];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = mock(Message.class);
+        }
+        when(mailbox.getMessages()).thenReturn(messages);
+
+        // The plugin gets disabled while the first message is committed.
+        when(transactionTemplate.execute(any(MessageTransaction.class))).thenAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        });
+
+        JobRunnerResponse response;
+        try {
+            response = mail2BlogJob.runJob(null);
+        } finally {
+            assertTrue("Expected the interrupt to be kept", Thread.interrupted());
+        }
+
+        assertTrue(Mail2BlogJob.isPartial(response));
+        verify(transactionTemplate, times(1)).execute(any(MessageTransaction.class));
+        verify(mailbox).saveResumePoint();
+        verify(mailbox, never()).saveCheckpoint();
+    }
+
+    /**
+     * Make sure messages are committed by several workers at once and every message is committed once.
+     */
+    @Test
+    public void testRunJobParallel() throws Exception {
+        mailConfiguration.setCommitWorkers(4);
+
+        Message[] messages = new Message[20];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = mock(Message.class);
+        }
+        List<Message> expected = new ArrayList<Message>(Arrays.asList(messages));
+        when(mailbox.getMessages()).thenReturn(messages);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final List<Message> committed = Collections.synchronizedList(new ArrayList<Message>());
+        when(transactionTemplate.execute(any(MessageTransaction.class))).thenAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                int now = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+
+                Thread.sleep(20);
+                committed.add(((MessageTransaction) invocation.getArgument(0)).getMessage());
+                running.decrementAndGet();
+                return null;
+            }
+        });
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+        assertEquals(20, committed.size());
+        assertTrue(committed.containsAll(expected));
+        assertTrue("Expected workers to commit in parallel", maxRunning.get() > 1);
+    }
+
+    /**
+     * Make sure a run stops at its message budget and stores where the next run continues.
+     */
+    @Test
+    public void testRunJobPartial() throws Exception {
+        mailConfiguration.setMessageBudget(2);
+
+        Message[] messages = new Message[5];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = mock(Message.class);
+        }
+        when(mailbox.getMessages()).thenReturn(messages.clone());
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+        assertTrue(Mail2BlogJob.isPartial(response));
+
+        ArgumentCaptor<MessageTransaction> captor = ArgumentCaptor.forClass(MessageTransaction.class);
+        verify(transactionTemplate, times(2)).execute(captor.capture());
+        assertSame(messages[4], captor.getAllValues().get(0).getMessage());
+        assertSame(messages[3], captor.getAllValues().get(1).getMessage());
+
+        verify(mailbox).saveResumePoint();
+        verify(mailbox, never()).saveCheckpoint();
+    }
+
+    /**
+     * Make sure a pipelined run that stops at its budget skips the message it took last,
+     * so that the resume point doesn't move past it.
+     */
+    @Test
+    public void testRunJobPipelinedPartial() throws Exception {
+        mailConfiguration.setMessageBudget(2);
+        mailConfiguration.setPipelineDepth(4);
+
+        Message[] messages = new Message[5];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = mock(Message.class);
+        }
+        when(mailbox.getMessages()).thenReturn(messages.clone());
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertTrue(Mail2BlogJob.isPartial(response));
+        verify(transactionTemplate, times(2)).execute(any(MessageTransaction.class));
+        verify(mailbox).skip(messages[2]);
+        verify(mailbox).saveResumePoint();
+        verify(mailbox, never()).saveCheckpoint();
+    }
+
+    /**
+     * Make sure runs are skipped after repeated connection failures and resume after a success.
+     */
+    @Test
+    public void testRunJobCircuitBreaker() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        mailConfiguration.setCircuitBreakerThreshold(2);
+        doThrow(new MailboxException("connection refused")).when(mail2BlogJob).newMailbox(any(MailConfigurationWrapper.class));
+
+        assertEquals(RunOutcome.FAILED, mail2BlogJob.runJob(null).getRunOutcome());
+        assertEquals(RunOutcome.FAILED, mail2BlogJob.runJob(null).getRunOutcome());
+
+        // The breaker is open now, the mailbox mustn't be contacted.
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+        assertEquals("Expected run to abort", RunOutcome.ABORTED, response.getRunOutcome());
+        assertTrue(response.getMessage().contains("circuit breaker open"));
+        verify(mail2BlogJob, times(2)).newMailbox(any(MailConfigurationWrapper.class));
+
+        // A successful run closes the breaker.
+        String mailboxKey = new MailConfigurationWrapper(mailConfiguration).getMailboxKey();
+        mailboxCircuitBreaker.recordSuccess(mailboxKey);
+        assertTrue(mailboxCircuitBreaker.allowRequest(mailboxKey));
+    }
+
+    /**
+     * Make sure only one run is let through once the backoff expired and its success is reported.
+     */
+    @Test
+    public void testRunJobCircuitBreakerTrial() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        final long[] now = {1000000};
+        mailboxCircuitBreaker = new MailboxCircuitBreaker() {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+        mail2BlogJob.setMailboxCircuitBreaker(mailboxCircuitBreaker);
+
+        String mailboxKey = new MailConfigurationWrapper(mailConfiguration).getMailboxKey();
+        mailboxCircuitBreaker.recordFailure(mailboxKey, 1);
+        now[0] += MailboxCircuitBreaker.INITIAL_BACKOFF;
+
+        // Another run is the trial already.
+        assertTrue(mailboxCircuitBreaker.allowRequest(mailboxKey));
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+        assertEquals("Expected run to abort", RunOutcome.ABORTED, response.getRunOutcome());
+        assertTrue(response.getMessage().contains("trial run in progress"));
+        verify(mail2BlogJob, never()).newMailbox(any(MailConfigurationWrapper.class));
+
+        // This run is the trial and closes the breaker.
+        mailboxCircuitBreaker.endTrial(mailboxKey);
+        response = mail2BlogJob.runJob(null);
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+        assertTrue(response.getMessage().contains("circuit breaker closed after 1 consecutive failures"));
+        assertFalse(mailboxCircuitBreaker.isOpen(mailboxKey));
+    }
+
+    /**
+     * Make sure all profiles are polled and a failing profile doesn't stop the others.
+     */
+    @Test
+    public void testRunJobProfiles() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        MailConfigurationWrapper defaultWrapper = new MailConfigurationWrapper(mailConfiguration);
+        MailConfigurationWrapper salesWrapper = new MailConfigurationWrapper(
+            MailConfiguration.builder().username("sales").emailaddress("sales@example.org").build()
+        );
+        MailConfigurationWrapper supportWrapper = new MailConfigurationWrapper(
+            MailConfiguration.builder().username("support").emailaddress("support@example.org").build()
+        );
+
+        Map<String, MailConfigurationWrapper> profiles = new LinkedHashMap<String, MailConfigurationWrapper>();
+        profiles.put(MailConfigurationManager.DEFAULT_PROFILE, defaultWrapper);
+        profiles.put("sales", salesWrapper);
+        profiles.put("support", supportWrapper);
+        when(globalState.getMailConfigurationWrappers()).thenReturn(profiles);
+
+        JobLeaseManager.Lease salesLease = mock(JobLeaseManager.Lease.class);
+        JobLeaseManager.Lease supportLease = mock(JobLeaseManager.Lease.class);
+        when(jobLeaseManager.tryAcquire(eq(Mail2BlogJob.JOB_LOCK_NAME + ".sales"), any(Runnable.class))).thenReturn(salesLease);
+        when(jobLeaseManager.tryAcquire(eq(Mail2BlogJob.JOB_LOCK_NAME + ".support"), any(Runnable.class))).thenReturn(supportLease);
+
+        doThrow(new MailboxException("connection refused")).when(mail2BlogJob).newMailbox(salesWrapper);
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertEquals("Expected run to fail", RunOutcome.FAILED, response.getRunOutcome());
+        assertTrue(response.getMessage().contains("default: success"));
+        assertTrue(response.getMessage().contains("sales: failed"));
+        assertTrue(response.getMessage().contains("support: success"));
+
+        // The other profiles have been processed.
+        ArgumentCaptor<MessageTransaction> captor = ArgumentCaptor.forClass(MessageTransaction.class);
+        verify(transactionTemplate, times(2)).execute(captor.capture());
+        verify(salesLease).close();
+        verify(supportLease).close();
+    }
+
+    /**
+     * Make sure a run for a single profile doesn't poll the other profiles.
+     */
+    @Test
+    public void testRunJobSingleProfile() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        MailConfigurationWrapper wrapper = new MailConfigurationWrapper(mailConfiguration);
+        JobRunnerResponse response = mail2BlogJob.runJob(MailConfigurationManager.DEFAULT_PROFILE, wrapper);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+        verify(jobLeaseManager).tryAcquire(eq(Mail2BlogJob.JOB_LOCK_NAME), any(Runnable.class));
+        verify(mail2BlogJob).newMailbox(wrapper);
+        verify(transactionTemplate).execute(any(MessageTransaction.class));
+        verify(globalState, never()).getMailConfigurationWrappers();
+    }
+
+    /**
+     * Make sure the run returns right away if another node holds the lease.
+     */
+    @Test
+    public void testRunJobAlreadyRunning() throws Exception {
+        when(jobLeaseManager.tryAcquire(any(String.class), any(Runnable.class))).thenReturn(null);
+        when(jobLeaseManager.getHolder(Mail2BlogJob.JOB_LOCK_NAME)).thenReturn(JobLease.builder().owner("node2").build());
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertEquals("Expected run to abort", RunOutcome.ABORTED, response.getRunOutcome());
+        assertEquals(Mail2BlogJob.ALREADY_RUNNING_MESSAGE + "node2", response.getMessage());
+        verify(mail2BlogJob, never()).newMailbox(any(MailConfigurationWrapper.class));
+    }
+
+    /**
+     * Make sure an invocation overlapping with a run on the same node waits for it instead of processing the INBOX again.
+     */
+    @Test
+    public void testRunJobJoin() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        when(transactionTemplate.execute(any(MessageTransaction.class))).thenAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Exception {
+                started.countDown();
+                proceed.await(10, TimeUnit.SECONDS);
+                ((MessageTransaction) invocation.getArgument(0)).getProgress().addMessage(true, exampleMessage);
+                return null;
+            }
+        });
+
+        final JobProgress joinedProgress = new JobProgress();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<JobRunnerResponse> first = executor.submit(new Callable<JobRunnerResponse>() {
+                public JobRunnerResponse call() {
+                    return mail2BlogJob.runJob(null);
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // The second invocation waits for the first run.
+            Future<JobRunnerResponse> second = executor.submit(new Callable<JobRunnerResponse>() {
+                public JobRunnerResponse call() {
+                    return mail2BlogJob.runJob(null, joinedProgress);
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(second.isDone());
+
+            proceed.countDown();
+            assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The joined invocation reports the progress of the run it waited for.
+        assertEquals(1, joinedProgress.getSeen());
+        assertEquals(1, joinedProgress.getProcessed());
+
+        verify(mail2BlogJob, times(1)).newMailbox(any(MailConfigurationWrapper.class));
+        verify(transactionTemplate, times(1)).execute(any(MessageTransaction.class));
+        verify(lease).close();
+    }
+
+    /**
+     * Make sure the run ends early if no messages arrived since the last run.
+     */
+    @Test
+    public void testRunJobIdle() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        mailConfiguration.setStatusCheck(true);
+        when(mailbox.hasNewMessages()).thenReturn(false);
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+        assertEquals(Mail2BlogJob.IDLE_MESSAGE, response.getMessage());
+        verify(mailbox, never()).getMessages();
+        verify(mailbox, never()).saveCheckpoint();
+        verify(mailbox).close();
+    }
+
+    /**
+     * Make sure messages found by the reject search are flagged without being processed.
+     */
+    @Test
+    public void testRunJobRejected() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        Message rejected = mock(Message.class);
+        when(mailbox.searchRejected()).thenReturn(new Message[]{rejected});
+
+        JobProgress progress = new JobProgress();
+        JobRunnerResponse response = mail2BlogJob.runJob(null, progress);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+        assertEquals(1, progress.getInvalid());
+        verify(rejected, never()).getSize();
+
+        InOrder inOrder = inOrder(mailbox);
+        inOrder.verify(mailbox).flagAsInvalid(rejected);
+        inOrder.verify(mailbox).commitFlags();
+        inOrder.verify(mailbox).getMessages();
+
+        ArgumentCaptor<MessageTransaction> captor = ArgumentCaptor.forClass(MessageTransaction.class);
+        verify(transactionTemplate).execute(captor.capture());
+        assertSame(exampleMessage, captor.getValue().getMessage());
+    }
+
+    /**
+     * Make sure the INBOX is processed window by window from the top.
+     */
+    @Test
+    public void testRunJobWindowed() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        mailConfiguration.setWindowSize(2);
+
+        Message message1 = mock(Message.class);
+        Message message2 = mock(Message.class);
+        Message message3 = mock(Message.class);
+        Message[] window1 = new Message[]{message2, message3};
+        Message[] window2 = new Message[]{message1};
+        when(mailbox.getCount()).thenReturn(3);
+        when(mailbox.getMessages(2, 3)).thenReturn(window1);
+        when(mailbox.getMessages(1, 1)).thenReturn(window2);
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+
+        ArgumentCaptor<MessageTransaction> captor = ArgumentCaptor.forClass(MessageTransaction.class);
+        verify(transactionTemplate, times(3)).execute(captor.capture());
+        assertSame(message3, captor.getAllValues().get(0).getMessage());
+        assertSame(message2, captor.getAllValues().get(1).getMessage());
+        assertSame(message1, captor.getAllValues().get(2).getMessage());
+
+        InOrder inOrder = inOrder(mailbox);
+        inOrder.verify(mailbox).getMessages(2, 3);
+        inOrder.verify(mailbox).commitFlags();
+        inOrder.verify(mailbox).getMessages(1, 1);
+        inOrder.verify(mailbox).commitFlags();
+        inOrder.verify(mailbox).saveCheckpoint();
+        verify(mailbox, never()).getMessages();
+
+        // Handled messages don't stay reachable through the windows.
+        assertArrayEquals(new Message[2], window1);
+        assertArrayEquals(new Message[1], window2);
+    }
+
+    /**
+     * Make sure windowed processing stops at messages handled by previous runs.
+     */
+    @Test
+    public void testRunJobWindowedCheckpoint() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        mailConfiguration.setWindowSize(2);
+
+        when(mailbox.getCount()).thenReturn(3);
+        when(mailbox.getMessages(2, 3)).thenReturn(new Message[]{exampleMessage});
+        when(mailbox.checkpointReached()).thenReturn(true);
+
+        mail2BlogJob.runJob(null);
+
+        verify(transactionTemplate, times(1)).execute(any(MessageTransaction.class));
+        verify(mailbox, never()).getMessages(1, 1);
+    }
+
     /**
      * Test an exception during processing is handled correctly.
      */
@@ -134,4 +702,91 @@ public class Mail2BlogJobTest
 
         assertEquals("Expected run to fail", RunOutcome.FAILED, response.getRunOutcome());
     }
+
+    /**
+     * Make sure handled messages can be garbage collected while the rest of a large INBOX is processed,
+     * so that the heap used by a run doesn't grow with the number of messages.
+     */
+    @Test
+    public void testRunJobReleasesMessages() throws Exception {
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.fetchdisabled");
+        doReturn("false").when(mail2BlogJob).systemGetProperty("atlassian.mail.popdisabled");
+
+        // Synthetic INBOX with 64 messages of 256 KB each.
+        final int count = 64;
+        final List<WeakReference<Message>> references = new ArrayList<WeakReference<Message>>();
+        final Message[][] inbox = new Message[][]{new Message[count]};
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 256 * 1024; i++) {
+            body.append('x');
+        }
+        for (int i = 0; i < count; i++) {
+            MimeMessage message = new MimeMessage((javax.mail.Session) null);
+            message.setSubject("Message " + i);
+            message.setText(body.toString());
+            inbox[0][i] = message;
+            references.add(new WeakReference<Message>(message));
+        }
+
+        // Use a plain mailbox and transaction template, because mocks remember the messages passed to them.
+        Mailbox plainMailbox = new Mailbox(new MailConfigurationWrapper(mailConfiguration)) {
+            @Override
+            public boolean hasNewMessages() {
+                return true;
+            }
+
+            @Override
+            public Message[] searchRejected() {
+                return new Message[0];
+            }
+
+            @Override
+            public Message[] getMessages() {
+                Message[] messages = inbox[0];
+                inbox[0] = null;
+                return messages;
+            }
+
+            @Override
+            public void flagAsProcessed(Message message) {}
+
+            @Override
+            public void flagAsInvalid(Message message) {}
+
+            @Override
+            public void saveCheckpoint() {}
+
+            @Override
+            public void close() {}
+        };
+        doReturn(plainMailbox).when(mail2BlogJob).newMailbox(any(MailConfigurationWrapper.class));
+
+        final int[] retained = new int[]{-1};
+        doReturn(new TransactionTemplate() {
+            @Override
+            public <T> T execute(TransactionCallback<T> callback) {
+                T result = callback.doInTransaction();
+
+                // Messages are processed from the end, count the handled messages still reachable before the last one.
+                if (((MessageTransaction) callback).getMessage() == references.get(1).get()) {
+                    for (int attempt = 0; attempt < 10 && retained[0] != 0; attempt++) {
+                        System.gc();
+                        retained[0] = 0;
+                        for (int i = 2; i < count; i++) {
+                            if (references.get(i).get() != null) {
+                                retained[0]++;
+                            }
+                        }
+                    }
+                }
+
+                return result;
+            }
+        }).when(mail2BlogJob).getTransactionTemplate();
+
+        JobRunnerResponse response = mail2BlogJob.runJob(null);
+
+        assertEquals("Expected run to succeed", RunOutcome.SUCCESS, response.getRunOutcome());
+        assertEquals("Expected handled messages to be garbage collected", 0, retained[0]);
+    }
 }
@@ -0,0 +1,385 @@
+package de.dm.mail2blog;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.confluence.spaces.SpaceManager;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.status.RunOutcome;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Stands in for a cluster: several job instances, each with its own thread and mailbox connection,
+ * share a mail server, the cluster locks and the bandana storage.
+ */
+public class Mail2BlogPartitionJobTest
+{
+    private static final int NODES = 3;
+    private static final int PARTITIONS = 8;
+    private static final int MESSAGES = 100;
+
+    // The INBOX on the mail server by UID, messages are removed once a node flagged them.
+    private final Map<Long, Message> server = new ConcurrentSkipListMap<Long, Message>();
+    private final Map<Message, Long> uids = new IdentityHashMap<Message, Long>();
+
+    // How often each UID was processed and by which node.
+    private final Map<Long, AtomicInteger> processed = new ConcurrentHashMap<Long, AtomicInteger>();
+    private final AtomicInteger[] processedByNode = new AtomicInteger[NODES];
+
+    private final CountDownLatch planPublished = new CountDownLatch(1);
+
+    // The mailbox connection of each node and how often a completed plan was checkpointed.
+    private final Mailbox[] mailboxes = new Mailbox[NODES];
+    private final AtomicInteger checkpoints = new AtomicInteger();
+
+    private ClusterLockService clusterLockService;
+    private MailboxCheckpointManager checkpointManager;
+    private MailConfigurationWrapper mailConfigurationWrapper;
+    private Mail2BlogJob[] nodes;
+
+    @Before
+    public void setUp() throws Exception {
+        for (long uid = 1; uid <= MESSAGES; uid++) {
+            Message message = new MimeMessage((Session) null);
+            server.put(uid, message);
+            uids.put(message, uid);
+            processed.put(uid, new AtomicInteger());
+        }
+
+        MailConfiguration mailConfiguration = MailConfiguration.builder()
+            .username("alice")
+            .server("mail.example.org")
+            .partitions(PARTITIONS)
+            .build();
+        mailConfigurationWrapper = new MailConfigurationWrapper(mailConfiguration);
+
+        // Cluster locks backed by local locks, every node runs on its own thread.
+        clusterLockService = mock(ClusterLockService.class);
+        final Map<String, ClusterLock> locks = new ConcurrentHashMap<String, ClusterLock>();
+        when(clusterLockService.getLockForName(any(String.class))).thenAnswer(new Answer<ClusterLock>() {
+            public ClusterLock answer(InvocationOnMock invocation) {
+                String name = invocation.getArgument(0);
+                locks.putIfAbsent(name, newClusterLock());
+                return locks.get(name);
+            }
+        });
+
+        checkpointManager = new InMemoryCheckpointManager();
+
+        nodes = new Mail2BlogJob[NODES];
+        for (int node = 0; node < NODES; node++) {
+            processedByNode[node] = new AtomicInteger();
+            nodes[node] = newNode(node);
+        }
+    }
+
+    /**
+     * Make sure all nodes take part in processing a mailbox and every message is processed exactly once.
+     */
+    @Test
+    public void testPartitionedProcessing() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NODES);
+
+        try {
+            // The first node coordinates, the other nodes join once the plan is published.
+            List<Future<JobRunnerResponse>> futures = new ArrayList<Future<JobRunnerResponse>>();
+            futures.add(executor.submit(new Callable<JobRunnerResponse>() {
+                public JobRunnerResponse call() {
+                    return nodes[0].runProfile(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper, new JobProgress());
+                }
+            }));
+
+            assertTrue(planPublished.await(10, TimeUnit.SECONDS));
+            for (int node = 1; node < NODES; node++) {
+                final Mail2BlogJob job = nodes[node];
+                futures.add(executor.submit(new Callable<JobRunnerResponse>() {
+                    public JobRunnerResponse call() {
+                        return job.runPartitions(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+                    }
+                }));
+            }
+
+            for (Future<JobRunnerResponse> future : futures) {
+                assertEquals(RunOutcome.SUCCESS, future.get(30, TimeUnit.SECONDS).getRunOutcome());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue("Expected all messages to be flagged", server.isEmpty());
+        for (Map.Entry<Long, AtomicInteger> count : processed.entrySet()) {
+            assertEquals("Expected message " + count.getKey() + " to be processed once", 1, count.getValue().get());
+        }
+
+        int activeNodes = 0;
+        for (AtomicInteger count : processedByNode) {
+            activeNodes += count.get() > 0 ? 1 : 0;
+        }
+        assertTrue("Expected more than one node to process messages", activeNodes > 1);
+
+        // Only the completed plan moves the checkpoint, the partial view of a single node never does.
+        assertTrue("Expected the completed plan to be checkpointed", checkpoints.get() > 0);
+        for (Mailbox mailbox : mailboxes) {
+            verify(mailbox, never()).saveCheckpoint();
+            verify(mailbox, never()).saveResumePoint();
+        }
+
+        // Once all partitions are done, the nodes don't connect to the mail server anymore.
+        JobRunnerResponse response = nodes[1].runPartitions(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+        assertEquals("no pending partitions", response.getMessage());
+    }
+
+    /**
+     * Make sure the coordinator finishes a plan with pending partitions before it publishes a new one,
+     * even if the number of partitions changed in the meantime.
+     */
+    @Test
+    public void testPendingPlanKept() throws Exception {
+        String mailboxKey = mailConfigurationWrapper.getMailboxKey();
+        MailboxPartitionPlan plan = MailboxPartitionPlan.builder()
+            .id(42)
+            .uidValidity(1)
+            .partitions(PARTITIONS)
+            .uids(new ArrayList<Long>(server.keySet()))
+            .lastUid(MESSAGES)
+            .build();
+        checkpointManager.savePartitionPlan(mailboxKey, plan);
+        checkpointManager.savePartitionDone(mailboxKey, 0, 42);
+
+        mailConfigurationWrapper.getMailConfiguration().setPartitions(3);
+        JobRunnerResponse response = nodes[0].runProfile(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper, new JobProgress());
+
+        assertEquals(RunOutcome.SUCCESS, response.getRunOutcome());
+        verify(mailboxes[0], never()).newPartitionPlan(anyInt());
+        assertEquals(plan, checkpointManager.loadPartitionPlan(mailboxKey));
+        assertEquals(1, checkpoints.get());
+
+        // Partition 0 was done by another node already, its messages are left alone.
+        for (Map.Entry<Long, AtomicInteger> count : processed.entrySet()) {
+            int expected = MailboxPartitionPlan.getPartition(count.getKey(), PARTITIONS) == 0 ? 0 : 1;
+            assertEquals("Unexpected count for message " + count.getKey(), expected, count.getValue().get());
+        }
+
+        // The next run publishes a new plan with the new number of partitions.
+        nodes[0].runProfile(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper, new JobProgress());
+        verify(mailboxes[0]).newPartitionPlan(3);
+        assertEquals(3, checkpointManager.loadPartitionPlan(mailboxKey).getPartitions());
+    }
+
+    /**
+     * Make sure the job doesn't do anything without partitions.
+     */
+    @Test
+    public void testRunJobDisabled() throws Exception {
+        mailConfigurationWrapper.getMailConfiguration().setPartitions(0);
+
+        Map<String, MailConfigurationWrapper> profiles = new LinkedHashMap<String, MailConfigurationWrapper>();
+        profiles.put(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+        GlobalState globalState = mock(GlobalState.class);
+        when(globalState.getMailConfigurationWrappers()).thenReturn(profiles);
+
+        Mail2BlogPartitionJob partitionJob = new Mail2BlogPartitionJob();
+        partitionJob.setGlobalState(globalState);
+        partitionJob.setMail2BlogJob(nodes[0]);
+
+        JobRunnerResponse response = partitionJob.runJob(null);
+
+        assertEquals(RunOutcome.SUCCESS, response.getRunOutcome());
+        assertEquals("partitioned processing disabled", response.getMessage());
+        verify(nodes[0], never()).runPartitions(any(String.class), any(MailConfigurationWrapper.class));
+    }
+
+    /**
+     * Create a job instance with its own mailbox connection, as if it was running on another node.
+     */
+    private Mail2BlogJob newNode(final int node) throws Exception {
+        Mail2BlogJob job = spy(new Mail2BlogJob());
+        SpaceManager spaceManager = mock(SpaceManager.class);
+        job.setSpaceManager(spaceManager);
+        job.setSpaceKeyValidator(new SpaceKeyValidator(spaceManager));
+        job.setMailboxCircuitBreaker(new MailboxCircuitBreaker());
+        doReturn(clusterLockService).when(job).getClusterLockService();
+        doReturn(checkpointManager).when(job).getCheckpointManager();
+
+        JobLeaseManager jobLeaseManager = spy(new JobLeaseManager());
+        doReturn(clusterLockService).when(jobLeaseManager).getClusterLockService();
+        doReturn(checkpointManager).when(jobLeaseManager).getCheckpointManager();
+        job.setJobLeaseManager(jobLeaseManager);
+
+        // Messages get flagged by the transaction and moved out of the INBOX by commitFlags().
+        final List<Message> flagged = Collections.synchronizedList(new ArrayList<Message>());
+        doReturn(new TransactionTemplate() {
+            public <T> T execute(TransactionCallback<T> action) {
+                Message message = ((MessageTransaction) action).getMessage();
+                processed.get(uids.get(message)).incrementAndGet();
+                processedByNode[node].incrementAndGet();
+                flagged.add(message);
+
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                return null;
+            }
+        }).when(job).getTransactionTemplate();
+
+        Mailbox mailbox = mock(Mailbox.class);
+        when(mailbox.hasNewMessages()).thenReturn(true);
+        when(mailbox.searchRejected()).thenReturn(new Message[0]);
+        when(mailbox.newPartitionPlan(anyInt())).thenAnswer(new Answer<MailboxPartitionPlan>() {
+            public MailboxPartitionPlan answer(InvocationOnMock invocation) {
+                return MailboxPartitionPlan.builder()
+                    .id(System.currentTimeMillis())
+                    .uidValidity(1)
+                    .partitions((Integer) invocation.getArgument(0))
+                    .uids(new ArrayList<Long>(server.keySet()))
+                    .lastUid(MESSAGES)
+                    .build();
+            }
+        });
+        when(mailbox.getMessagesByUid(anyLong(), any(long[].class))).thenAnswer(new Answer<Message[]>() {
+            public Message[] answer(InvocationOnMock invocation) {
+                List<Message> messages = new ArrayList<Message>();
+                for (long uid : (long[]) invocation.getArgument(1)) {
+                    Message message = server.get(uid);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+
+                return messages.toArray(new Message[messages.size()]);
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                synchronized (flagged) {
+                    for (Message message : flagged) {
+                        server.remove(uids.get(message));
+                    }
+                    flagged.clear();
+                }
+
+                return null;
+            }
+        }).when(mailbox).commitFlags();
+
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                checkpoints.incrementAndGet();
+                return null;
+            }
+        }).when(mailbox).savePartitionCheckpoint(any(MailboxPartitionPlan.class));
+
+        mailboxes[node] = mailbox;
+        doReturn(mailbox).when(job).newMailbox(any(MailConfigurationWrapper.class));
+        return job;
+    }
+
+    /**
+     * Create a cluster lock backed by a local lock.
+     */
+    private ClusterLock newClusterLock() {
+        final ReentrantLock lock = new ReentrantLock();
+        ClusterLock clusterLock = mock(ClusterLock.class);
+
+        when(clusterLock.tryLock()).thenAnswer(new Answer<Boolean>() {
+            public Boolean answer(InvocationOnMock invocation) {
+                return lock.tryLock();
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                lock.lock();
+                return null;
+            }
+        }).when(clusterLock).lock();
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                lock.unlock();
+                return null;
+            }
+        }).when(clusterLock).unlock();
+
+        return clusterLock;
+    }
+
+    /**
+     * Bandana storage shared by all nodes.
+     */
+    private class InMemoryCheckpointManager extends MailboxCheckpointManager {
+        private final Map<String, Object> storage = new ConcurrentHashMap<String, Object>();
+
+        @Override
+        public MailboxPartitionPlan loadPartitionPlan(String mailboxKey) {
+            MailboxPartitionPlan plan = (MailboxPartitionPlan) storage.get(PLAN_KEY_PREFIX + mailboxKey);
+            return plan != null ? plan : MailboxPartitionPlan.builder().build();
+        }
+
+        @Override
+        public void savePartitionPlan(String mailboxKey, MailboxPartitionPlan plan) {
+            storage.put(PLAN_KEY_PREFIX + mailboxKey, plan);
+            planPublished.countDown();
+        }
+
+        @Override
+        public long loadPartitionDone(String mailboxKey, int partition) {
+            Long planId = (Long) storage.get(PARTITION_KEY_PREFIX + mailboxKey + "." + partition);
+            return planId != null ? planId : 0;
+        }
+
+        @Override
+        public void savePartitionDone(String mailboxKey, int partition, long planId) {
+            storage.put(PARTITION_KEY_PREFIX + mailboxKey + "." + partition, planId);
+        }
+
+        @Override
+        public JobLease loadLease(String name) {
+            JobLease lease = (JobLease) storage.get(LEASE_KEY_PREFIX + name);
+            return lease != null ? lease : JobLease.builder().build();
+        }
+
+        @Override
+        public void saveLease(String name, JobLease lease) {
+            storage.put(LEASE_KEY_PREFIX + name, lease);
+        }
+    }
+}
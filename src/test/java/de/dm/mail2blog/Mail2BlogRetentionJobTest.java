@@ -0,0 +1,142 @@
+package de.dm.mail2blog;
+
+import com.atlassian.beehive.ClusterLock;
+import com.atlassian.beehive.ClusterLockService;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.status.RunOutcome;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class Mail2BlogRetentionJobTest
+{
+    @Mock private GlobalState globalState;
+    @Mock private Mail2BlogJob mail2BlogJob;
+    @Mock private ClusterLockService clusterLockService;
+    @Mock private ClusterLock clusterLock;
+    @Mock private Mailbox mailbox;
+
+    private Mail2BlogRetentionJob retentionJob;
+    private MailConfiguration mailConfiguration;
+    private MailConfigurationWrapper mailConfigurationWrapper;
+
+    @Before
+    public void setUp() throws Exception {
+        mailConfiguration = MailConfiguration.builder().protocol("imap").retentionDays(90).build();
+        mailConfigurationWrapper = new MailConfigurationWrapper(mailConfiguration);
+
+        Map<String, MailConfigurationWrapper> profiles = new LinkedHashMap<String, MailConfigurationWrapper>();
+        profiles.put(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+        when(globalState.getMailConfigurationWrappers()).thenReturn(profiles);
+        when(clusterLockService.getLockForName(Mail2BlogRetentionJob.LOCK_NAME)).thenReturn(clusterLock);
+        when(clusterLock.tryLock()).thenReturn(true);
+        when(mail2BlogJob.newMailbox(mailConfigurationWrapper)).thenReturn(mailbox);
+
+        retentionJob = spy(new Mail2BlogRetentionJob());
+        retentionJob.setGlobalState(globalState);
+        retentionJob.setMail2BlogJob(mail2BlogJob);
+        retentionJob.setMailboxCircuitBreaker(new MailboxCircuitBreaker());
+        doReturn(clusterLockService).when(retentionJob).getClusterLockService();
+    }
+
+    /**
+     * Make sure old messages are archived and the mailbox gets closed.
+     */
+    @Test
+    public void testRunJob() throws Exception {
+        when(mailbox.applyRetention()).thenReturn(42);
+
+        JobRunnerResponse response = retentionJob.runJob(null);
+
+        assertEquals(RunOutcome.SUCCESS, response.getRunOutcome());
+        assertEquals("archived 42 messages", response.getMessage());
+        verify(mailbox).close();
+        verify(clusterLock).unlock();
+    }
+
+    /**
+     * Make sure the retention of every profile is applied, also if another profile fails.
+     */
+    @Test
+    public void testRunJobProfiles() throws Exception {
+        when(mailbox.applyRetention()).thenReturn(42);
+
+        MailConfigurationWrapper salesWrapper = new MailConfigurationWrapper(
+            MailConfiguration.builder().username("sales").protocol("imap").retentionDays(30).retentionExpunge(true).build()
+        );
+        Mailbox salesMailbox = mock(Mailbox.class);
+        when(salesMailbox.applyRetention()).thenReturn(7);
+        when(mail2BlogJob.newMailbox(salesWrapper)).thenReturn(salesMailbox);
+
+        MailConfigurationWrapper supportWrapper = new MailConfigurationWrapper(
+            MailConfiguration.builder().username("support").protocol("imap").retentionDays(30).build()
+        );
+        when(mail2BlogJob.newMailbox(supportWrapper)).thenThrow(new MailboxException("connection refused"));
+
+        MailConfigurationWrapper disabledWrapper = new MailConfigurationWrapper(
+            MailConfiguration.builder().username("disabled").protocol("imap").build()
+        );
+
+        Map<String, MailConfigurationWrapper> profiles = new LinkedHashMap<String, MailConfigurationWrapper>();
+        profiles.put(MailConfigurationManager.DEFAULT_PROFILE, mailConfigurationWrapper);
+        profiles.put("sales", salesWrapper);
+        profiles.put("support", supportWrapper);
+        profiles.put("disabled", disabledWrapper);
+        when(globalState.getMailConfigurationWrappers()).thenReturn(profiles);
+
+        JobRunnerResponse response = retentionJob.runJob(null);
+
+        assertEquals(RunOutcome.FAILED, response.getRunOutcome());
+        assertTrue(response.getMessage().contains("default: archived 42 messages"));
+        assertTrue(response.getMessage().contains("sales: deleted 7 messages"));
+        assertTrue(response.getMessage().contains("support: "));
+        assertFalse(response.getMessage().contains("disabled"));
+        verify(mailbox).close();
+        verify(salesMailbox).close();
+        verify(mail2BlogJob, never()).newMailbox(disabledWrapper);
+        verify(clusterLock).unlock();
+    }
+
+    /**
+     * Make sure the mailbox isn't contacted if retention is disabled.
+     */
+    @Test
+    public void testRetentionDisabled() throws Exception {
+        mailConfiguration.setRetentionDays(0);
+
+        JobRunnerResponse response = retentionJob.runJob(null);
+
+        assertEquals(RunOutcome.SUCCESS, response.getRunOutcome());
+        verify(mail2BlogJob, never()).newMailbox(mailConfigurationWrapper);
+    }
+
+    /**
+     * Make sure only one node runs the retention at a time.
+     */
+    @Test
+    public void testAlreadyRunning() throws Exception {
+        when(clusterLock.tryLock()).thenReturn(false);
+
+        JobRunnerResponse response = retentionJob.runJob(null);
+
+        assertEquals(RunOutcome.ABORTED, response.getRunOutcome());
+        verify(mail2BlogJob, never()).newMailbox(mailConfigurationWrapper);
+        verify(clusterLock, never()).unlock();
+    }
+}
@@ -11,10 +11,14 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.spy;
@@ -99,4 +103,79 @@ public class MailConfigurationManagerTest
        assertEquals("copy", spaceRules[0].getAction());
        assertEquals("test", spaceRules[0].getSpace());
    }
+
+    /**
+     * Make sure configurations stored by older versions don't switch on features that change how the mailbox is read.
+     */
+    @Test
+    public void testLoadConfigDefaults() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("username", "bob");
+        when(bandanaManager.getValue(ctx, MailConfigurationManager.PLUGIN_KEY)).thenReturn(map);
+
+        MailConfiguration configuration = mailConfigurationManager.loadConfig();
+
+        assertFalse(configuration.getImapIdle());
+        assertFalse(configuration.getDeferredFlagging());
+        assertFalse(configuration.getIncrementalFetch());
+        assertFalse(configuration.getPoolConnections());
+        assertFalse(configuration.getStatusCheck());
+        assertFalse(configuration.getCompress());
+        assertEquals(0, configuration.getPipelineDepth());
+        assertEquals(4, configuration.getMaxPipelinedMessageSize());
+        assertEquals(1, configuration.getCommitWorkers());
+        assertEquals(0, configuration.getPartitions());
+        assertEquals(0, configuration.getTimeout());
+        assertEquals(0, configuration.getCircuitBreakerThreshold());
+
+        // Same as the defaults of javax.mail.
+        assertTrue(configuration.getPartialFetch());
+        assertEquals(16, configuration.getFetchSize());
+    }
+
+    @Test
+    public void testSaveProfile() throws Exception {
+        MailConfiguration configuration = MailConfiguration.builder()
+            .username("sales")
+            .emailaddress("sales@example.org")
+            .build();
+
+        // Mock loadConfig(), because saveConfig() will verify the result by calling loadConfig().
+        doReturn(configuration).when(mailConfigurationManager).loadConfig("sales");
+
+        mailConfigurationManager.saveConfig("sales", configuration);
+
+        ArgumentCaptor<Map<String, Map<String, Object>>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(bandanaManager).setValue(eq(ctx), eq(MailConfigurationManager.PROFILES_KEY), captor.capture());
+        assertEquals("sales", captor.getValue().get("sales").get("username"));
+        assertEquals("sales@example.org", captor.getValue().get("sales").get("emailaddress"));
+    }
+
+    @Test(expected = MailConfigurationManagerException.class)
+    public void testSaveProfileInvalidName() throws Exception {
+        mailConfigurationManager.saveConfig("../sales", MailConfiguration.builder().build());
+    }
+
+    @Test
+    public void testLoadProfiles() throws Exception {
+        Map<String, Object> sales = new HashMap<String, Object>();
+        sales.put("username", "sales");
+
+        Map<String, Object> profiles = new LinkedHashMap<String, Object>();
+        profiles.put("sales", sales);
+        when(bandanaManager.getValue(ctx, MailConfigurationManager.PROFILES_KEY)).thenReturn(profiles);
+
+        assertEquals(Arrays.asList(MailConfigurationManager.DEFAULT_PROFILE, "sales"), mailConfigurationManager.loadProfileNames());
+        assertEquals("sales", mailConfigurationManager.loadConfig("sales").getUsername());
+
+        // Unknown profiles start with the default configuration.
+        assertEquals("", mailConfigurationManager.loadConfig("support").getUsername());
+
+        mailConfigurationManager.deleteProfile("sales");
+
+        ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(bandanaManager).setValue(eq(ctx), eq(MailConfigurationManager.PROFILES_KEY), captor.capture());
+        assertFalse(captor.getValue().containsKey("sales"));
+        assertTrue(captor.getValue().isEmpty());
+    }
 }
@@ -0,0 +1,76 @@
+package de.dm.mail2blog;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import javax.mail.Store;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class MailStorePoolTest
+{
+    private static final String MAILBOX = "imap://alice@mail.example.org:993";
+    private static final String CONNECTION = "connection";
+
+    @Mock private Store store;
+    @Mock private Store otherStore;
+
+    private MailStorePool pool;
+
+    @Before
+    public void setUp() {
+        pool = new MailStorePool();
+    }
+
+    @Test
+    public void testReuseConnectedStore() throws Exception {
+        when(store.isConnected()).thenReturn(true);
+
+        assertNull(pool.borrow(MAILBOX, CONNECTION));
+        pool.release(MAILBOX, CONNECTION, store);
+
+        assertSame(store, pool.borrow(MAILBOX, CONNECTION));
+
+        // A store can only be borrowed once.
+        assertNull(pool.borrow(MAILBOX, CONNECTION));
+        verify(store, times(0)).close();
+    }
+
+    @Test
+    public void testDiscardDeadStore() throws Exception {
+        when(store.isConnected()).thenReturn(false);
+
+        pool.release(MAILBOX, CONNECTION, store);
+
+        assertNull(pool.borrow(MAILBOX, CONNECTION));
+        verify(store, times(1)).close();
+    }
+
+    @Test
+    public void testDiscardOnChangedSettings() throws Exception {
+        when(store.isConnected()).thenReturn(true);
+
+        pool.release(MAILBOX, CONNECTION, store);
+
+        assertNull(pool.borrow(MAILBOX, "changed"));
+        verify(store, times(1)).close();
+    }
+
+    @Test
+    public void testReplaceAndDestroy() throws Exception {
+        pool.release(MAILBOX, CONNECTION, store);
+        pool.release(MAILBOX, CONNECTION, otherStore);
+        verify(store, times(1)).close();
+
+        pool.destroy();
+        verify(otherStore, times(1)).close();
+    }
+}
@@ -0,0 +1,110 @@
+package de.dm.mail2blog;
+
+import com.atlassian.bandana.BandanaManager;
+import com.atlassian.confluence.setup.bandana.ConfluenceBandanaContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MailboxCheckpointManagerTest
+{
+    private static final String MAILBOX_KEY = "imap://alice@mail.example.org:993";
+
+    private @Mock ConfluenceBandanaContext ctx;
+    private @Mock BandanaManager bandanaManager;
+
+    private MailboxCheckpointManager checkpointManager;
+
+    @Before
+    public void setUp() throws Exception {
+        checkpointManager = spy(new MailboxCheckpointManager());
+        doReturn(bandanaManager).when(checkpointManager).getBandanaManager();
+        doReturn(ctx).when(checkpointManager).newGlobalConfluenceBandaContext();
+    }
+
+    @Test
+    public void testSave() throws Exception {
+        checkpointManager.save(MAILBOX_KEY, MailboxCheckpoint.builder().uidValidity(42).lastUid(1337).build());
+
+        ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(bandanaManager).setValue(eq(ctx), eq(MailboxCheckpointManager.KEY_PREFIX + MAILBOX_KEY), captor.capture());
+
+        assertEquals(42L, ((Number) captor.getValue().get("uidValidity")).longValue());
+        assertEquals(1337L, ((Number) captor.getValue().get("lastUid")).longValue());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("uidValidity", 42);
+        map.put("lastUid", 1337);
+
+        when(bandanaManager.getValue(ctx, MailboxCheckpointManager.KEY_PREFIX + MAILBOX_KEY)).thenReturn(map);
+
+        MailboxCheckpoint checkpoint = checkpointManager.load(MAILBOX_KEY);
+        assertEquals(42, checkpoint.getUidValidity());
+        assertEquals(1337, checkpoint.getLastUid());
+    }
+
+    @Test
+    public void testLoadEmpty() throws Exception {
+        MailboxCheckpoint checkpoint = checkpointManager.load(MAILBOX_KEY);
+        assertEquals(-1, checkpoint.getUidValidity());
+        assertEquals(0, checkpoint.getLastUid());
+    }
+
+    @Test
+    public void testUidlIndex() throws Exception {
+        Pop3UidlIndex index = new Pop3UidlIndex();
+        index.add("uidl1");
+        index.add("uidl2");
+        checkpointManager.saveUidlIndex(MAILBOX_KEY, index);
+
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(bandanaManager).setValue(eq(ctx), eq(MailboxCheckpointManager.UIDL_KEY_PREFIX + MAILBOX_KEY), captor.capture());
+
+        when(bandanaManager.getValue(ctx, MailboxCheckpointManager.UIDL_KEY_PREFIX + MAILBOX_KEY)).thenReturn(captor.getValue());
+        Pop3UidlIndex loaded = checkpointManager.loadUidlIndex(MAILBOX_KEY);
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.contains("uidl1"));
+        assertTrue(loaded.contains("uidl2"));
+    }
+
+    @Test
+    public void testLoadUidlIndexEmpty() throws Exception {
+        assertEquals(0, checkpointManager.loadUidlIndex(MAILBOX_KEY).size());
+    }
+
+    @Test
+    public void testLease() throws Exception {
+        JobLease lease = JobLease.builder().owner("node1").runId("run1").acquired(1000).expires(2000).build();
+        checkpointManager.saveLease(Mail2BlogJob.JOB_LOCK_NAME, lease);
+
+        ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+        verify(bandanaManager).setValue(eq(ctx), eq(MailboxCheckpointManager.LEASE_KEY_PREFIX + Mail2BlogJob.JOB_LOCK_NAME), captor.capture());
+
+        when(bandanaManager.getValue(ctx, MailboxCheckpointManager.LEASE_KEY_PREFIX + Mail2BlogJob.JOB_LOCK_NAME)).thenReturn(captor.getValue());
+        assertEquals(lease, checkpointManager.loadLease(Mail2BlogJob.JOB_LOCK_NAME));
+    }
+
+    @Test
+    public void testLoadLeaseEmpty() throws Exception {
+        assertFalse(checkpointManager.loadLease(Mail2BlogJob.JOB_LOCK_NAME).isHeld(0));
+    }
+}
@@ -0,0 +1,135 @@
+package de.dm.mail2blog;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MailboxCircuitBreakerTest
+{
+    private static final String MAILBOX = "imap://alice@mail.example.org:993";
+
+    private long now = 1000000;
+    private MailboxCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new MailboxCircuitBreaker() {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testOpensAfterThreshold() {
+        breaker.recordFailure(MAILBOX, 3);
+        breaker.recordFailure(MAILBOX, 3);
+        assertTrue(breaker.allowRequest(MAILBOX));
+
+        breaker.recordFailure(MAILBOX, 3);
+        assertFalse(breaker.allowRequest(MAILBOX));
+        assertTrue(breaker.getStatus(MAILBOX).startsWith("circuit breaker open after 3 consecutive failures"));
+
+        // Other mailboxes aren't affected.
+        assertTrue(breaker.allowRequest("pop3://bob@mail.example.org:995"));
+    }
+
+    @Test
+    public void testExponentialBackoff() {
+        breaker.recordFailure(MAILBOX, 1);
+        now += MailboxCircuitBreaker.INITIAL_BACKOFF - 1;
+        assertFalse(breaker.allowRequest(MAILBOX));
+        now += 1;
+        assertTrue(breaker.allowRequest(MAILBOX));
+
+        // The next failure doubles the backoff.
+        breaker.recordFailure(MAILBOX, 1);
+        now += MailboxCircuitBreaker.INITIAL_BACKOFF;
+        assertFalse(breaker.allowRequest(MAILBOX));
+        now += MailboxCircuitBreaker.INITIAL_BACKOFF;
+        assertTrue(breaker.allowRequest(MAILBOX));
+
+        // The backoff is capped.
+        for (int i = 0; i < 40; i++) {
+            breaker.recordFailure(MAILBOX, 1);
+        }
+        now += MailboxCircuitBreaker.MAX_BACKOFF;
+        assertTrue(breaker.allowRequest(MAILBOX));
+    }
+
+    @Test
+    public void testSingleTrial() {
+        breaker.recordFailure(MAILBOX, 1);
+        now += MailboxCircuitBreaker.INITIAL_BACKOFF;
+        assertTrue(breaker.getStatus(MAILBOX).endsWith("the next run is a trial"));
+
+        // Only the first run after the backoff is let through.
+        assertTrue(breaker.allowRequest(MAILBOX));
+        assertFalse(breaker.allowRequest(MAILBOX));
+        assertTrue(breaker.getStatus(MAILBOX).endsWith("trial run in progress"));
+
+        // A failed trial opens the breaker again.
+        breaker.recordFailure(MAILBOX, 1);
+        assertFalse(breaker.allowRequest(MAILBOX));
+        assertTrue(breaker.getStatus(MAILBOX).startsWith("circuit breaker open after 2 consecutive failures"));
+
+        // A successful trial closes it.
+        now += 2 * MailboxCircuitBreaker.INITIAL_BACKOFF;
+        assertTrue(breaker.allowRequest(MAILBOX));
+        assertEquals("circuit breaker closed after 2 consecutive failures", breaker.recordSuccess(MAILBOX));
+        assertTrue(breaker.allowRequest(MAILBOX));
+        assertTrue(breaker.allowRequest(MAILBOX));
+    }
+
+    @Test
+    public void testEndTrial() {
+        breaker.recordFailure(MAILBOX, 1);
+        now += MailboxCircuitBreaker.INITIAL_BACKOFF;
+        assertTrue(breaker.allowRequest(MAILBOX));
+
+        // A trial without outcome lets the next run try again, without closing the breaker.
+        breaker.endTrial(MAILBOX);
+        assertTrue(breaker.isOpen(MAILBOX));
+        assertTrue(breaker.allowRequest(MAILBOX));
+        assertFalse(breaker.allowRequest(MAILBOX));
+    }
+
+    @Test
+    public void testIsOpen() {
+        breaker.recordFailure(MAILBOX, 2);
+        assertFalse(breaker.isOpen(MAILBOX));
+
+        breaker.recordFailure(MAILBOX, 2);
+        assertTrue(breaker.isOpen(MAILBOX));
+
+        // Checking doesn't start the trial run.
+        now += MailboxCircuitBreaker.INITIAL_BACKOFF;
+        assertTrue(breaker.isOpen(MAILBOX));
+        assertTrue(breaker.allowRequest(MAILBOX));
+    }
+
+    @Test
+    public void testSuccessCloses() {
+        breaker.recordFailure(MAILBOX, 1);
+        assertFalse(breaker.allowRequest(MAILBOX));
+
+        breaker.recordSuccess(MAILBOX);
+        assertTrue(breaker.allowRequest(MAILBOX));
+        assertEquals("circuit breaker closed", breaker.getStatus(MAILBOX));
+        assertNull(breaker.recordSuccess(MAILBOX));
+    }
+
+    @Test
+    public void testDisabled() {
+        for (int i = 0; i < 10; i++) {
+            breaker.recordFailure(MAILBOX, 0);
+        }
+
+        assertTrue(breaker.allowRequest(MAILBOX));
+    }
+}
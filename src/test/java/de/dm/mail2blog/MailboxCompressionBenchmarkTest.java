@@ -0,0 +1,196 @@
+package de.dm.mail2blog;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Authenticator;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.net.SocketFactory;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * Compare bytes on the wire and time per message with and without COMPRESS=DEFLATE.
+ *
+ * Needs an IMAP server supporting COMPRESS=DEFLATE (e.g. a local dovecot with the imap_zlib plugin)
+ * with some messages in the INBOX, the test is skipped otherwise. Run with:
+ *
+ * mvn test -Dtest=MailboxCompressionBenchmarkTest -Dmail2blog.benchmark.server=127.0.0.1
+ *     -Dmail2blog.benchmark.port=143 -Dmail2blog.benchmark.username=bob -Dmail2blog.benchmark.password=secret
+ */
+@Slf4j
+public class MailboxCompressionBenchmarkTest {
+    private String server;
+
+    @Before
+    public void setUp() {
+        server = System.getProperty("mail2blog.benchmark.server");
+        assumeNotNull(server);
+    }
+
+    @Test
+    public void benchmarkCompression() throws Exception {
+        // Warm up the JIT and the server caches.
+        run(false);
+
+        Result plain = run(false);
+        Result compressed = run(true);
+
+        log.info("Mail2Blog benchmark: uncompressed " + plain);
+        log.info("Mail2Blog benchmark: compressed   " + compressed);
+    }
+
+    /**
+     * Download all messages in the INBOX and count the bytes read from the socket.
+     */
+    private Result run(boolean compress) throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder()
+            .server(server)
+            .port(Integer.parseInt(System.getProperty("mail2blog.benchmark.port", "143")))
+            .secure(false)
+            .username(System.getProperty("mail2blog.benchmark.username", ""))
+            .password(System.getProperty("mail2blog.benchmark.password", ""))
+            .incrementalFetch(false)
+            .compress(compress)
+            .build();
+
+        final CountingSocketFactory socketFactory = new CountingSocketFactory();
+        Mailbox mailbox = new Mailbox(new MailConfigurationWrapper(mailConfiguration)) {
+            @Override
+            Session getSessionInstance(Properties props, Authenticator authenticator) {
+                props.put("mail.imap.socketFactory", socketFactory);
+                return super.getSessionInstance(props, authenticator);
+            }
+        };
+
+        long start = System.nanoTime();
+        Message[] messages;
+        try {
+            messages = mailbox.getMessages();
+            for (Message message : messages) {
+                InputStream is = message.getInputStream();
+                byte[] buffer = new byte[8192];
+                while (is.read(buffer) != -1) {
+                    // Only download.
+                }
+                is.close();
+            }
+        } finally {
+            mailbox.close();
+        }
+
+        return new Result(messages.length, socketFactory.read.get(), socketFactory.written.get(), System.nanoTime() - start);
+    }
+
+    private static class Result {
+        private final int messages;
+        private final long read;
+        private final long written;
+        private final long nanos;
+
+        Result(int messages, long read, long written, long nanos) {
+            this.messages = messages;
+            this.read = read;
+            this.written = written;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return messages + " messages, " + read + " bytes read, " + written + " bytes written, "
+                + (messages > 0 ? nanos / 1000000.0 / messages : 0) + " ms/message";
+        }
+    }
+
+    /**
+     * Socket factory that counts the bytes read from and written to its sockets.
+     */
+    private static class CountingSocketFactory extends SocketFactory {
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+
+        @Override
+        public Socket createSocket() {
+            return new CountingSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return connect(new CountingSocket(), InetAddress.getByName(host), port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return connect(new CountingSocket(), host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return createSocket(address, port);
+        }
+
+        private Socket connect(Socket socket, InetAddress host, int port) throws IOException {
+            socket.connect(new InetSocketAddress(host, port));
+            return socket;
+        }
+
+        private class CountingSocket extends Socket {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b != -1) {
+                            read.incrementAndGet();
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = super.read(b, off, len);
+                        if (n > 0) {
+                            read.addAndGet(n);
+                        }
+                        return n;
+                    }
+                };
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        written.incrementAndGet();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        written.addAndGet(len);
+                    }
+                };
+            }
+        }
+    }
+}
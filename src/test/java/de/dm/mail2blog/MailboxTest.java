@@ -1,24 +1,53 @@
 package de.dm.mail2blog;
 
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.protocol.Status;
+import com.sun.mail.pop3.POP3Folder;
+import com.sun.mail.pop3.POP3Message;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import javax.mail.Address;
 import javax.mail.Authenticator;
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.Session;
+import javax.mail.UIDFolder;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.SearchTerm;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Properties;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -50,6 +79,7 @@ public class MailboxTest {
                 .protocol("imap")
                 .port(143)
                 .emailaddress("bob@example.org")
+                .timeout(60)
                 .build();
 
         Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
@@ -64,10 +94,15 @@ public class MailboxTest {
         verify(mockData.getStore(), times(1)).connect("mail.example.org", "bob", "password");
         Properties properties = propertiesCaptor.getValue();
         assertEquals("10000", properties.getProperty("mail.imaps.connectiontimeout"));
+        assertEquals("60000", properties.getProperty("mail.imaps.timeout"));
+        assertEquals("60000", properties.getProperty("mail.imaps.writetimeout"));
         assertEquals("143", properties.getProperty("mail.imaps.port"));
         assertEquals("true", properties.getProperty("mail.imaps.ssl.checkserveridentity"));
         assertNull(properties.getProperty("mail.pop3.ssl.trust"));
         assertEquals("TLSv1.2", properties.getProperty("mail.imaps.ssl.protocols"));
+        assertEquals("true", properties.getProperty("mail.imaps.partialfetch"));
+        assertEquals("16384", properties.getProperty("mail.imaps.fetchsize"));
+        assertEquals("false", properties.getProperty("mail.imaps.compress.enable"));
 
         mailbox.close();
         verify(mockData.getStore(), times(1)).close();
@@ -97,14 +132,128 @@ public class MailboxTest {
         verify(mockData.getStore(), times(1)).connect("mail.example.org", "bob", "password");
         Properties properties = propertiesCaptor.getValue();
         assertEquals("10000", properties.getProperty("mail.pop3.connectiontimeout"));
+        assertNull(properties.getProperty("mail.pop3.timeout"));
         assertEquals("1110", properties.getProperty("mail.pop3.port"));
         assertEquals("false", properties.getProperty("mail.pop3.ssl.checkserveridentity"));
         assertEquals("*", properties.getProperty("mail.pop3.ssl.trust"));
+        assertEquals("true", properties.getProperty("mail.pop3.filecache.enable"));
+        assertNull(properties.getProperty("mail.pop3.compress.enable"));
 
         mailbox.close();
         verify(mockData.getStore(), times(1)).close();
     }
 
+    /**
+     * Make sure the envelope of POP3 messages is read with TOP and messages are only retrieved once their content is read.
+     */
+    @Test
+    public void testPop3HeadersWithoutRetr() throws Exception {
+        // Bind to a free port, a fixed one may be taken on the build host.
+        GreenMail greenMail = new GreenMail(ServerSetupTest.POP3.dynamicPort());
+        greenMail.start();
+
+        try {
+            GreenMailUser user = greenMail.setUser("bob@example.org", "bob", "password");
+            for (String subject : new String[]{"Mail1", "Mail2"}) {
+                MimeMessage message = new MimeMessage((Session) null);
+                message.setSubject(subject);
+                message.setFrom(new InternetAddress("alice@example.org"));
+                message.setRecipient(Message.RecipientType.TO, new InternetAddress("bob@example.org"));
+                message.setText("Content of " + subject);
+                user.deliver(message);
+            }
+
+            MailConfiguration mailConfiguration = MailConfiguration.builder()
+                .server("localhost")
+                .port(greenMail.getPop3().getPort())
+                .secure(false)
+                .protocol("pop3")
+                .username("bob")
+                .password("password")
+                .emailaddress("bob@example.org")
+                .build();
+            Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+
+            // Record the commands sent to the server.
+            final ByteArrayOutputStream protocolLog = new ByteArrayOutputStream();
+            doAnswer(new Answer<Session>() {
+                public Session answer(InvocationOnMock invocation) {
+                    Session session = Session.getInstance((Properties) invocation.getArgument(0));
+                    session.setDebug(true);
+                    session.setDebugOut(new PrintStream(protocolLog, true));
+                    return session;
+                }
+            }).when(mailbox).getSessionInstance(any(Properties.class), (Authenticator) isNull());
+
+            try {
+                // Everything the admission checks look at comes from the headers.
+                Message[] messages = mailbox.getMessages();
+                assertEquals(2, messages.length);
+                for (Message message : messages) {
+                    assertEquals("alice@example.org", ((InternetAddress) message.getFrom()[0]).getAddress());
+                    assertTrue(message.getSize() > 0);
+                    message.getSubject();
+                }
+
+                assertTrue(protocolLog.toString().contains("TOP "));
+                assertEquals(0, countCommands(protocolLog.toString(), "RETR "));
+
+                // Reading the content retrieves only that message.
+                assertEquals("Content of Mail2", ((String) messages[1].getContent()).trim());
+                assertEquals(1, countCommands(protocolLog.toString(), "RETR "));
+            } finally {
+                mailbox.close();
+            }
+        } finally {
+            greenMail.stop();
+        }
+    }
+
+    /**
+     * Count how often a command shows up in the debug output of a javax.mail session.
+     */
+    private static int countCommands(String protocolLog, String command) {
+        int count = 0;
+        for (int i = protocolLog.indexOf(command); i >= 0; i = protocolLog.indexOf(command, i + 1)) {
+            count++;
+        }
+
+        return count;
+    }
+
+    @Test
+    public void testPooledStore() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder()
+                .server("mail.example.org")
+                .username("bob")
+                .password("password")
+                .protocol("imap")
+                .build();
+        MailConfigurationWrapper wrapper = new MailConfigurationWrapper(mailConfiguration);
+        MailStorePool pool = mock(MailStorePool.class);
+
+        Mailbox mailbox = spy(new Mailbox(wrapper, pool));
+        Session session = mock(Session.class);
+        doReturn(session).when(mailbox).getSessionInstance(any(Properties.class), (Authenticator) isNull());
+        when(session.getStore("imaps")).thenReturn(mockData.getStore());
+        when(mockData.getStore().isConnected()).thenReturn(true);
+
+        mailbox.getStore();
+        verify(pool, times(1)).borrow(wrapper.getMailboxKey(), wrapper.getConnectionKey());
+        verify(mockData.getStore(), times(1)).connect("mail.example.org", "bob", "password");
+
+        // The store is returned to the pool instead of being closed.
+        mailbox.close();
+        verify(pool, times(1)).release(wrapper.getMailboxKey(), wrapper.getConnectionKey(), mockData.getStore());
+        verify(mockData.getStore(), times(0)).close();
+
+        // The next mailbox takes the store from the pool.
+        when(pool.borrow(wrapper.getMailboxKey(), wrapper.getConnectionKey())).thenReturn(mockData.getStore());
+        Mailbox nextMailbox = new Mailbox(wrapper, pool);
+        assertSame(mockData.getStore(), nextMailbox.getStore());
+        verify(mockData.getStore(), times(1)).connect("mail.example.org", "bob", "password");
+    }
+
     @Test
     public void testCount() throws Exception {
         Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(MailConfiguration.builder().build())));
@@ -121,6 +270,398 @@ public class MailboxTest {
         assertEquals("Expected 2 messages in INBOX", 2, messages.length);
         assertEquals("Failed to get first message from INBOX", mockData.getExampleMail1().getSubject(), messages[0].getSubject());
         assertEquals("Failed to get second message from INBOX", mockData.getExampleMail2().getSubject(), messages[1].getSubject());
+
+        // Make sure the messages got prefetched with one command.
+        ArgumentCaptor<FetchProfile> captor = ArgumentCaptor.forClass(FetchProfile.class);
+        verify(mockData.getInbox(), times(1)).fetch(eq(messages), captor.capture());
+        assertTrue(captor.getValue().contains(FetchProfile.Item.ENVELOPE));
+        assertTrue(captor.getValue().contains(FetchProfile.Item.SIZE));
+        assertTrue(captor.getValue().contains(FetchProfile.Item.CONTENT_INFO));
+        assertTrue(captor.getValue().contains("Cc"));
+    }
+
+    @Test
+    public void testGetMessagesIncremental() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().incrementalFetch(true).build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+
+        MailboxCheckpointManager checkpointManager = mock(MailboxCheckpointManager.class);
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        String key = mailbox.getMailConfigurationWrapper().getMailboxKey();
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().uidValidity(7).lastUid(10).build());
+
+        IMAPFolder inbox = mock(IMAPFolder.class);
+        when(mockData.getStore().getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.isOpen()).thenReturn(true);
+        when(inbox.getUIDValidity()).thenReturn(7L);
+
+        // The server returns the last message for 11:*, even if it has a lower UID.
+        Message old = mock(Message.class);
+        Message new1 = mock(Message.class);
+        Message new2 = mock(Message.class);
+        when(inbox.getMessagesByUID(11, UIDFolder.LASTUID)).thenReturn(new Message[]{new1, new2});
+        when(inbox.getUID(old)).thenReturn(10L);
+        when(inbox.getUID(new1)).thenReturn(11L);
+        when(inbox.getUID(new2)).thenReturn(15L);
+
+        Message[] messages = mailbox.getMessages();
+        assertEquals(2, messages.length);
+        assertSame(new1, messages[0]);
+        assertSame(new2, messages[1]);
+
+        mailbox.saveCheckpoint();
+        verify(checkpointManager).save(key, MailboxCheckpoint.builder().uidValidity(7).lastUid(15).build());
+
+        // With a changed UIDVALIDITY all messages are returned.
+        when(inbox.getUIDValidity()).thenReturn(8L);
+        when(inbox.getMessages()).thenReturn(new Message[]{old, new1, new2});
+        assertEquals(3, mailbox.getMessages().length);
+    }
+
+    @Test
+    public void testGetMessagesLeaveOnServer() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().protocol("pop3").leaveOnServer(true).build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+
+        MailboxCheckpointManager checkpointManager = mock(MailboxCheckpointManager.class);
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        String key = mailbox.getMailConfigurationWrapper().getMailboxKey();
+
+        Pop3UidlIndex index = new Pop3UidlIndex();
+        index.add("seen");
+        index.add("deleted");
+        when(checkpointManager.loadUidlIndex(key)).thenReturn(index);
+
+        POP3Folder inbox = mock(POP3Folder.class);
+        when(mockData.getStore().getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.isOpen()).thenReturn(true);
+
+        Message seen = mock(Message.class);
+        Message unseen = mock(Message.class);
+        when(inbox.getMessages()).thenReturn(new Message[]{seen, unseen});
+        when(inbox.getUID(seen)).thenReturn("seen");
+        when(inbox.getUID(unseen)).thenReturn("unseen");
+
+        // Only the unseen message is returned and prefetched.
+        Message[] messages = mailbox.getMessages();
+        assertEquals(1, messages.length);
+        assertSame(unseen, messages[0]);
+        verify(inbox).fetch(eq(new Message[]{unseen}), any(FetchProfile.class));
+
+        // Flagging remembers the message instead of deleting it.
+        mailbox.flagAsProcessed(unseen);
+        mailbox.close();
+        verify(unseen, never()).setFlag(Flags.Flag.DELETED, true);
+
+        // UIDLs of messages deleted from the server are dropped.
+        ArgumentCaptor<Pop3UidlIndex> captor = ArgumentCaptor.forClass(Pop3UidlIndex.class);
+        verify(checkpointManager).saveUidlIndex(eq(key), captor.capture());
+        assertEquals(2, captor.getValue().size());
+        assertTrue(captor.getValue().contains("seen"));
+        assertTrue(captor.getValue().contains("unseen"));
+        assertFalse(captor.getValue().contains("deleted"));
+    }
+
+    @Test
+    public void testGetMessagesWindowed() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().incrementalFetch(true).build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+
+        MailboxCheckpointManager checkpointManager = mock(MailboxCheckpointManager.class);
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        String key = mailbox.getMailConfigurationWrapper().getMailboxKey();
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().uidValidity(7).lastUid(10).build());
+
+        IMAPFolder inbox = mock(IMAPFolder.class);
+        when(mockData.getStore().getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.isOpen()).thenReturn(true);
+        when(inbox.getUIDValidity()).thenReturn(7L);
+
+        Message old = mock(Message.class);
+        Message new1 = mock(Message.class);
+        Message new2 = mock(Message.class);
+        Message[] window1 = new Message[]{new1, new2};
+        Message[] window2 = new Message[]{old, new1};
+        when(inbox.getMessages(2, 3)).thenReturn(window1);
+        when(inbox.getMessages(1, 2)).thenReturn(window2);
+        when(inbox.getUID(old)).thenReturn(10L);
+        when(inbox.getUID(new1)).thenReturn(11L);
+        when(inbox.getUID(new2)).thenReturn(15L);
+
+        // The first window only contains new messages.
+        Message[] messages = mailbox.getMessages(2, 3);
+        assertEquals(2, messages.length);
+        assertFalse(mailbox.checkpointReached());
+        verify(inbox, times(1)).fetch(eq(window1), any(FetchProfile.class));
+
+        // The second window reaches down to the checkpoint.
+        messages = mailbox.getMessages(1, 2);
+        assertEquals(1, messages.length);
+        assertSame(new1, messages[0]);
+        assertTrue(mailbox.checkpointReached());
+        verify(checkpointManager, times(1)).load(key);
+
+        mailbox.saveCheckpoint();
+        verify(checkpointManager).save(key, MailboxCheckpoint.builder().uidValidity(7).lastUid(15).build());
+    }
+
+    @Test
+    public void testResumePoint() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().incrementalFetch(true).build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+        doReturn(iMailboxFlagFeature).when(mailbox).getFlagStrategy();
+
+        MailboxCheckpointManager checkpointManager = mock(MailboxCheckpointManager.class);
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        String key = mailbox.getMailConfigurationWrapper().getMailboxKey();
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().uidValidity(7).lastUid(10).build());
+
+        IMAPFolder inbox = mock(IMAPFolder.class);
+        when(mockData.getStore().getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.isOpen()).thenReturn(true);
+        when(inbox.getUIDValidity()).thenReturn(7L);
+
+        Message message11 = mock(Message.class);
+        Message message12 = mock(Message.class);
+        Message message14 = mock(Message.class);
+        Message message15 = mock(Message.class);
+        when(inbox.getUID(message11)).thenReturn(11L);
+        when(inbox.getUID(message12)).thenReturn(12L);
+        when(inbox.getUID(message14)).thenReturn(14L);
+        when(inbox.getUID(message15)).thenReturn(15L);
+        when(inbox.getMessagesByUID(11, UIDFolder.LASTUID)).thenReturn(new Message[]{message11, message12, message14, message15});
+
+        // The run stops after the two newest messages.
+        assertEquals(4, mailbox.getMessages().length);
+        mailbox.flagAsProcessed(message15);
+        mailbox.flagAsInvalid(message14);
+        mailbox.saveResumePoint();
+
+        MailboxCheckpoint resumePoint = MailboxCheckpoint.builder().uidValidity(7).lastUid(10).resumeUid(14).resumeTopUid(15).build();
+        verify(checkpointManager).save(key, resumePoint);
+
+        // The next run only fetches the remaining messages and completes the previous run.
+        mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        when(checkpointManager.load(key)).thenReturn(resumePoint);
+        when(inbox.getMessagesByUID(11, 13)).thenReturn(new Message[]{message11, message12});
+
+        Message[] messages = mailbox.getMessages();
+        assertArrayEquals(new Message[]{message11, message12}, messages);
+
+        mailbox.saveCheckpoint();
+        verify(checkpointManager).save(key, MailboxCheckpoint.builder().uidValidity(7).lastUid(15).build());
+    }
+
+    @Test
+    public void testResumePointSkipped() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().incrementalFetch(true).build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+        doReturn(iMailboxFlagFeature).when(mailbox).getFlagStrategy();
+
+        MailboxCheckpointManager checkpointManager = mock(MailboxCheckpointManager.class);
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        String key = mailbox.getMailConfigurationWrapper().getMailboxKey();
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().uidValidity(7).lastUid(10).build());
+
+        IMAPFolder inbox = mock(IMAPFolder.class);
+        when(mockData.getStore().getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.isOpen()).thenReturn(true);
+        when(inbox.getUIDValidity()).thenReturn(7L);
+
+        Message message11 = mock(Message.class);
+        Message message12 = mock(Message.class);
+        Message message13 = mock(Message.class);
+        when(inbox.getUID(message11)).thenReturn(11L);
+        when(inbox.getUID(message12)).thenReturn(12L);
+        when(inbox.getUID(message13)).thenReturn(13L);
+        when(inbox.getMessagesByUID(11, UIDFolder.LASTUID)).thenReturn(new Message[]{message11, message12, message13});
+
+        // One worker flagged message 12, while another one took message 13 after the budget ran out.
+        assertEquals(3, mailbox.getMessages().length);
+        mailbox.flagAsProcessed(message12);
+        mailbox.skip(message13);
+        mailbox.saveResumePoint();
+
+        verify(checkpointManager).save(key, MailboxCheckpoint.builder().uidValidity(7).lastUid(10).resumeUid(14).resumeTopUid(13).build());
+    }
+
+    @Test
+    public void testPartitionPlan() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+
+        IMAPFolder inbox = mock(IMAPFolder.class);
+        when(mockData.getStore().getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.isOpen()).thenReturn(true);
+        when(inbox.getUIDValidity()).thenReturn(7L);
+
+        Message message1 = mock(Message.class);
+        Message message2 = mock(Message.class);
+        Message message3 = mock(Message.class);
+        when(inbox.getMessages()).thenReturn(new Message[]{message1, message2, message3});
+        when(inbox.getUID(message1)).thenReturn(11L);
+        when(inbox.getUID(message2)).thenReturn(12L);
+        when(inbox.getUID(message3)).thenReturn(14L);
+
+        MailboxPartitionPlan plan = mailbox.newPartitionPlan(2);
+        assertEquals(7, plan.getUidValidity());
+        assertEquals(Arrays.asList(11L, 12L, 14L), plan.getUids());
+        assertArrayEquals(new long[]{12, 14}, plan.getUids(0));
+        assertArrayEquals(new long[]{11}, plan.getUids(1));
+
+        // Messages handled by another node are gone from the INBOX.
+        when(message3.isExpunged()).thenReturn(true);
+        when(inbox.getMessagesByUID(new long[]{12, 14})).thenReturn(new Message[]{null, message3});
+        when(inbox.getMessagesByUID(new long[]{11})).thenReturn(new Message[]{message1});
+        assertEquals(0, mailbox.getMessagesByUid(7, plan.getUids(0)).length);
+        assertArrayEquals(new Message[]{message1}, mailbox.getMessagesByUid(7, plan.getUids(1)));
+
+        // Plans for an older UIDVALIDITY are ignored.
+        assertEquals(0, mailbox.getMessagesByUid(6, plan.getUids(1)).length);
+    }
+
+    @Test
+    public void testPartitionPlanIncremental() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().incrementalFetch(true).build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+
+        MailboxCheckpointManager checkpointManager = mock(MailboxCheckpointManager.class);
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        String key = mailbox.getMailConfigurationWrapper().getMailboxKey();
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().uidValidity(7).lastUid(10).build());
+
+        IMAPFolder inbox = mock(IMAPFolder.class);
+        when(mockData.getStore().getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.isOpen()).thenReturn(true);
+        when(inbox.getUIDValidity()).thenReturn(7L);
+
+        // A message at the checkpoint was handled, but couldn't be moved out of the INBOX.
+        Message old = mock(Message.class);
+        Message message1 = mock(Message.class);
+        Message message2 = mock(Message.class);
+        when(inbox.getMessagesByUID(11, UIDFolder.LASTUID)).thenReturn(new Message[]{message1, message2});
+        when(inbox.getUID(old)).thenReturn(10L);
+        when(inbox.getUID(message1)).thenReturn(11L);
+        when(inbox.getUID(message2)).thenReturn(14L);
+
+        MailboxPartitionPlan plan = mailbox.newPartitionPlan(2);
+        assertEquals(Arrays.asList(11L, 14L), plan.getUids());
+        assertEquals(14, plan.getLastUid());
+        verify(inbox, never()).getMessages();
+
+        mailbox.savePartitionCheckpoint(plan);
+        verify(checkpointManager).save(key, MailboxCheckpoint.builder().uidValidity(7).lastUid(14).build());
+
+        // Without incremental fetch the plan lists all messages and doesn't move the checkpoint.
+        mailConfiguration.setIncrementalFetch(false);
+        mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        when(inbox.getMessages()).thenReturn(new Message[]{old, message1, message2});
+
+        plan = mailbox.newPartitionPlan(2);
+        assertEquals(Arrays.asList(10L, 11L, 14L), plan.getUids());
+        mailbox.savePartitionCheckpoint(plan);
+        verify(checkpointManager, times(1)).save(any(String.class), any(MailboxCheckpoint.class));
+    }
+
+    @Test
+    public void testHasNewMessages() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+
+        MailboxCheckpointManager checkpointManager = mock(MailboxCheckpointManager.class);
+        doReturn(checkpointManager).when(mailbox).getCheckpointManager();
+        String key = mailbox.getMailConfigurationWrapper().getMailboxKey();
+
+        Status status = mock(Status.class);
+        status.total = 3;
+        status.uidnext = 42;
+        status.uidvalidity = 7;
+
+        IMAPFolder inbox = mock(IMAPFolder.class);
+        when(mockData.getStore().getFolder("INBOX")).thenReturn(inbox);
+        when(inbox.doCommand(any(IMAPFolder.ProtocolCommand.class))).thenReturn(status);
+
+        // Nothing is known about the mailbox yet.
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().build());
+        assertTrue(mailbox.hasNewMessages());
+
+        // Nothing changed since the last run.
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().uidValidity(7).uidNext(42).messageCount(3).build());
+        assertFalse(mailbox.hasNewMessages());
+
+        // Messages that have been moved out of the INBOX don't count as changes.
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().uidValidity(7).uidNext(42).messageCount(5).build());
+        assertFalse(mailbox.hasNewMessages());
+
+        // A new message arrived.
+        when(checkpointManager.load(key)).thenReturn(MailboxCheckpoint.builder().uidValidity(7).uidNext(40).messageCount(3).build());
+        assertTrue(mailbox.hasNewMessages());
+
+        // The INBOX was never selected.
+        verify(inbox, never()).open(anyInt());
+
+        // The status gets stored with the checkpoint.
+        mailbox.saveCheckpoint();
+        verify(checkpointManager).save(key, MailboxCheckpoint.builder().uidValidity(7).uidNext(42).messageCount(3).build());
+    }
+
+    @Test
+    public void testSearchRejected() throws Exception {
+        MailConfiguration mailConfiguration = MailConfiguration.builder().build();
+        Mailbox mailbox = spy(new Mailbox(new MailConfigurationWrapper(mailConfiguration)));
+        doReturn(mockData.getStore()).when(mailbox).getStore();
+
+        // No criteria configured.
+        assertNull(mailbox.getRejectTerm());
+        assertEquals(0, mailbox.searchRejected().length);
+
+        mailConfiguration.setMaxMessageAge(30);
+        mailConfiguration.setRejectOversized(true);
+        mailConfiguration.setMaxAllowedAttachmentSize(1);
+        mailConfiguration.setAllowedSenderDomains("example.org, example.com");
+
+        Message tooLarge = mock(Message.class);
+        when(tooLarge.getSize()).thenReturn(2 * 1024 * 1024);
+        when(tooLarge.getReceivedDate()).thenReturn(new Date());
+        when(tooLarge.getFrom()).thenReturn(new Address[]{new InternetAddress("alice@example.org")});
+
+        Message tooOld = mock(Message.class);
+        when(tooOld.getSize()).thenReturn(1024);
+        when(tooOld.getReceivedDate()).thenReturn(new Date(System.currentTimeMillis() - 31L * 24 * 60 * 60 * 1000));
+        when(tooOld.getFrom()).thenReturn(new Address[]{new InternetAddress("alice@example.org")});
+
+        Message foreign = mock(Message.class);
+        when(foreign.getSize()).thenReturn(1024);
+        when(foreign.getReceivedDate()).thenReturn(new Date());
+        when(foreign.getFrom()).thenReturn(new Address[]{new InternetAddress("mallory@example.net")});
+
+        Message accepted = mock(Message.class);
+        when(accepted.getSize()).thenReturn(1024);
+        when(accepted.getReceivedDate()).thenReturn(new Date());
+        when(accepted.getFrom()).thenReturn(new Address[]{new InternetAddress("bob@example.com")});
+
+        SearchTerm term = mailbox.getRejectTerm();
+        assertTrue(term.match(tooLarge));
+        assertTrue(term.match(tooOld));
+        assertTrue(term.match(foreign));
+        assertFalse(term.match(accepted));
+
+        // The search is sent to the server.
+        Message[] rejected = new Message[]{tooLarge};
+        when(mockData.getInbox().search(any(SearchTerm.class))).thenReturn(rejected);
+        assertSame(rejected, mailbox.searchRejected());
     }
 
     @Test
@@ -184,5 +725,23 @@ public class MailboxTest {
         mailbox.flagAsInvalid(message);
         verify(iMailboxFlagFeature, times(1)).flagAsInvalid(message);
     }
-}
 
+    @Test
+    public void testRelease() throws Exception {
+        Mailbox mailbox = new Mailbox(new MailConfigurationWrapper(MailConfiguration.builder().build()));
+
+        IMAPMessage imapMessage = mock(IMAPMessage.class);
+        POP3Message pop3Message = mock(POP3Message.class);
+
+        mailbox.release(imapMessage);
+        mailbox.release(pop3Message);
+        mailbox.release(mockData.getExampleMail1());
+
+        verify(imapMessage, times(1)).invalidateHeaders();
+        verify(pop3Message, times(1)).invalidate(true);
+
+        // Windows with already handled messages are skipped.
+        mailbox.release(new Message[]{null, imapMessage});
+        verify(imapMessage, times(2)).invalidateHeaders();
+    }
+}
@@ -0,0 +1,168 @@
+package de.dm.mail2blog;
+
+import org.junit.Test;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class MessagePipelineTest
+{
+    /**
+     * Make sure messages are handed out in processing order and the fetcher doesn't run too far ahead.
+     */
+    @Test
+    public void testOrderAndBackpressure() throws Exception {
+        Message[] messages = new Message[10];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = mock(Message.class);
+        }
+        Message[] expected = messages.clone();
+
+        final AtomicInteger downloaded = new AtomicInteger();
+        MessagePipeline pipeline = new MessagePipeline(messages, 2, 1024) {
+            @Override
+            MimeMessage download(Message message) {
+                downloaded.incrementAndGet();
+                return null;
+            }
+        };
+
+        try {
+            pipeline.start();
+
+            // The queue holds two messages, the fetcher waits with the third one.
+            Thread.sleep(200);
+            assertTrue("Expected the fetcher to wait for the job thread", downloaded.get() <= 3);
+
+            for (int i = expected.length - 1; i >= 0; i--) {
+                MessagePipeline.Entry entry = pipeline.take();
+                assertSame(expected[i], entry.getMessage());
+                assertNull("Expected queued messages to be removed from the array", messages[i]);
+            }
+
+            assertNull(pipeline.take());
+            assertNull(pipeline.take());
+            assertEquals(10, downloaded.get());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Make sure messages that fail the envelope check aren't downloaded.
+     */
+    @Test
+    public void testAdmission() throws Exception {
+        final Message rejected = mock(Message.class);
+        Message admitted = mock(Message.class);
+        final MimeMessage copy = mock(MimeMessage.class);
+
+        final AtomicInteger downloaded = new AtomicInteger();
+        MessagePipeline pipeline = new MessagePipeline(new Message[]{admitted, rejected}, 2, 1024) {
+            @Override
+            boolean admit(Message message) {
+                return message != rejected;
+            }
+
+            @Override
+            MimeMessage download(Message message) {
+                downloaded.incrementAndGet();
+                return copy;
+            }
+        };
+
+        try {
+            pipeline.start();
+
+            MessagePipeline.Entry entry = pipeline.take();
+            assertSame(rejected, entry.getMessage());
+            assertNull(entry.getContent());
+
+            entry = pipeline.take();
+            assertSame(admitted, entry.getMessage());
+            assertSame(copy, entry.getContent());
+
+            assertEquals(1, downloaded.get());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Make sure a failing fetcher ends the pipeline and reports the failure.
+     */
+    @Test
+    public void testFetchFailure() throws Exception {
+        Message[] messages = new Message[]{mock(Message.class), mock(Message.class), mock(Message.class)};
+        Message last = messages[2];
+
+        final AtomicInteger downloaded = new AtomicInteger();
+        MessagePipeline pipeline = new MessagePipeline(messages, 2, 1024) {
+            @Override
+            MimeMessage download(Message message) {
+                if (downloaded.incrementAndGet() > 1) {
+                    throw new IllegalStateException("connection lost");
+                }
+                return null;
+            }
+        };
+
+        try {
+            pipeline.start();
+
+            assertSame(last, pipeline.take().getMessage());
+            assertNull(pipeline.take());
+            assertTrue(pipeline.isFailed());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Make sure small messages are copied and parsed, large ones are left to the transaction.
+     */
+    @Test
+    public void testDownload() throws Exception {
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Hello World");
+        multipart.addBodyPart(text);
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setText("0123456789");
+        attachment.setFileName("numbers.txt");
+        multipart.addBodyPart(attachment);
+
+        MimeMessage draft = new MimeMessage((Session) null);
+        draft.setSubject("Test");
+        draft.setContent(multipart);
+        draft.saveChanges();
+
+        // Read the message back, like a message received from a mail server it knows its size.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        draft.writeTo(bytes);
+        MimeMessage message = new MimeMessage(null, new ByteArrayInputStream(bytes.toByteArray()));
+
+        MessagePipeline pipeline = new MessagePipeline(new Message[0], 1, 1024 * 1024);
+        MimeMessage copy = pipeline.download(message);
+        assertNotNull(copy);
+        assertEquals("Test", copy.getSubject());
+        assertEquals(2, ((MimeMultipart) copy.getContent()).getCount());
+
+        // Messages with an unknown size or larger than the limit aren't copied.
+        assertNull(pipeline.download(mock(Message.class)));
+        assertNull(new MessagePipeline(new Message[0], 1, 4).download(message));
+    }
+}
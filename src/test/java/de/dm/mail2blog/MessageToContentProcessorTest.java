@@ -29,7 +29,9 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import javax.mail.Address;
 import javax.mail.Message;
+import javax.mail.internet.InternetAddress;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -45,6 +47,7 @@ import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.isA;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.same;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
@@ -328,4 +331,70 @@ public class MessageToContentProcessorTest
             fail("Failed to post");
         }
     }
+
+    /**
+     * Check that messages are admitted based on their envelope, without parsing them.
+     */
+    @Test
+    public void testAdmit() throws Exception {
+        when(message.getFrom()).thenReturn(new Address[]{new InternetAddress(MESSAGE_FROM)});
+        when(message.getSize()).thenReturn(2 * 1024 * 1024);
+
+        mailConfigurationWrapper.getMailConfiguration().setMaxAllowedAttachmentSize(1);
+        mailConfigurationWrapper.getMailConfiguration().setSecurityGroup("mail2blog");
+        when(groupManager.getGroup("mail2blog")).thenReturn(group);
+        when(groupManager.hasMembership(group, user)).thenReturn(true);
+
+        // Generate processor.
+        MessageToContentProcessor processor = spy(new MessageToContentProcessor(mailConfigurationWrapper));
+        autowire(processor);
+
+        // Sender in group, size not checked.
+        processor.admit(message);
+
+        // Message too large.
+        mailConfigurationWrapper.getMailConfiguration().setRejectOversized(true);
+        try {
+            processor.admit(message);
+            fail("No exception thrown");
+        } catch (MessageToContentProcessorException e) {}
+
+        // Sender not in group.
+        when(message.getSize()).thenReturn(1024);
+        processor.admit(message);
+        when(groupManager.hasMembership(group, user)).thenReturn(false);
+        try {
+            processor.admit(message);
+            fail("No exception thrown");
+        } catch (MessageToContentProcessorException e) {}
+
+        verify(processor, never()).newMessageParser(any(Message.class), any(Mail2BlogBaseConfiguration.class));
+    }
+
+    /**
+     * Make sure only senders from exactly the accepted domains are admitted.
+     */
+    @Test
+    public void testAdmitSenderDomain() throws Exception {
+        mailConfigurationWrapper.getMailConfiguration().setAllowedSenderDomains("example.com, Example.org");
+        MessageToContentProcessor processor = new MessageToContentProcessor(mailConfigurationWrapper);
+
+        when(message.getFrom()).thenReturn(new Address[]{new InternetAddress("alice@EXAMPLE.org")});
+        processor.admit(message);
+
+        // Matched by the substring search on the server, but not the same domain.
+        for (String from : new String[]{"bob@example.org.evil.com", "bob@sub.example.org", "bob@notexample.org"}) {
+            when(message.getFrom()).thenReturn(new Address[]{new InternetAddress(from)});
+            try {
+                processor.admit(message);
+                fail("No exception thrown for " + from);
+            } catch (MessageToContentProcessorException e) {}
+        }
+
+        when(message.getFrom()).thenReturn(null);
+        try {
+            processor.admit(message);
+            fail("No exception thrown");
+        } catch (MessageToContentProcessorException e) {}
+    }
 }
@@ -12,6 +12,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -19,11 +20,15 @@ import javax.mail.Message;
 import javax.mail.internet.MimeMessage;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
@@ -97,6 +102,7 @@ public class MessageTransactionTest
         verify(processor).process(space, exampleMessage, ContentTypes.BlogPost);
         verify(mailbox).flagAsProcessed(exampleMessage);
         verify(mailbox, never()).flagAsInvalid(any(Message.class));
+        verify(mailbox).release(exampleMessage);
     }
 
     /**
@@ -125,4 +131,67 @@ public class MessageTransactionTest
         verify(mailbox).flagAsInvalid(exampleMessage);
         verify(mailbox, never()).flagAsProcessed(any(Message.class));
     }
+
+    /**
+     * Check that a message rejected by the admission check is flagged as invalid
+     * without looking for spaces or processing it.
+     */
+    @Test
+    public void testRejected() throws Exception {
+        doThrow(new MessageToContentProcessorException("message exceeds the maximum size")).when(processor).admit(exampleMessage);
+        messageTransaction.doInTransaction();
+
+        verify(spaceExtractor, never()).getSpaces(any(Mail2BlogBaseConfiguration.class), any(Message.class));
+        verify(processor, never()).process(any(Space.class), any(Message.class), any(String.class));
+        verify(mailbox).flagAsInvalid(exampleMessage);
+        verify(mailbox, never()).flagAsProcessed(any(Message.class));
+    }
+
+    /**
+     * Check that the spaces of the message are locked before content is created.
+     */
+    @Test
+    public void testSpaceLocks() throws Exception {
+        StripedSpaceLocks spaceLocks = mock(StripedSpaceLocks.class);
+        MessageTransaction transaction = spy(MessageTransaction.builder()
+            .spaceManager(spaceManager)
+            .spaceExtractor(spaceExtractor)
+            .spaceLocks(spaceLocks)
+            .message(exampleMessage)
+            .mailbox(mailbox)
+            .mailConfigurationWrapper(messageTransaction.getMailConfigurationWrapper())
+            .build());
+        doReturn(processor).when(transaction).newMessageToBlogProcessor(messageTransaction.getMailConfigurationWrapper());
+
+        transaction.doInTransaction();
+
+        InOrder inOrder = inOrder(spaceLocks, processor);
+        inOrder.verify(spaceLocks).lock(Collections.singletonList("space"));
+        inOrder.verify(processor).process(space, exampleMessage, ContentTypes.BlogPost);
+    }
+
+    /**
+     * Check that handled messages are counted in the progress of the run.
+     */
+    @Test
+    public void testProgress() throws Exception {
+        JobProgress progress = new JobProgress();
+        MessageTransaction transaction = spy(MessageTransaction.builder()
+            .spaceManager(spaceManager)
+            .spaceExtractor(spaceExtractor)
+            .progress(progress)
+            .message(exampleMessage)
+            .mailbox(mailbox)
+            .mailConfigurationWrapper(messageTransaction.getMailConfigurationWrapper())
+            .build());
+        doReturn(processor).when(transaction).newMessageToBlogProcessor(messageTransaction.getMailConfigurationWrapper());
+
+        transaction.doInTransaction();
+        doThrow(new MessageToContentProcessorException()).when(processor).process(space, exampleMessage, ContentTypes.BlogPost);
+        transaction.doInTransaction();
+
+        assertEquals(1, progress.getProcessed());
+        assertEquals(1, progress.getInvalid());
+        assertEquals(2L * exampleMessage.getSize(), progress.getBytes());
+    }
 }
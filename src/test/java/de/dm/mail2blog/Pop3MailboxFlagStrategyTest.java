@@ -6,6 +6,7 @@ import org.mockito.Mock;
 
 import javax.mail.Flags;
 
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -40,4 +41,22 @@ public class Pop3MailboxFlagStrategyTest {
         verify(mockData.getExampleMail1(), times(1)).setFlag(Flags.Flag.DELETED, true);
         verify(mockData.getExampleMail2(), times(1)).setFlag(Flags.Flag.DELETED, true);
     }
+
+    /**
+     * Test flagging on Pop3 when messages are left on the server.
+     */
+    @Test
+    public void testFlaggingLeaveOnServer() throws Exception {
+        strategy.setLeaveOnServer(true);
+
+        strategy.flagAsProcessed(mockData.getExampleMail1());
+        strategy.flagAsInvalid(mockData.getExampleMail2());
+        strategy.commitFlags();
+
+        verify(mailbox).markSeen(mockData.getExampleMail1());
+        verify(mailbox).markSeen(mockData.getExampleMail2());
+        verify(mailbox).saveUidlIndex();
+        verify(mockData.getExampleMail1(), never()).setFlag(Flags.Flag.DELETED, true);
+        verify(mockData.getExampleMail2(), never()).setFlag(Flags.Flag.DELETED, true);
+    }
 }
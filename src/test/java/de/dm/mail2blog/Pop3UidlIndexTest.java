@@ -0,0 +1,64 @@
+package de.dm.mail2blog;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Pop3UidlIndexTest {
+
+    @Test
+    public void testAddContains() {
+        Pop3UidlIndex index = new Pop3UidlIndex();
+        assertFalse(index.contains("a"));
+
+        for (int i = 0; i < 1000; i++) {
+            index.add("uidl" + i);
+        }
+        index.add("uidl0");
+
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(index.contains("uidl" + i));
+        }
+        assertFalse(index.contains("uidl1000"));
+    }
+
+    @Test
+    public void testRetainAll() {
+        Pop3UidlIndex index = new Pop3UidlIndex();
+        index.add("a");
+        index.add("b");
+        index.add("c");
+
+        index.retainAll(Arrays.asList("b", "c", "d"));
+
+        assertEquals(2, index.size());
+        assertFalse(index.contains("a"));
+        assertTrue(index.contains("b"));
+        assertTrue(index.contains("c"));
+        assertFalse(index.contains("d"));
+    }
+
+    @Test
+    public void testSerialization() {
+        Pop3UidlIndex index = new Pop3UidlIndex();
+        index.add("a");
+        index.add("b");
+
+        Pop3UidlIndex copy = Pop3UidlIndex.fromString(index.toString());
+        assertEquals(2, copy.size());
+        assertTrue(copy.contains("a"));
+        assertTrue(copy.contains("b"));
+
+        assertEquals(0, Pop3UidlIndex.fromString(new Pop3UidlIndex().toString()).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidString() {
+        Pop3UidlIndex.fromString("AAAA");
+    }
+}
@@ -0,0 +1,70 @@
+package de.dm.mail2blog;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RunBudgetTest
+{
+    /**
+     * Current time seen by the budgets in this test.
+     */
+    private static long now = 1000000;
+
+    /**
+     * Make sure no more messages are allowed than the budget holds.
+     */
+    @Test
+    public void testMessageBudget() throws Exception {
+        RunBudget budget = new RunBudget(0, 2);
+
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.isStopped());
+
+        assertFalse(budget.tryAcquire());
+        assertTrue(budget.isStopped());
+        assertEquals(2, budget.getProcessed());
+    }
+
+    /**
+     * Make sure the run stops once the time is up.
+     */
+    @Test
+    public void testTimeBudget() throws Exception {
+        RunBudget budget = new RunBudget(60, 0) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+
+        assertTrue(budget.tryAcquire());
+        now += 59000;
+        assertTrue(budget.tryAcquire());
+        now += 1000;
+        assertFalse(budget.tryAcquire());
+        assertTrue(budget.isStopped());
+
+        // A stopped budget stays stopped.
+        now -= 60000;
+        assertFalse(budget.tryAcquire());
+        assertEquals(2, budget.getProcessed());
+    }
+
+    /**
+     * Make sure a budget without limits never stops.
+     */
+    @Test
+    public void testUnlimited() throws Exception {
+        RunBudget budget = new RunBudget(0, 0);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(budget.tryAcquire());
+        }
+
+        assertFalse(budget.isStopped());
+    }
+}
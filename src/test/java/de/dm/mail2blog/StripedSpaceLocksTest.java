@@ -0,0 +1,109 @@
+package de.dm.mail2blog;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripedSpaceLocksTest
+{
+    private final StripedSpaceLocks spaceLocks = new StripedSpaceLocks();
+
+    /**
+     * Make sure a space can only be locked by one thread, while other spaces stay available.
+     */
+    @Test
+    public void testLock() throws Exception {
+        String otherSpace = getSpaceInOtherStripe("SALES");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            spaceLocks.lock(Collections.singletonList("SALES"));
+
+            // Other spaces can be locked right away.
+            assertTrue(executor.submit(lockAndUnlock(otherSpace)).get(5, TimeUnit.SECONDS));
+
+            // The same space (in any case) has to wait.
+            Future<Boolean> future = executor.submit(lockAndUnlock("sales"));
+            try {
+                future.get(200, TimeUnit.MILLISECONDS);
+                fail("Expected the space to be locked");
+            } catch (TimeoutException e) {
+                // Expected.
+            }
+
+            spaceLocks.unlockAll();
+            assertTrue(future.get(5, TimeUnit.SECONDS));
+        } finally {
+            spaceLocks.unlockAll();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Make sure threads locking the same spaces in a different order don't deadlock.
+     */
+    @Test
+    public void testNoDeadlock() throws Exception {
+        final String space1 = "SALES";
+        final String space2 = getSpaceInOtherStripe(space1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<Integer> future1 = executor.submit(lockRepeatedly(space1, space2));
+            Future<Integer> future2 = executor.submit(lockRepeatedly(space2, space1));
+
+            assertEquals(1000, (int) future1.get(10, TimeUnit.SECONDS));
+            assertEquals(1000, (int) future2.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<Boolean> lockAndUnlock(final String spaceKey) {
+        return new Callable<Boolean>() {
+            public Boolean call() {
+                spaceLocks.lock(Collections.singletonList(spaceKey));
+                spaceLocks.unlockAll();
+                return true;
+            }
+        };
+    }
+
+    private Callable<Integer> lockRepeatedly(final String first, final String second) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                int count = 0;
+                for (int i = 0; i < 1000; i++) {
+                    spaceLocks.lock(Arrays.asList(first, second));
+                    count++;
+                    spaceLocks.unlockAll();
+                }
+
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Find a space key that maps onto a different lock than the given one.
+     */
+    private static String getSpaceInOtherStripe(String spaceKey) {
+        for (int i = 0; ; i++) {
+            String other = "SPACE" + i;
+            if (StripedSpaceLocks.getStripe(other) != StripedSpaceLocks.getStripe(spaceKey)) {
+                return other;
+            }
+        }
+    }
+}